@@ -0,0 +1,614 @@
+package com.acertainbookstore.business;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToIntFunction;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link AdaptiveConcurrentCertainBookStore} implements the {@link BookStore}
+ * and {@link StockManager} functionalities on top of a
+ * {@link SingleLockConcurrentCertainBookStore} in coarse mode or a
+ * {@link TwoLevelLockingConcurrentCertainBookStore} in fine mode, and migrates
+ * its books between them as the mix of calls changes.
+ * <p>
+ * The store samples one call in {@link #SAMPLE_RATE}: how many calls were in
+ * flight with it, whether it updated books, and whether the book it updated
+ * was among those updated by the recent sampled updates. The fine mode only
+ * pays for its extra locks when several updates run at once on different
+ * books, so the store prefers it when calls overlap, updates are frequent and
+ * rarely hit the same books. Otherwise it prefers the coarse mode, which takes
+ * a single lock and combines the orders of buyers of a hot book. It migrates
+ * once a few windows of samples in a row preferred the other mode, and not
+ * more often than {@link #MIN_MIGRATION_INTERVAL_NANOS}.
+ * <p>
+ * Migrating closes a gate in front of the stores, waits for the calls in
+ * flight, copies every book with its sale misses, ratings and editor pick to
+ * the other store, and reopens the gate. Reservations are held in an escrow of
+ * this store, above the gate, so they survive migrations.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class AdaptiveConcurrentCertainBookStore implements ReservingBookStore, StockManager {
+
+	/**
+	 * {@link Mode} is the locking granularity of the store.
+	 */
+	public enum Mode {
+
+		/** A single lock for the whole store. */
+		COARSE,
+
+		/** A lock per group of ISBNs, under a global intention lock. */
+		FINE
+	}
+
+	/**
+	 * {@link Migrator} holds the thread migrating the books of all stores,
+	 * started when the first migration is decided.
+	 */
+	private static final class Migrator {
+
+		/** The executor running the migrations. */
+		private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-engine-migrator");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/** One call in this many is sampled. */
+	private static final int SAMPLE_RATE = 64;
+
+	/** The number of samples in a window. */
+	private static final int WINDOW_SAMPLES = 128;
+
+	/** The number of windows in a row which must prefer the other mode. */
+	private static final int WINDOWS_TO_MIGRATE = 3;
+
+	/** The shortest time between two migrations, in nanoseconds. */
+	private static final long MIN_MIGRATION_INTERVAL_NANOS = 1000000000L;
+
+	/** The average number of calls in flight from which the fine mode may pay off. */
+	private static final double FINE_MIN_CONCURRENCY = 2.0;
+
+	/** The share of updates among calls from which the fine mode may pay off. */
+	private static final double FINE_MIN_UPDATE_SHARE = 0.1;
+
+	/** The share of updates hitting recently updated books up to which the fine mode may pay off. */
+	private static final double FINE_MAX_CONFLICT_RATE = 0.5;
+
+	/** The number of recently updated ISBNs remembered, a power of two. */
+	private static final int RECENT_UPDATES = 64;
+
+	/** The store used in coarse mode. */
+	private final SingleLockConcurrentCertainBookStore coarseStore = new SingleLockConcurrentCertainBookStore();
+
+	/** The store used in fine mode. */
+	private final TwoLevelLockingConcurrentCertainBookStore fineStore = new TwoLevelLockingConcurrentCertainBookStore();
+
+	/** The current mode. */
+	private volatile Mode mode = Mode.COARSE;
+
+	/** The store serving the clients in the current mode. */
+	private volatile BookStore bookStore = coarseStore;
+
+	/** The store serving the stock managers in the current mode. */
+	private volatile StockManager stockManager = coarseStore;
+
+	/**
+	 * The gate in front of the stores: calls hold it shared and a migration
+	 * exclusively, so it starts exactly when no call is in flight.
+	 */
+	private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+
+	/** The lock held while migrating, so migrations run one at a time. */
+	private final Object migrationLock = new Object();
+
+	/** Whether a migration was decided and has not run yet. */
+	private final AtomicBoolean migrationPending = new AtomicBoolean();
+
+	/** Whether the store adapts its mode to the calls. */
+	private final boolean adaptive;
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/** The number of samples in the current window. */
+	private int numSamples = 0;
+
+	/** The sum of the calls in flight over the samples of the current window. */
+	private long sumCallsInFlight = 0;
+
+	/** The number of sampled updates in the current window. */
+	private int numUpdates = 0;
+
+	/** The number of sampled updates hitting a recently updated book. */
+	private int numConflicts = 0;
+
+	/** The ISBNs of the recent sampled updates. */
+	private final int[] recentUpdates = new int[RECENT_UPDATES];
+
+	/** The number of sampled updates ever, the next slot in recentUpdates. */
+	private long numRecentUpdates = 0;
+
+	/** The number of windows in a row which preferred the other mode. */
+	private int windowsPreferringOther = 0;
+
+	/** The time of the last migration, in nanoseconds. */
+	private long lastMigrationNanos = System.nanoTime();
+
+	/**
+	 * Instantiates a new {@link AdaptiveConcurrentCertainBookStore} in coarse
+	 * mode which adapts its mode to the calls.
+	 */
+	public AdaptiveConcurrentCertainBookStore() {
+		this(true);
+	}
+
+	/**
+	 * Instantiates a new {@link AdaptiveConcurrentCertainBookStore} in coarse
+	 * mode.
+	 *
+	 * @param adaptive
+	 *            whether the store adapts its mode to the calls, or only
+	 *            migrates when told to
+	 */
+	public AdaptiveConcurrentCertainBookStore(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Gets the current mode.
+	 *
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Migrates the books to the store of another mode, waiting for the calls in
+	 * flight and holding back new calls until it is done.
+	 *
+	 * @param targetMode
+	 *            the mode to migrate to
+	 * @throws BookStoreException
+	 *             if the books cannot be copied, in which case the mode is
+	 *             unchanged
+	 */
+	public void migrate(Mode targetMode) throws BookStoreException {
+		synchronized (migrationLock) {
+			if (targetMode == mode) {
+				return;
+			}
+
+			gate.writeLock().lock();
+
+			try {
+				List<StockBook> books = stockManager.getBooks();
+
+				if (targetMode == Mode.FINE) {
+					fineStore.replaceAllBooks(books);
+					bookStore = fineStore;
+					stockManager = fineStore;
+				} else {
+					coarseStore.replaceAllBooks(books);
+					bookStore = coarseStore;
+					stockManager = coarseStore;
+				}
+
+				Mode previousMode = mode;
+				mode = targetMode;
+
+				// Free the books of the store left, it is refilled on the way back.
+				try {
+					if (previousMode == Mode.FINE) {
+						fineStore.removeAllBooks();
+					} else {
+						coarseStore.removeAllBooks();
+					}
+				} catch (BookStoreException ex) {
+					;
+				}
+			} finally {
+				gate.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Passes the gate, waiting while a migration runs or waits for the calls
+	 * in flight.
+	 */
+	private void enter() {
+		gate.readLock().lock();
+	}
+
+	private void exit() {
+		gate.readLock().unlock();
+	}
+
+	/**
+	 * Samples a read, once in {@link #SAMPLE_RATE} calls.
+	 */
+	private void sampleRead() {
+		if (adaptive && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+			record(false, 0);
+		}
+	}
+
+	/**
+	 * Samples an update, once in {@link #SAMPLE_RATE} calls.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 * @param batch
+	 *            the batch updated, may be null
+	 * @param isbnOf
+	 *            the ISBN an element updates
+	 */
+	private <T> void sampleUpdate(Collection<T> batch, ToIntFunction<T> isbnOf) {
+		if (adaptive && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+			T element = (batch == null || batch.isEmpty()) ? null : batch.iterator().next();
+			record(true, element == null ? 0 : isbnOf.applyAsInt(element));
+		}
+	}
+
+	/**
+	 * Samples an update of the whole catalog, once in {@link #SAMPLE_RATE}
+	 * calls.
+	 */
+	private void sampleUpdate() {
+		if (adaptive && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+			record(true, 0);
+		}
+	}
+
+	/**
+	 * Records a sampled call, and decides whether to migrate once a window of
+	 * samples is complete.
+	 *
+	 * @param update
+	 *            whether the call updates books
+	 * @param isbn
+	 *            the ISBN of a book the call updates, 0 if none
+	 */
+	private synchronized void record(boolean update, int isbn) {
+		numSamples++;
+		sumCallsInFlight += gate.getReadLockCount();
+
+		if (update) {
+			numUpdates++;
+
+			if (isbn > 0) {
+				for (int recentIsbn : recentUpdates) {
+					if (recentIsbn == isbn) {
+						numConflicts++;
+						break;
+					}
+				}
+
+				recentUpdates[(int) (numRecentUpdates++ & (RECENT_UPDATES - 1))] = isbn;
+			}
+		}
+
+		if (numSamples < WINDOW_SAMPLES) {
+			return;
+		}
+
+		double concurrency = (double) sumCallsInFlight / numSamples;
+		double updateShare = (double) numUpdates / numSamples;
+		double conflictRate = numUpdates == 0 ? 0 : (double) numConflicts / numUpdates;
+		Mode preferredMode = concurrency >= FINE_MIN_CONCURRENCY && updateShare >= FINE_MIN_UPDATE_SHARE
+				&& conflictRate <= FINE_MAX_CONFLICT_RATE ? Mode.FINE : Mode.COARSE;
+
+		numSamples = 0;
+		sumCallsInFlight = 0;
+		numUpdates = 0;
+		numConflicts = 0;
+
+		if (preferredMode == mode) {
+			windowsPreferringOther = 0;
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		if (++windowsPreferringOther >= WINDOWS_TO_MIGRATE && now - lastMigrationNanos >= MIN_MIGRATION_INTERVAL_NANOS
+				&& migrationPending.compareAndSet(false, true)) {
+			windowsPreferringOther = 0;
+			lastMigrationNanos = now;
+			Migrator.EXECUTOR.execute(() -> {
+				try {
+					migrate(preferredMode);
+				} catch (BookStoreException ex) {
+					// Stay in the current mode, the next windows decide again.
+				} finally {
+					migrationPending.set(false);
+				}
+			});
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		enter();
+		try {
+			sampleUpdate(bookSet, StockBook::getISBN);
+			stockManager.addBooks(bookSet);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		enter();
+		try {
+			sampleUpdate(bookCopiesSet, BookCopy::getISBN);
+			stockManager.addCopies(bookCopiesSet);
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * Returns copies bought earlier to the store of the current mode, leaving
+	 * the sale misses alone. This is how the {@link StockEscrow} hands back the
+	 * copies of released and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	private void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		enter();
+		try {
+			if (mode == Mode.FINE) {
+				fineStore.returnCopies(bookCopiesSet);
+			} else {
+				coarseStore.returnCopies(bookCopiesSet);
+			}
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		enter();
+		try {
+			sampleRead();
+			return stockManager.getBooks();
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util.Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		enter();
+		try {
+			sampleUpdate(editorPicks, BookEditorPick::getISBN);
+			stockManager.updateEditorPicks(editorPicks);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		enter();
+		try {
+			sampleUpdate(bookCopiesToBuy, BookCopy::getISBN);
+			bookStore.buyBooks(bookCopiesToBuy);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		// The escrow buys the copies through this store, which passes the gate.
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		enter();
+		try {
+			sampleRead();
+			return stockManager.getBooksByISBN(isbnSet);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		enter();
+		try {
+			sampleRead();
+			return bookStore.getBooks(isbnSet);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		enter();
+		try {
+			sampleRead();
+			return bookStore.getEditorPicks(numBooks);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		enter();
+		try {
+			sampleRead();
+			return bookStore.getTopRatedBooks(numBooks);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		enter();
+		try {
+			sampleRead();
+			return stockManager.getBooksInDemand();
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		enter();
+		try {
+			sampleUpdate(bookRating, BookRating::getISBN);
+			bookStore.rateBooks(bookRating);
+		} finally {
+			exit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			enter();
+			try {
+				sampleUpdate();
+				stockManager.removeAllBooks();
+			} finally {
+				exit();
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		stockEscrow.removeBooks(isbnSet, () -> {
+			enter();
+			try {
+				sampleUpdate(isbnSet, Integer::intValue);
+				stockManager.removeBooks(isbnSet);
+			} finally {
+				exit();
+			}
+		});
+	}
+}
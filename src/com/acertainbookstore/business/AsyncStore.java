@@ -0,0 +1,287 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.acertainbookstore.interfaces.AsyncBookStore;
+import com.acertainbookstore.interfaces.AsyncStockManager;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link AsyncStore} implements the {@link AsyncBookStore} and
+ * {@link AsyncStockManager} functionalities for a store in the same process,
+ * by running its blocking calls on an executor. By default the calls of all
+ * stores share a cached pool of threads: a call may block, on the store's
+ * locks, on a queue of the store or on the network of a remote store, so a
+ * fixed number of threads would let blocked calls hold up the others, and a
+ * thread is added whenever all of them are busy. Callers wanting a bound pass
+ * their own executor.
+ *
+ * @see AsyncBookStore
+ * @see AsyncStockManager
+ */
+public class AsyncStore implements AsyncBookStore, AsyncStockManager {
+
+	/**
+	 * {@link Workers} holds the threads running the calls of all stores,
+	 * started when the first call is made and stopped after a minute idle.
+	 */
+	private static final class Workers {
+
+		/** The executor running the calls. */
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-async-call");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * {@link Call} is a blocking call to a store.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	@FunctionalInterface
+	private interface Call<T> {
+
+		/**
+		 * Makes the call.
+		 *
+		 * @return the result
+		 * @throws BookStoreException
+		 *             if the call failed
+		 */
+		T call() throws BookStoreException;
+	}
+
+	/** The store serving the clients. */
+	private final BookStore bookStore;
+
+	/** The store serving the stock managers. */
+	private final StockManager stockManager;
+
+	/** The executor running the calls, null for the shared one. */
+	private final Executor executor;
+
+	/**
+	 * Instantiates a new {@link AsyncStore} running the calls on the shared
+	 * threads.
+	 *
+	 * @param bookStore
+	 *            the store serving the clients
+	 * @param stockManager
+	 *            the store serving the stock managers
+	 */
+	public AsyncStore(BookStore bookStore, StockManager stockManager) {
+		this(bookStore, stockManager, null);
+	}
+
+	/**
+	 * Instantiates a new {@link AsyncStore}.
+	 *
+	 * @param bookStore
+	 *            the store serving the clients
+	 * @param stockManager
+	 *            the store serving the stock managers
+	 * @param executor
+	 *            the executor running the calls, null for the shared one
+	 */
+	public AsyncStore(BookStore bookStore, StockManager stockManager, Executor executor) {
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs a call on the executor.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 * @param call
+	 *            the call
+	 * @return the future of the result
+	 */
+	private <T> CompletableFuture<T> submit(Call<T> call) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+
+		try {
+			(executor != null ? executor : Workers.EXECUTOR).execute(() -> {
+				try {
+					future.complete(call.call());
+				} catch (BookStoreException | RuntimeException ex) {
+					future.completeExceptionally(ex);
+				} catch (Error error) {
+					// Fail the caller rather than leave it waiting, but let the
+					// error reach the thread.
+					future.completeExceptionally(error);
+					throw error;
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			future.completeExceptionally(ex);
+		}
+
+		return future;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#buyBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> booksToBuy) {
+		return submit(() -> {
+			bookStore.buyBooks(booksToBuy);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#rateBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating) {
+		return submit(() -> {
+			bookStore.rateBooks(bookRating);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> isbnSet) {
+		return submit(() -> bookStore.getBooks(isbnSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getTopRatedBooksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks) {
+		return submit(() -> bookStore.getTopRatedBooks(numBooks));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getEditorPicksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks) {
+		return submit(() -> bookStore.getEditorPicks(numBooks));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet) {
+		return submit(() -> {
+			stockManager.addBooks(bookSet);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addCopiesAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet) {
+		return submit(() -> {
+			stockManager.addCopies(bookCopiesSet);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksAsync() {
+		return submit(() -> stockManager.getBooks());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooksByISBNAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(Set<Integer> isbnSet) {
+		return submit(() -> stockManager.getBooksByISBN(isbnSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemandAsync()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync() {
+		return submit(() -> stockManager.getBooksInDemand());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#updateEditorPicksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> updateEditorPicksAsync(Set<BookEditorPick> editorPicks) {
+		return submit(() -> {
+			stockManager.updateEditorPicks(editorPicks);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeAllBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> removeAllBooksAsync() {
+		return submit(() -> {
+			stockManager.removeAllBooks();
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet) {
+		return submit(() -> {
+			stockManager.removeBooks(isbnSet);
+			return null;
+		});
+	}
+}
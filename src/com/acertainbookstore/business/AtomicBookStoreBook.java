@@ -0,0 +1,586 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link AtomicBookStoreBook} is the lock-free counterpart of
+ * {@link BookStoreBook}. The mutable parts of the book are kept in immutable
+ * state objects held by two {@link Slot}s, one for the stock and one for the
+ * rating and editor pick, which are replaced with compare-and-set, alone or
+ * together with the slots of other books in a {@link MultiSlotUpdate}. A book
+ * is in the store from the update adding it until the update removing it,
+ * and updates of a book which is not in the store fail, so no update can
+ * apply to a book after it was removed.
+ * <p>
+ * A book whose stock keeps failing compare-and-set under concurrent buyers is
+ * hot, and is split: its copies are then drawn through {@link StockShards},
+ * which refill from the book's own stock a slice of the remaining copies at a
+ * time. Once the book's stock cannot refill a dry shard, the shards are
+ * closed and their copies return to the stock, so the last copies are sold
+ * exactly as for any other book. Drawing from a shard only writes the slot of
+ * the shard.
+ *
+ * @see BookStoreBook
+ * @see LockFreeConcurrentCertainBookStore
+ */
+public class AtomicBookStoreBook extends ImmutableBook {
+
+	/** The number of failed compare-and-sets of buyers after which a book is split. */
+	private static final int SPLIT_THRESHOLD = 64;
+
+	/** The smallest number of copies worth splitting, a few for every shard. */
+	private static final int MIN_SPLIT_COPIES = StockShards.NUM_SHARDS * 4;
+
+	/** The value of the slots of a book not added to the store yet. */
+	private static final Object NOT_ADDED = new Object();
+
+	/** The value of the slots of a book removed from the store. */
+	private static final Object REMOVED = new Object();
+
+	/**
+	 * {@link StockState} holds the number of copies together with the number of
+	 * sale misses, since adding copies resets the sale misses atomically, and
+	 * the shards of the book if it is split.
+	 */
+	private static final class StockState {
+
+		/** The number of copies, not counting those in the shards. */
+		private final int numCopies;
+
+		/** The number of sale misses. */
+		private final long numSaleMisses;
+
+		/** The shards, null unless the book is split. */
+		private final StockShards shards;
+
+		private StockState(int numCopies, long numSaleMisses, StockShards shards) {
+			this.numCopies = numCopies;
+			this.numSaleMisses = numSaleMisses;
+			this.shards = shards;
+		}
+	}
+
+	/**
+	 * {@link InfoState} holds the total rating together with the number of
+	 * times rated, so that the average rating is always computed from a
+	 * consistent pair, and whether the book is editor picked.
+	 */
+	private static final class InfoState {
+
+		/** The total rating. */
+		private final long totalRating;
+
+		/** The number of times rated. */
+		private final long numTimesRated;
+
+		/** Whether the book is editor picked. */
+		private final boolean editorPick;
+
+		private InfoState(long totalRating, long numTimesRated, boolean editorPick) {
+			this.totalRating = totalRating;
+			this.numTimesRated = numTimesRated;
+			this.editorPick = editorPick;
+		}
+	}
+
+	/** The rating and editor pick of the book. */
+	private final Slot info;
+
+	/** The stock of the book. */
+	private final Slot stock;
+
+	/** The number of failed compare-and-sets of buyers since the book was last split. */
+	private final AtomicInteger numContendedBuys = new AtomicInteger();
+
+	/** The number of times the book was split. */
+	private final AtomicInteger numSplits = new AtomicInteger();
+
+	/** The {@link ImmutableBook} view of the book, null until first built. */
+	private ImmutableBook cachedBook = null;
+
+	/**
+	 * Instantiates a new {@link AtomicBookStoreBook} which is not in the store
+	 * until {@link #add(MultiSlotUpdate.Values, StockBook)}.
+	 *
+	 * @param bookToCopy
+	 *            the book to copy
+	 */
+	public AtomicBookStoreBook(Book bookToCopy) {
+		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy.getAuthor(), bookToCopy.getPrice());
+
+		long firstRank = Slot.reserveRanks(2);
+		this.info = new Slot(firstRank, NOT_ADDED);
+		this.stock = new Slot(firstRank + 1, NOT_ADDED);
+	}
+
+	/**
+	 * Adds the slots of the stock of the book to the slots of an update.
+	 *
+	 * @param slots
+	 *            the slots
+	 * @return the shards added, which plans must check the book still has
+	 */
+	StockShards addStockSlots(Collection<Slot> slots) {
+		slots.add(stock);
+		Object current = stock.read();
+		StockShards shards = (current instanceof StockState ? ((StockState) current).shards : null);
+
+		if (shards != null) {
+			shards.addSlots(slots);
+		}
+
+		return shards;
+	}
+
+	/**
+	 * Adds all slots of the book to the slots of an update.
+	 *
+	 * @param slots
+	 *            the slots
+	 * @return the shards added, which plans must check the book still has
+	 */
+	StockShards addSlots(Collection<Slot> slots) {
+		slots.add(info);
+		return addStockSlots(slots);
+	}
+
+	/**
+	 * Adds the slot of the rating and editor pick to the slots of an update.
+	 *
+	 * @param slots
+	 *            the slots
+	 */
+	void addInfoSlot(Collection<Slot> slots) {
+		slots.add(info);
+	}
+
+	private StockState stockState(Slot.Reader reader) throws BookStoreException {
+		return toStockState(reader.read(stock));
+	}
+
+	private StockState toStockState(Object current) throws BookStoreException {
+		if (!(current instanceof StockState)) {
+			throw new BookStoreException(BookStoreConstants.ISBN + getISBN() + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return (StockState) current;
+	}
+
+	private InfoState infoState(Slot.Reader reader) throws BookStoreException {
+		Object current = reader.read(info);
+
+		if (!(current instanceof InfoState)) {
+			throw new BookStoreException(BookStoreConstants.ISBN + getISBN() + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return (InfoState) current;
+	}
+
+	/**
+	 * Checks whether the book is in the store.
+	 *
+	 * @param reader
+	 *            the reader of the slots
+	 * @return true, if it was added and not removed
+	 */
+	boolean isInStore(Slot.Reader reader) {
+		return reader.read(info) instanceof InfoState;
+	}
+
+	/**
+	 * Adds the book to the store in an update.
+	 *
+	 * @param values
+	 *            the values of the update
+	 * @param bookToCopy
+	 *            the stock, rating and editor pick to start from
+	 */
+	void add(MultiSlotUpdate.Values values, StockBook bookToCopy) {
+		values.set(info, new InfoState(bookToCopy.getTotalRating(), bookToCopy.getNumTimesRated(),
+				bookToCopy.isEditorPick()));
+		values.set(stock, new StockState(bookToCopy.getNumCopies(), bookToCopy.getNumSaleMisses(), null));
+	}
+
+	/**
+	 * Removes the book from the store in an update, closing its shards.
+	 *
+	 * @param values
+	 *            the values of the update
+	 * @param shards
+	 *            the shards added to the update
+	 * @return true, if the book was removed, false if it was split or unsplit
+	 *         since its slots were added
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	boolean remove(MultiSlotUpdate.Values values, StockShards shards) throws BookStoreException {
+		if (stockState(values).shards != shards) {
+			return false;
+		}
+
+		if (shards != null) {
+			shards.close(values);
+		}
+
+		values.set(info, REMOVED);
+		values.set(stock, REMOVED);
+		return true;
+	}
+
+	/**
+	 * Gets the number of copies, those in the shards included.
+	 *
+	 * @param reader
+	 *            the reader of the slots
+	 * @param shards
+	 *            the shards added to the update
+	 * @return the number of copies, or -1 if the book was split or unsplit
+	 *         since its slots were added
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	int getNumCopies(Slot.Reader reader, StockShards shards) throws BookStoreException {
+		StockState current = stockState(reader);
+
+		if (current.shards != shards) {
+			return -1;
+		}
+
+		return current.numCopies + (shards != null ? shards.getNumCopies(reader) : 0);
+	}
+
+	/**
+	 * Takes copies in an update, merging the shards back into the stock if the
+	 * stock alone has too few. The copies must be there.
+	 *
+	 * @param values
+	 *            the values of the update, holding all slots of the stock
+	 * @param numCopies
+	 *            the number of copies
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	void takeCopies(MultiSlotUpdate.Values values, int numCopies) throws BookStoreException {
+		StockState current = stockState(values);
+
+		if (current.numCopies >= numCopies) {
+			values.set(stock, new StockState(current.numCopies - numCopies, current.numSaleMisses, current.shards));
+		} else {
+			int total = current.numCopies + current.shards.getNumCopies(values);
+			current.shards.close(values);
+			values.set(stock, new StockState(total - numCopies, current.numSaleMisses, null));
+		}
+	}
+
+	/**
+	 * Increments the amount of missed sales of the book in an update.
+	 *
+	 * @param values
+	 *            the values of the update
+	 * @param numSaleMisses
+	 *            the number of sales misses encountered
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	void addSaleMisses(MultiSlotUpdate.Values values, int numSaleMisses) throws BookStoreException {
+		StockState current = stockState(values);
+		values.set(stock, new StockState(current.numCopies, current.numSaleMisses + numSaleMisses, current.shards));
+	}
+
+	/**
+	 * Adds copies to the stock in an update.
+	 *
+	 * @param values
+	 *            the values of the update
+	 * @param numCopies
+	 *            the number of copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	void addCopies(MultiSlotUpdate.Values values, int numCopies, boolean restock) throws BookStoreException {
+		StockState current = stockState(values);
+		values.set(stock, new StockState(current.numCopies + numCopies, (restock ? 0 : current.numSaleMisses),
+				current.shards));
+	}
+
+	/**
+	 * Adds the rating to the total rating of the book in an update.
+	 *
+	 * @param values
+	 *            the values of the update
+	 * @param rating
+	 *            the rating
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	void addRating(MultiSlotUpdate.Values values, int rating) throws BookStoreException {
+		InfoState current = infoState(values);
+		values.set(info, new InfoState(current.totalRating + rating, current.numTimesRated + 1, current.editorPick));
+	}
+
+	/**
+	 * Sets the editor pick of the book in an update.
+	 *
+	 * @param values
+	 *            the values of the update
+	 * @param editorPick
+	 *            the new editor pick
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	void setEditorPick(MultiSlotUpdate.Values values, boolean editorPick) throws BookStoreException {
+		InfoState current = infoState(values);
+		values.set(info, new InfoState(current.totalRating, current.numTimesRated, editorPick));
+	}
+
+	/**
+	 * Checks if someone tried to buy the book, while the book was not in stock,
+	 * also known as having sale misses.
+	 *
+	 * @param reader
+	 *            the reader of the slots
+	 * @return true, if successful
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	boolean hadSaleMiss(Slot.Reader reader) throws BookStoreException {
+		return stockState(reader).numSaleMisses > 0;
+	}
+
+	/**
+	 * Checks if the book is editor picked.
+	 *
+	 * @param reader
+	 *            the reader of the slots
+	 * @return true, if it is editor picked
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	boolean isEditorPick(Slot.Reader reader) throws BookStoreException {
+		return infoState(reader).editorPick;
+	}
+
+	/**
+	 * Gets the average rating.
+	 *
+	 * @param reader
+	 *            the reader of the slots
+	 * @return the average rating
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	float getAverageRating(Slot.Reader reader) throws BookStoreException {
+		InfoState current = infoState(reader);
+		return (current.numTimesRated == 0 ? -1.0f : (float) current.totalRating / current.numTimesRated);
+	}
+
+	/**
+	 * Buys copies of the book, or records the copies missing as sale misses if
+	 * too few are left. Copies of an unsplit book are taken with a
+	 * compare-and-set of its stock, those of a split book from the shard of the
+	 * calling thread.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @return true, if the copies were bought, false if sale misses were
+	 *         recorded instead
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	boolean buyCopies(int numCopies) throws BookStoreException {
+		while (true) {
+			Object current = stock.settle();
+			StockState currentStock = toStockState(current);
+
+			if (currentStock.shards != null) {
+				Boolean bought = buyCopies(currentStock.shards, numCopies);
+
+				if (bought != null) {
+					return bought;
+				}
+			} else if (currentStock.numCopies < numCopies) {
+				if (stock.compareAndSet(current, new StockState(currentStock.numCopies,
+						currentStock.numSaleMisses + numCopies - currentStock.numCopies, null))) {
+					return false;
+				}
+			} else if (stock.compareAndSet(current,
+					new StockState(currentStock.numCopies - numCopies, currentStock.numSaleMisses, null))) {
+				return true;
+			} else if (numContendedBuys.incrementAndGet() >= SPLIT_THRESHOLD) {
+				split();
+			}
+		}
+	}
+
+	/**
+	 * Buys copies of a split book. The copies are drawn from the shard of the
+	 * calling thread; a dry shard is refilled from the stock together with the
+	 * draw, and once the stock cannot refill it the shards are merged back into
+	 * the stock.
+	 *
+	 * @param shards
+	 *            the shards
+	 * @param numCopies
+	 *            the number of copies
+	 * @return true, if the copies were bought, false if sale misses were
+	 *         recorded instead, null if the book was unsplit meanwhile
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	private Boolean buyCopies(StockShards shards, int numCopies) throws BookStoreException {
+		Slot shard = shards.shardOfThread();
+		Object current = shard.settle();
+
+		if (current == StockShards.CLOSED) {
+			return null;
+		}
+
+		int numShardCopies = StockShards.getNumCopies(current);
+
+		if (numShardCopies >= numCopies) {
+			return (shard.compareAndSet(current, new StockShards.ShardStock(numShardCopies - numCopies)) ? true : null);
+		}
+
+		Boolean refilled = MultiSlotUpdate.apply(Arrays.asList(stock, shard), values -> {
+			StockState currentStock = stockState(values);
+
+			if (currentStock.shards != shards) {
+				return null;
+			}
+
+			int numCopiesLeft = StockShards.getNumCopies(values.read(shard));
+			int numRefillCopies = currentStock.numCopies / (StockShards.NUM_SHARDS * 2);
+			int numMissingCopies = numCopies - numCopiesLeft;
+
+			if (numMissingCopies <= 0) {
+				values.set(shard, new StockShards.ShardStock(-numMissingCopies));
+			} else if (numRefillCopies > 0 && currentStock.numCopies >= numMissingCopies + numRefillCopies) {
+				values.set(shard, new StockShards.ShardStock(numRefillCopies));
+				values.set(stock, new StockState(currentStock.numCopies - numMissingCopies - numRefillCopies,
+						currentStock.numSaleMisses, shards));
+			} else {
+				return false;
+			}
+
+			return true;
+		});
+
+		if (refilled == null || refilled) {
+			return refilled;
+		}
+
+		// Too few copies are left to spread them over the shards.
+		Collection<Slot> slots = new ArrayList<>();
+		slots.add(stock);
+		shards.addSlots(slots);
+
+		return MultiSlotUpdate.apply(slots, values -> {
+			int total = getNumCopies(values, shards);
+
+			if (total < 0) {
+				return null;
+			}
+
+			StockState currentStock = stockState(values);
+			shards.close(values);
+
+			if (total >= numCopies) {
+				values.set(stock, new StockState(total - numCopies, currentStock.numSaleMisses, null));
+				return true;
+			}
+
+			values.set(stock, new StockState(total, currentStock.numSaleMisses + numCopies - total, null));
+			return false;
+		});
+	}
+
+	/**
+	 * Splits the stock of the book if it has enough copies and there is more
+	 * than one processor to spread them over.
+	 */
+	private void split() {
+		numContendedBuys.set(0);
+
+		Object current = stock.settle();
+
+		if (StockShards.NUM_SHARDS > 1 && current instanceof StockState) {
+			StockState currentStock = (StockState) current;
+
+			if (currentStock.shards == null && currentStock.numCopies >= MIN_SPLIT_COPIES && stock.compareAndSet(
+					current, new StockState(currentStock.numCopies, currentStock.numSaleMisses, new StockShards()))) {
+				numSplits.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of times the book was split.
+	 *
+	 * @return the number of splits
+	 */
+	int getNumSplits() {
+		return numSplits.get();
+	}
+
+	/**
+	 * Returns a string representation of the book.
+	 *
+	 * @return the string
+	 */
+	@Override
+	public String toString() {
+		return "ISBN = " + this.getISBN() + ", Title = " + this.getTitle() + ", Author = " + this.getAuthor()
+				+ ", Price = " + this.getPrice();
+	}
+
+	/**
+	 * Returns a {@link ImmutableBook} copy of the book.
+	 *
+	 * @return the immutable book
+	 */
+	public ImmutableBook immutableBook() {
+		ImmutableBook book = cachedBook;
+
+		// The fields of the view never change and are final, so it is built
+		// once and a racing reader may at worst build it again.
+		if (book == null) {
+			book = new ImmutableBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice());
+			cachedBook = book;
+		}
+
+		return book;
+	}
+
+	/**
+	 * Returns a {@link StockBook} copy of the book, with the copies in the
+	 * shards added in.
+	 *
+	 * @param reader
+	 *            the reader of the slots
+	 * @return the stock book
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	StockBook immutableStockBook(Slot.Reader reader) throws BookStoreException {
+		StockState currentStock = stockState(reader);
+		InfoState currentInfo = infoState(reader);
+		int numCopies = currentStock.numCopies;
+
+		if (currentStock.shards != null) {
+			numCopies += currentStock.shards.getNumCopies(reader);
+		}
+
+		return new ImmutableStockBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(), numCopies,
+				currentStock.numSaleMisses, currentInfo.numTimesRated, currentInfo.totalRating,
+				currentInfo.editorPick);
+	}
+}
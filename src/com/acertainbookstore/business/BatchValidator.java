@@ -0,0 +1,144 @@
+package com.acertainbookstore.business;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BatchValidator} runs a check on every element of a batch, splitting
+ * large batches over the common fork-join pool. Stores use it for the checks
+ * which need no lock before locking, and for the checks against the catalog
+ * while holding locks which exclude changes to it, so the pool threads read a
+ * catalog which does not change under them.
+ */
+final class BatchValidator {
+
+	/** The smallest batch checked in parallel. */
+	static final int PARALLEL_THRESHOLD = 4096;
+
+	/** The number of elements a task checks without splitting further. */
+	private static final int LEAF_SIZE = 1024;
+
+	/**
+	 * {@link Check} is a check of one element of a batch.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 */
+	@FunctionalInterface
+	interface Check<T> {
+
+		/**
+		 * Checks an element.
+		 *
+		 * @param element
+		 *            the element
+		 * @throws BookStoreException
+		 *             if the element is invalid
+		 */
+		void check(T element) throws BookStoreException;
+	}
+
+	/**
+	 * {@link CheckTask} checks a range of a batch and returns the failure of
+	 * its leftmost invalid element, or null if all are valid.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 */
+	private static final class CheckTask<T> extends RecursiveTask<BookStoreException> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The batch. */
+		private final T[] batch;
+
+		/** The first element of the range. */
+		private final int from;
+
+		/** The element after the range. */
+		private final int to;
+
+		/** The check. */
+		private final Check<? super T> check;
+
+		/** Whether any task found an invalid element, to stop the others. */
+		private final AtomicBoolean failed;
+
+		CheckTask(T[] batch, int from, int to, Check<? super T> check, AtomicBoolean failed) {
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+			this.check = check;
+			this.failed = failed;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected BookStoreException compute() {
+			if (to - from <= LEAF_SIZE) {
+				for (int i = from; i < to && !failed.get(); i++) {
+					try {
+						check.check(batch[i]);
+					} catch (BookStoreException ex) {
+						failed.set(true);
+						return ex;
+					}
+				}
+
+				return null;
+			}
+
+			int middle = (from + to) >>> 1;
+			CheckTask<T> left = new CheckTask<>(batch, from, middle, check, failed);
+			left.fork();
+			BookStoreException rightFailure = new CheckTask<>(batch, middle, to, check, failed).compute();
+			BookStoreException leftFailure = left.join();
+			return leftFailure != null ? leftFailure : rightFailure;
+		}
+	}
+
+	private BatchValidator() {
+		// Prevent instantiation.
+	}
+
+	/**
+	 * Runs a check on every element of a batch, in parallel if the batch is
+	 * large.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 * @param batch
+	 *            the batch
+	 * @param check
+	 *            the check
+	 * @throws BookStoreException
+	 *             the failure of an invalid element, if any
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> void checkAll(Collection<? extends T> batch, Check<? super T> check) throws BookStoreException {
+		if (batch.size() < PARALLEL_THRESHOLD) {
+			for (T element : batch) {
+				check.check(element);
+			}
+
+			return;
+		}
+
+		T[] elements = (T[]) batch.toArray();
+		BookStoreException failure = ForkJoinPool.commonPool()
+				.invoke(new CheckTask<>(elements, 0, elements.length, check, new AtomicBoolean()));
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -1,11 +1,25 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link BookStoreBook} implements all parts of the book. Only parts of it are
  * available in the bookstore client and stock manager, cf. the {@link Book} and
  * {@link StockBook} interfaces.
+ * <p>
+ * The ratings are accumulated in striped adders, so that concurrent
+ * <code>addRating</code> calls on a popular book neither need an exclusive lock
+ * nor contend on one counter. The total rating and the number of times rated
+ * are two adders, so a reader racing with raters may see one rating counted in
+ * one and not yet in the other; stores which let ratings run under a shared
+ * lock validate their reads with a {@link RatingEpoch}.
+ * <p>
+ * The immutable views of the book are cached and share its strings, so
+ * reading a book which did not change since it was last read allocates
+ * nothing. The views are immutable, so a racing reader may at worst build one
+ * again.
  * 
  * @see Book
  * @see StockBook
@@ -17,10 +31,10 @@ public class BookStoreBook extends ImmutableBook {
 	private int numCopies;
 
 	/** The total rating. */
-	private long totalRating;
+	private final LongAdder totalRating = new LongAdder();
 
 	/** The number of times rated. */
-	private long numTimesRated;
+	private final LongAdder numTimesRated = new LongAdder();
 
 	/** The number of sale misses. */
 	private long numSaleMisses;
@@ -28,6 +42,12 @@ public class BookStoreBook extends ImmutableBook {
 	/** Whether the book is editor picked. */
 	private boolean editorPick;
 
+	/** The {@link ImmutableBook} view of the book, null until first built. */
+	private ImmutableBook cachedBook = null;
+
+	/** The latest {@link ImmutableStockBook} view of the book, null until first built. */
+	private ImmutableStockBook cachedStockBook = null;
+
 	/**
 	 * Instantiates a new {@link BookStoreBook}.
 	 *
@@ -75,7 +95,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the total rating
 	 */
 	public long getTotalRating() {
-		return totalRating;
+		return totalRating.sum();
 	}
 
 	/**
@@ -84,7 +104,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of times rated
 	 */
 	public long getNumTimesRated() {
-		return numTimesRated;
+		return numTimesRated.sum();
 	}
 
 	/**
@@ -111,7 +131,8 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the average rating
 	 */
 	public float getAverageRating() {
-		return (numTimesRated == 0 ? -1.0f : (float) totalRating / numTimesRated);
+		long timesRated = numTimesRated.sum();
+		return (timesRated == 0 ? -1.0f : (float) totalRating.sum() / timesRated);
 	}
 
 	/**
@@ -130,7 +151,8 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new total rating
 	 */
 	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
+		this.totalRating.reset();
+		this.totalRating.add(totalRating);
 	}
 
 	/**
@@ -140,7 +162,8 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new number of times rated
 	 */
 	private void setNumTimesRated(long numTimesRated) {
-		this.numTimesRated = numTimesRated;
+		this.numTimesRated.reset();
+		this.numTimesRated.add(numTimesRated);
 	}
 
 	/**
@@ -215,6 +238,18 @@ public class BookStoreBook extends ImmutableBook {
 		}
 	}
 
+	/**
+	 * Gives back <code>numCopies</code> copies bought earlier. Unlike
+	 * {@link #addCopies(int)} the sale misses are left untouched, since no new
+	 * stock arrived.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	public void returnCopies(int numCopies) {
+		this.numCopies += numCopies;
+	}
+
 	/**
 	 * Increments the amount of missed sales of the book.
 	 * 
@@ -233,8 +268,8 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addRating(int rating) {
 		if (!BookStoreUtility.isInvalidRating(rating)) {
-			this.totalRating += rating;
-			this.numTimesRated++;
+			this.totalRating.add(rating);
+			this.numTimesRated.increment();
 		}
 	}
 
@@ -265,8 +300,15 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the immutable book
 	 */
 	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice());
+		ImmutableBook book = cachedBook;
+
+		// The fields of the view never change, so it is built once.
+		if (book == null) {
+			book = new ImmutableBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice());
+			cachedBook = book;
+		}
+
+		return book;
 	}
 
 	/**
@@ -275,9 +317,24 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the stock book
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.numSaleMisses, this.numTimesRated, this.totalRating,
-				this.editorPick);
+		int currentNumCopies = this.numCopies;
+		long currentNumSaleMisses = this.numSaleMisses;
+		long currentNumTimesRated = this.getNumTimesRated();
+		long currentTotalRating = this.getTotalRating();
+		boolean currentEditorPick = this.editorPick;
+		ImmutableStockBook book = cachedStockBook;
+
+		// The view is reused as long as it shows the current state.
+		if (book == null || book.getNumCopies() != currentNumCopies
+				|| book.getNumSaleMisses() != currentNumSaleMisses || book.getNumTimesRated() != currentNumTimesRated
+				|| book.getTotalRating() != currentTotalRating || book.isEditorPick() != currentEditorPick) {
+			book = new ImmutableStockBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(),
+					currentNumCopies, currentNumSaleMisses, currentNumTimesRated, currentTotalRating,
+					currentEditorPick);
+			cachedStockBook = book;
+		}
+
+		return book;
 	}
 
 	/**
@@ -286,7 +343,6 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the book store book
 	 */
 	public BookStoreBook copy() {
-		return new BookStoreBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies);
+		return new BookStoreBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(), this.numCopies);
 	}
 }
@@ -0,0 +1,79 @@
+package com.acertainbookstore.business;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link CatalogListing} caches the list of all books of a store. The store
+ * counts a version on every change, and the list is only rebuilt when the
+ * version moved since it was built, so polling an unchanged catalog neither
+ * locks nor copies anything.
+ * <p>
+ * Stores must count a change once it is made but while it is still hidden
+ * from readers, that is before releasing the locks it holds or ending its
+ * rating batch, and must not count operations which failed without changing
+ * anything, so those do not force the next list to be rebuilt. A list is
+ * stamped with the version read before it was built, so it reflects at least
+ * the changes counted by then, and it is handed out only as long as no other
+ * change was counted.
+ *
+ * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+ */
+public class CatalogListing {
+
+	/**
+	 * {@link Snapshot} is a list of books with the version it was built at.
+	 */
+	private static final class Snapshot {
+
+		/** The version. */
+		private final long version;
+
+		/** The books. */
+		private final List<StockBook> books;
+
+		Snapshot(long version, List<StockBook> books) {
+			this.version = version;
+			this.books = books;
+		}
+	}
+
+	/** The number of changes to the store. */
+	private final AtomicLong version = new AtomicLong();
+
+	/** The latest list built, null if none was. */
+	private volatile Snapshot snapshot = null;
+
+	/**
+	 * Records a change to the store.
+	 */
+	public void modified() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Gets the list of all books, building it with <code>listBooks</code> if
+	 * the store changed since it was last built.
+	 *
+	 * @param listBooks
+	 *            the read building the list
+	 * @return the books, unmodifiable
+	 * @throws BookStoreException
+	 *             if building the list failed
+	 */
+	public List<StockBook> getBooks(RatingEpoch.RatedRead<List<StockBook>> listBooks) throws BookStoreException {
+		long currentVersion = version.get();
+		Snapshot current = snapshot;
+
+		if (current != null && current.version == currentVersion) {
+			return current.books;
+		}
+
+		List<StockBook> books = Collections.unmodifiableList(listBooks.read());
+		snapshot = new Snapshot(currentVersion, books);
+		return books;
+	}
+}
@@ -0,0 +1,412 @@
+package com.acertainbookstore.business;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link CatalogLoader} streams books from a file into a store. The file is
+ * read in chunks of records, the chunks are parsed and validated by a pool of
+ * threads, and each chunk is added with its own <code>addBooks</code> call, in
+ * file order. Only a bounded number of chunks is in flight at any time, so
+ * memory stays bounded however large the file, and the store's locks are held
+ * for one chunk at a time rather than for the whole catalog.
+ * <p>
+ * Two formats are read:
+ * <ul>
+ * <li>CSV in UTF-8, one book per line as
+ * <code>isbn,title,author,price,numCopies</code>. Fields may be quoted with
+ * <code>"</code>, doubling quotes inside them; blank lines are skipped.</li>
+ * <li>Binary, a sequence of records as written by
+ * {@link #writeBinary(Iterable, Path)}: the ISBN as an int, the title and
+ * author in modified UTF-8, the price as a float and the number of copies as an
+ * int.</li>
+ * </ul>
+ * Loading is not atomic: it stops at the first chunk which is malformed,
+ * invalid or rejected by the store, after the chunks before it were added.
+ *
+ * @see StockManager#addBooks(Set)
+ */
+public class CatalogLoader {
+
+	/** The default number of books added per call. */
+	public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+	/** The number of fields of a CSV record. */
+	private static final int NUM_CSV_FIELDS = 5;
+
+	/**
+	 * {@link ChunkReader} cuts a file into chunks of records.
+	 */
+	private interface ChunkReader {
+
+		/**
+		 * Reads the next chunk.
+		 *
+		 * @return the task parsing and validating the chunk, or null at the end
+		 *         of the file
+		 * @throws IOException
+		 *             if the file cannot be read
+		 * @throws BookStoreException
+		 *             if the file is malformed
+		 */
+		Callable<Set<StockBook>> nextChunk() throws IOException, BookStoreException;
+	}
+
+	/** The store the books are added to. */
+	private final StockManager stockManager;
+
+	/** The number of books added per call. */
+	private final int chunkSize;
+
+	/** The number of threads parsing and validating chunks. */
+	private final int parallelism;
+
+	/**
+	 * Instantiates a new {@link CatalogLoader} adding chunks of the default
+	 * size, with a thread per processor.
+	 *
+	 * @param stockManager
+	 *            the store the books are added to
+	 */
+	public CatalogLoader(StockManager stockManager) {
+		this(stockManager, DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates a new {@link CatalogLoader}.
+	 *
+	 * @param stockManager
+	 *            the store the books are added to
+	 * @param chunkSize
+	 *            the number of books added per call
+	 * @param parallelism
+	 *            the number of threads parsing and validating chunks
+	 */
+	public CatalogLoader(StockManager stockManager, int chunkSize, int parallelism) {
+		if (stockManager == null) {
+			throw new IllegalArgumentException("stockManager must not be null");
+		}
+
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize = " + chunkSize + ", but it must be positive");
+		}
+
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism = " + parallelism + ", but it must be positive");
+		}
+
+		this.stockManager = stockManager;
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Loads the books of a CSV file.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the number of books added
+	 * @throws BookStoreException
+	 *             if the file cannot be read, a record is malformed or invalid,
+	 *             or the store rejects a chunk
+	 */
+	public long loadCsv(Path file) throws BookStoreException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			long[] lineNumber = { 0 };
+
+			return load(() -> {
+				List<String> lines = new ArrayList<>(chunkSize);
+				long firstLineNumber = lineNumber[0] + 1;
+				String line;
+
+				while (lines.size() < chunkSize && (line = reader.readLine()) != null) {
+					lines.add(line);
+				}
+
+				lineNumber[0] += lines.size();
+				return lines.isEmpty() ? null : () -> parseCsv(lines, firstLineNumber);
+			});
+		} catch (IOException ex) {
+			throw new BookStoreException(ex);
+		}
+	}
+
+	/**
+	 * Loads the books of a binary file.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the number of books added
+	 * @throws BookStoreException
+	 *             if the file cannot be read, a record is truncated or invalid,
+	 *             or the store rejects a chunk
+	 */
+	public long loadBinary(Path file) throws BookStoreException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			long[] recordNumber = { 0 };
+
+			// Records are not framed, so they are decoded while reading and
+			// only validated in parallel.
+			return load(() -> {
+				List<StockBook> books = new ArrayList<>(chunkSize);
+
+				while (books.size() < chunkSize) {
+					in.mark(1);
+
+					if (in.read() < 0) {
+						break;
+					}
+
+					in.reset();
+					recordNumber[0]++;
+
+					try {
+						books.add(new ImmutableStockBook(in.readInt(), in.readUTF(), in.readUTF(), in.readFloat(),
+								in.readInt(), 0, 0, 0, false));
+					} catch (EOFException ex) {
+						throw new BookStoreException(
+								BookStoreConstants.RECORD + recordNumber[0] + BookStoreConstants.INVALID, ex);
+					}
+				}
+
+				return books.isEmpty() ? null : () -> validate(books);
+			});
+		} catch (IOException ex) {
+			throw new BookStoreException(ex);
+		}
+	}
+
+	/**
+	 * Writes books to a binary file which {@link #loadBinary(Path)} reads.
+	 *
+	 * @param books
+	 *            the books
+	 * @param file
+	 *            the file
+	 * @throws BookStoreException
+	 *             if the file cannot be written
+	 */
+	public static void writeBinary(Iterable<? extends StockBook> books, Path file) throws BookStoreException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			for (StockBook book : books) {
+				out.writeInt(book.getISBN());
+				out.writeUTF(book.getTitle());
+				out.writeUTF(book.getAuthor());
+				out.writeFloat(book.getPrice());
+				out.writeInt(book.getNumCopies());
+			}
+		} catch (IOException ex) {
+			throw new BookStoreException(ex);
+		}
+	}
+
+	/**
+	 * Runs the pipeline: reads chunks, hands them to the parsing threads and
+	 * adds them to the store in order as they are ready.
+	 *
+	 * @param reader
+	 *            the chunk reader
+	 * @return the number of books added
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws BookStoreException
+	 *             if a chunk is malformed or invalid, or the store rejects it
+	 */
+	private long load(ChunkReader reader) throws IOException, BookStoreException {
+		ExecutorService parsers = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-catalog-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// Two chunks per thread keep the threads busy while a chunk is added.
+		int maxInFlight = parallelism << 1;
+		ArrayDeque<Future<Set<StockBook>>> inFlight = new ArrayDeque<>(maxInFlight);
+		long numBooks = 0;
+
+		try {
+			Callable<Set<StockBook>> chunk;
+
+			while ((chunk = reader.nextChunk()) != null) {
+				if (inFlight.size() == maxInFlight) {
+					numBooks += commit(inFlight.poll());
+				}
+
+				inFlight.add(parsers.submit(chunk));
+			}
+
+			while (!inFlight.isEmpty()) {
+				numBooks += commit(inFlight.poll());
+			}
+
+			return numBooks;
+		} finally {
+			parsers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for a chunk to be parsed and adds it to the store.
+	 *
+	 * @param chunk
+	 *            the chunk
+	 * @return the number of books added
+	 * @throws BookStoreException
+	 *             if the chunk is malformed or invalid, or the store rejects it
+	 */
+	private int commit(Future<Set<StockBook>> chunk) throws BookStoreException {
+		Set<StockBook> books;
+
+		try {
+			books = chunk.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+
+			throw new BookStoreException(ex.getCause());
+		}
+
+		stockManager.addBooks(books);
+		return books.size();
+	}
+
+	/**
+	 * Parses and validates a chunk of CSV lines.
+	 *
+	 * @param lines
+	 *            the lines
+	 * @param firstLineNumber
+	 *            the number of the first line in the file, from 1
+	 * @return the books
+	 * @throws BookStoreException
+	 *             if a line is malformed or a book is invalid
+	 */
+	private static Set<StockBook> parseCsv(List<String> lines, long firstLineNumber) throws BookStoreException {
+		List<StockBook> books = new ArrayList<>(lines.size());
+		long lineNumber = firstLineNumber;
+
+		for (String line : lines) {
+			if (!line.trim().isEmpty()) {
+				books.add(parseCsv(line, lineNumber));
+			}
+
+			lineNumber++;
+		}
+
+		return validate(books);
+	}
+
+	/**
+	 * Parses a CSV line.
+	 *
+	 * @param line
+	 *            the line
+	 * @param lineNumber
+	 *            the number of the line in the file
+	 * @return the book
+	 * @throws BookStoreException
+	 *             if the line is malformed
+	 */
+	private static StockBook parseCsv(String line, long lineNumber) throws BookStoreException {
+		List<String> fields = new ArrayList<>(NUM_CSV_FIELDS);
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+
+		fields.add(field.toString());
+
+		if (quoted || fields.size() != NUM_CSV_FIELDS) {
+			throw new BookStoreException(BookStoreConstants.RECORD + lineNumber + BookStoreConstants.INVALID);
+		}
+
+		try {
+			return new ImmutableStockBook(Integer.parseInt(fields.get(0).trim()), fields.get(1), fields.get(2),
+					Float.parseFloat(fields.get(3).trim()), Integer.parseInt(fields.get(4).trim()), 0, 0, 0, false);
+		} catch (NumberFormatException ex) {
+			throw new BookStoreException(BookStoreConstants.RECORD + lineNumber + BookStoreConstants.INVALID, ex);
+		}
+	}
+
+	/**
+	 * Validates a chunk of books as <code>addBooks</code> does, except for
+	 * books already in the store, which the store checks when adding.
+	 *
+	 * @param books
+	 *            the books
+	 * @return the books as a set
+	 * @throws BookStoreException
+	 *             if a book is invalid or an ISBN repeats within the chunk
+	 */
+	private static Set<StockBook> validate(List<StockBook> books) throws BookStoreException {
+		Set<StockBook> bookSet = new HashSet<>(books.size() << 1);
+		Set<Integer> isbns = new HashSet<>(books.size() << 1);
+
+		for (StockBook book : books) {
+			if (BookStoreUtility.isInvalidISBN(book.getISBN())) {
+				throw new BookStoreException(BookStoreConstants.ISBN + book.getISBN() + BookStoreConstants.INVALID);
+			}
+
+			if (BookStoreUtility.isEmpty(book.getTitle()) || BookStoreUtility.isEmpty(book.getAuthor())
+					|| BookStoreUtility.isInvalidNoCopies(book.getNumCopies()) || !(book.getPrice() >= 0.0)) {
+				throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+			}
+
+			// The set of books would silently keep only one of them.
+			if (!isbns.add(book.getISBN())) {
+				throw new BookStoreException(BookStoreConstants.ISBN + book.getISBN() + BookStoreConstants.DUPLICATED);
+			}
+
+			bookSet.add(book);
+		}
+
+		return bookSet;
+	}
+}
@@ -0,0 +1,577 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link ColumnarConcurrentCertainBookStore} implements the {@link BookStore}
+ * and {@link StockManager} functionalities on top of a {@link StockTable},
+ * guarded by a single read-write lock. By default the table is a
+ * {@link ColumnarStockTable}: since the stock of all books sits in parallel
+ * primitive arrays, the scans behind <code>getTopRatedBooks</code> and
+ * <code>getEditorPicks</code> stream through contiguous memory.
+ * <p>
+ * Slots move when books are removed, so every operation resolves ISBNs to
+ * slots under the lock it then works under.
+ *
+ * @see BookStore
+ * @see StockManager
+ * @see StockTable
+ */
+public class ColumnarConcurrentCertainBookStore implements ReservingBookStore, StockManager {
+
+	/** The stock table. */
+	private StockTable stockTable = null;
+
+	private ReadWriteLock lock = null;
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/**
+	 * Instantiates a new {@link ColumnarConcurrentCertainBookStore} on a
+	 * {@link ColumnarStockTable}.
+	 */
+	public ColumnarConcurrentCertainBookStore() {
+		this(new ColumnarStockTable());
+	}
+
+	/**
+	 * Instantiates a new {@link ColumnarConcurrentCertainBookStore}.
+	 *
+	 * @param stockTable
+	 *            the empty table to store the books in
+	 */
+	public ColumnarConcurrentCertainBookStore(StockTable stockTable) {
+		// Constructors are not synchronized
+		this.stockTable = stockTable;
+		lock = new ReentrantReadWriteLock();
+	}
+
+	private void takeReadLock() {
+		lock.readLock().lock();
+	}
+
+	private void releaseReadLock() {
+		lock.readLock().unlock();
+	}
+
+	private void takeWriteLock() {
+		lock.writeLock().lock();
+	}
+
+	private void releaseWriteLock() {
+		lock.writeLock().unlock();
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (stockTable.contains(isbn)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private int validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		int slot = validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		return slot;
+	}
+
+	/**
+	 * Checks that a book is in stock.
+	 *
+	 * @param ISBN
+	 *            the ISBN
+	 * @return the slot of the book
+	 * @throws BookStoreException
+	 *             if the ISBN is invalid or the book is not in stock
+	 */
+	private int validateISBNInStock(int ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		int slot = stockTable.slotOf(ISBN);
+
+		if (slot < 0) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return slot;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeWriteLock();
+
+		try {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			for (StockBook book : bookSet) {
+				stockTable.add(book);
+			}
+		} finally {
+			releaseWriteLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, true);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, false);
+	}
+
+	/**
+	 * Adds copies to the stock.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the copies are invalid or some book is not in the store
+	 */
+	private void addCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeWriteLock();
+
+		try {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(bookCopy);
+			}
+
+			// Update the number of copies
+			for (BookCopy bookCopy : bookCopiesSet) {
+				int slot = stockTable.slotOf(bookCopy.getISBN());
+
+				if (restock) {
+					stockTable.addCopies(slot, bookCopy.getNumCopies());
+				} else {
+					stockTable.returnCopies(slot, bookCopy.getNumCopies());
+				}
+			}
+		} finally {
+			releaseWriteLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() {
+		takeReadLock();
+
+		try {
+			List<StockBook> listBooks = new ArrayList<>(stockTable.size());
+
+			for (int slot = 0; slot < stockTable.size(); slot++) {
+				listBooks.add(stockTable.immutableStockBook(slot));
+			}
+
+			return listBooks;
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeWriteLock();
+
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validateISBNInStock(editorPickArg.getISBN());
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				stockTable.setEditorPick(stockTable.slotOf(editorPickArg.getISBN()), editorPickArg.isEditorPick());
+			}
+		} finally {
+			releaseWriteLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeWriteLock();
+
+		try {
+			boolean saleMiss = false;
+
+			// Check that all ISBNs that we buy are there first.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				int slot = validate(bookCopyToBuy);
+
+				if (!stockTable.areCopiesInStore(slot, bookCopyToBuy.getNumCopies())) {
+					saleMiss = true;
+				}
+			}
+
+			// We throw exception now since we want to see how many books in the
+			// order incurred misses which is used by books in demand
+			if (saleMiss) {
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					int slot = stockTable.slotOf(bookCopyToBuy.getISBN());
+					int missing = bookCopyToBuy.getNumCopies() - stockTable.getNumCopies(slot);
+
+					if (missing > 0) {
+						// If we cannot sell the copies of the book, it is a miss.
+						stockTable.addSaleMiss(slot, missing);
+					}
+				}
+				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			// Then make the purchase.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				stockTable.buyCopies(stockTable.slotOf(bookCopyToBuy.getISBN()), bookCopyToBuy.getNumCopies());
+			}
+		} finally {
+			releaseWriteLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeReadLock();
+
+		try {
+			List<StockBook> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(stockTable.immutableStockBook(validateISBNInStock(ISBN)));
+			}
+
+			return listBooks;
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeReadLock();
+
+		try {
+			List<Book> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(stockTable.immutableBook(validateISBNInStock(ISBN)));
+			}
+
+			return listBooks;
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		takeReadLock();
+
+		try {
+			int[] slots = stockTable.editorPickSlots();
+			int numPicks = Math.min(numBooks, slots.length);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			List<Book> listEditorPicks = new ArrayList<>(numPicks);
+
+			// Only the first numPicks positions of the shuffle are needed.
+			for (int i = 0; i < numPicks; i++) {
+				int j = i + random.nextInt(slots.length - i);
+				int slot = slots[j];
+				slots[j] = slots[i];
+				slots[i] = slot;
+				listEditorPicks.add(stockTable.immutableBook(slot));
+			}
+
+			return listEditorPicks;
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		takeReadLock();
+
+		try {
+			int[] slots = stockTable.topRatedSlots(numBooks);
+			List<Book> listTopRatedBooks = new ArrayList<>(slots.length);
+
+			for (int slot : slots) {
+				listTopRatedBooks.add(stockTable.immutableBook(slot));
+			}
+
+			return listTopRatedBooks;
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		takeReadLock();
+
+		try {
+			List<StockBook> listBooksInDemand = new ArrayList<>();
+
+			for (int slot = 0; slot < stockTable.size(); slot++) {
+				if (stockTable.hadSaleMiss(slot)) {
+					listBooksInDemand.add(stockTable.immutableStockBook(slot));
+				}
+			}
+
+			return listBooksInDemand;
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeWriteLock();
+
+		try {
+			// Check that all ISBNs that we rate are there first.
+			for (BookRating bookToRate : bookRating) {
+				int ratings = bookToRate.getRating();
+				int slot = validateISBNInStock(bookToRate.getISBN());
+
+				if (BookStoreUtility.isInvalidRating(ratings)) {
+					throw new BookStoreException(BookStoreConstants.RATING + ratings + BookStoreConstants.INVALID);
+				}
+
+				if (stockTable.hadSaleMiss(slot)) {
+					throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				}
+			}
+
+			// update the sum of ratings and the number of ratings
+			for (BookRating bookToRate : bookRating) {
+				stockTable.addRating(stockTable.slotOf(bookToRate.getISBN()), bookToRate.getRating());
+			}
+		} finally {
+			releaseWriteLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			takeWriteLock();
+
+			try {
+				stockTable.clear();
+			} finally {
+				releaseWriteLock();
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		stockEscrow.removeBooks(isbnSet, () -> {
+			if (isbnSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			takeWriteLock();
+
+			try {
+				for (Integer ISBN : isbnSet) {
+					validateISBNInStock(ISBN);
+				}
+
+				for (int isbn : isbnSet) {
+					stockTable.remove(isbn);
+				}
+			} finally {
+				releaseWriteLock();
+			}
+		});
+	}
+}
@@ -0,0 +1,424 @@
+package com.acertainbookstore.business;
+
+import java.util.Arrays;
+
+/**
+ * {@link ColumnarStockTable} stores the books of a catalog column by column.
+ * Every book gets a dense slot, and the mutable fields of the book live in
+ * parallel primitive arrays indexed by that slot, while the fields which never
+ * change are kept apart as an {@link ImmutableBook} per slot. Scans over the
+ * stock, such as sorting by rating or collecting the editor picks, thus read
+ * contiguous arrays instead of one object per book, and updating the stock
+ * writes primitives instead of references.
+ * <p>
+ * Removing a book moves the last book into its slot, so the slots stay dense.
+ * The ISBN to slot index is an open addressing hash table with linear probing
+ * in a single int array, as in {@link OffHeapStockTable}, so looking up a slot
+ * neither boxes nor follows references. The table is not synchronized.
+ *
+ * @see StockTable
+ * @see ColumnarConcurrentCertainBookStore
+ */
+public class ColumnarStockTable implements StockTable {
+
+	/** The default number of slots allocated up front. */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/** The size of an index entry in ints: the ISBN and the slot plus one. */
+	private static final int INDEX_ENTRY_SIZE = 2;
+
+	/** The default number of index entries. */
+	private static final int DEFAULT_INDEX_CAPACITY = DEFAULT_CAPACITY * 2;
+
+	/** The index from ISBN to slot, an entry is empty when its slot is 0. */
+	private int[] index;
+
+	/** The number of entries of the index. */
+	private int indexCapacity;
+
+	/** The number of books, which is also the first free slot. */
+	private int size = 0;
+
+	/** The ISBNs. */
+	private int[] isbns;
+
+	/** The numbers of copies. */
+	private int[] numCopies;
+
+	/** The total ratings. */
+	private long[] totalRatings;
+
+	/** The numbers of times rated. */
+	private long[] numTimesRated;
+
+	/** The numbers of sale misses. */
+	private long[] numSaleMisses;
+
+	/** Whether the books are editor picks. */
+	private boolean[] editorPicks;
+
+	/** The immutable part of the books, kept away from the stock columns. */
+	private ImmutableBook[] descriptions;
+
+	/**
+	 * Instantiates a new empty {@link ColumnarStockTable}.
+	 */
+	public ColumnarStockTable() {
+		allocate(DEFAULT_CAPACITY);
+		allocateIndex(DEFAULT_INDEX_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		isbns = new int[capacity];
+		numCopies = new int[capacity];
+		totalRatings = new long[capacity];
+		numTimesRated = new long[capacity];
+		numSaleMisses = new long[capacity];
+		editorPicks = new boolean[capacity];
+		descriptions = new ImmutableBook[capacity];
+	}
+
+	private void grow() {
+		int capacity = isbns.length << 1;
+		isbns = Arrays.copyOf(isbns, capacity);
+		numCopies = Arrays.copyOf(numCopies, capacity);
+		totalRatings = Arrays.copyOf(totalRatings, capacity);
+		numTimesRated = Arrays.copyOf(numTimesRated, capacity);
+		numSaleMisses = Arrays.copyOf(numSaleMisses, capacity);
+		editorPicks = Arrays.copyOf(editorPicks, capacity);
+		descriptions = Arrays.copyOf(descriptions, capacity);
+	}
+
+	private void allocateIndex(int capacity) {
+		index = new int[capacity * INDEX_ENTRY_SIZE];
+		indexCapacity = capacity;
+	}
+
+	/**
+	 * Gets the home entry of an ISBN in the index.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the entry number
+	 */
+	private int homeEntry(int isbn) {
+		// Spread the bits since consecutive ISBNs are common.
+		int hash = isbn * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (indexCapacity - 1);
+	}
+
+	/**
+	 * Gets the index entry of an ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the entry number, or -1 if the ISBN is not in the index
+	 */
+	private int findEntry(int isbn) {
+		int mask = indexCapacity - 1;
+
+		for (int entry = homeEntry(isbn); index[entry * INDEX_ENTRY_SIZE + 1] != 0; entry = (entry + 1) & mask) {
+			if (index[entry * INDEX_ENTRY_SIZE] == isbn) {
+				return entry;
+			}
+		}
+
+		return -1;
+	}
+
+	private void putEntry(int isbn, int slot) {
+		int mask = indexCapacity - 1;
+		int entry = homeEntry(isbn);
+
+		while (index[entry * INDEX_ENTRY_SIZE + 1] != 0) {
+			entry = (entry + 1) & mask;
+		}
+
+		index[entry * INDEX_ENTRY_SIZE] = isbn;
+		index[entry * INDEX_ENTRY_SIZE + 1] = slot + 1;
+	}
+
+	private void removeEntry(int entry) {
+		int mask = indexCapacity - 1;
+
+		// Shift back the entries of the probe sequence which would no longer be
+		// reachable across the hole.
+		int hole = entry;
+
+		for (int next = (hole + 1) & mask; index[next * INDEX_ENTRY_SIZE + 1] != 0; next = (next + 1) & mask) {
+			int home = homeEntry(index[next * INDEX_ENTRY_SIZE]);
+
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				index[hole * INDEX_ENTRY_SIZE] = index[next * INDEX_ENTRY_SIZE];
+				index[hole * INDEX_ENTRY_SIZE + 1] = index[next * INDEX_ENTRY_SIZE + 1];
+				hole = next;
+			}
+		}
+
+		index[hole * INDEX_ENTRY_SIZE + 1] = 0;
+	}
+
+	private void growIndex() {
+		int[] oldIndex = index;
+		int oldCapacity = indexCapacity;
+		allocateIndex(indexCapacity << 1);
+
+		for (int entry = 0; entry < oldCapacity; entry++) {
+			int slotPlusOne = oldIndex[entry * INDEX_ENTRY_SIZE + 1];
+
+			if (slotPlusOne != 0) {
+				putEntry(oldIndex[entry * INDEX_ENTRY_SIZE], slotPlusOne - 1);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#size()
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#slotOf(int)
+	 */
+	@Override
+	public int slotOf(int isbn) {
+		int entry = findEntry(isbn);
+		return entry < 0 ? -1 : index[entry * INDEX_ENTRY_SIZE + 1] - 1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#contains(int)
+	 */
+	@Override
+	public boolean contains(int isbn) {
+		return findEntry(isbn) >= 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#add(com.acertainbookstore.business.StockBook)
+	 */
+	@Override
+	public int add(StockBook book) {
+		if (size == isbns.length) {
+			grow();
+		}
+
+		int slot = size++;
+		isbns[slot] = book.getISBN();
+		numCopies[slot] = book.getNumCopies();
+		totalRatings[slot] = book.getTotalRating();
+		numTimesRated[slot] = book.getNumTimesRated();
+		numSaleMisses[slot] = book.getNumSaleMisses();
+		editorPicks[slot] = book.isEditorPick();
+		descriptions[slot] = new ImmutableBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice());
+
+		if (size > indexCapacity / 2) {
+			growIndex();
+		}
+
+		putEntry(book.getISBN(), slot);
+		return slot;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#remove(int)
+	 */
+	@Override
+	public boolean remove(int isbn) {
+		int entry = findEntry(isbn);
+
+		if (entry < 0) {
+			return false;
+		}
+
+		int slot = index[entry * INDEX_ENTRY_SIZE + 1] - 1;
+		removeEntry(entry);
+
+		int last = --size;
+
+		if (slot != last) {
+			isbns[slot] = isbns[last];
+			numCopies[slot] = numCopies[last];
+			totalRatings[slot] = totalRatings[last];
+			numTimesRated[slot] = numTimesRated[last];
+			numSaleMisses[slot] = numSaleMisses[last];
+			editorPicks[slot] = editorPicks[last];
+			descriptions[slot] = descriptions[last];
+			index[findEntry(isbns[slot]) * INDEX_ENTRY_SIZE + 1] = slot + 1;
+		}
+
+		descriptions[last] = null;
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#clear()
+	 */
+	@Override
+	public void clear() {
+		allocateIndex(DEFAULT_INDEX_CAPACITY);
+		Arrays.fill(descriptions, 0, size, null);
+		size = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#getISBN(int)
+	 */
+	@Override
+	public int getISBN(int slot) {
+		return isbns[slot];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#getNumCopies(int)
+	 */
+	@Override
+	public int getNumCopies(int slot) {
+		return numCopies[slot];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#areCopiesInStore(int, int)
+	 */
+	@Override
+	public boolean areCopiesInStore(int slot, int copies) {
+		return numCopies[slot] >= copies;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#buyCopies(int, int)
+	 */
+	@Override
+	public void buyCopies(int slot, int copies) {
+		numCopies[slot] -= copies;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#addCopies(int, int)
+	 */
+	@Override
+	public void addCopies(int slot, int copies) {
+		numCopies[slot] += copies;
+		numSaleMisses[slot] = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#returnCopies(int, int)
+	 */
+	@Override
+	public void returnCopies(int slot, int copies) {
+		numCopies[slot] += copies;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#addSaleMiss(int, int)
+	 */
+	@Override
+	public void addSaleMiss(int slot, int misses) {
+		numSaleMisses[slot] += misses;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#hadSaleMiss(int)
+	 */
+	@Override
+	public boolean hadSaleMiss(int slot) {
+		return numSaleMisses[slot] > 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#addRating(int, int)
+	 */
+	@Override
+	public void addRating(int slot, int rating) {
+		totalRatings[slot] += rating;
+		numTimesRated[slot]++;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#getAverageRating(int)
+	 */
+	@Override
+	public float getAverageRating(int slot) {
+		return numTimesRated[slot] == 0 ? -1.0f : (float) totalRatings[slot] / numTimesRated[slot];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#isEditorPick(int)
+	 */
+	@Override
+	public boolean isEditorPick(int slot) {
+		return editorPicks[slot];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#setEditorPick(int, boolean)
+	 */
+	@Override
+	public void setEditorPick(int slot, boolean editorPick) {
+		editorPicks[slot] = editorPick;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#immutableBook(int)
+	 */
+	@Override
+	public ImmutableBook immutableBook(int slot) {
+		// The description is immutable, so it can be handed out as it is.
+		return descriptions[slot];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#immutableStockBook(int)
+	 */
+	@Override
+	public StockBook immutableStockBook(int slot) {
+		ImmutableBook description = descriptions[slot];
+		return new ImmutableStockBook(isbns[slot], description.getTitle(), description.getAuthor(),
+				description.getPrice(), numCopies[slot], numSaleMisses[slot], numTimesRated[slot], totalRatings[slot],
+				editorPicks[slot]);
+	}
+}
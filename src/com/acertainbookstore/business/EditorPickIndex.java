@@ -0,0 +1,153 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.acertainbookstore.utils.IntHashMap;
+
+/**
+ * {@link EditorPickIndex} keeps the editor picks of a store in a dense array,
+ * so random picks are sampled without scanning the catalog.
+ * <p>
+ * Updates are serialized by the index, since a store may update the picks of
+ * different books concurrently, and publish a new array each time. Readers
+ * sample whichever array was published last without any lock, so rendering
+ * the storefront never waits for updates nor for other readers.
+ *
+ * @see BookStoreBook
+ */
+public class EditorPickIndex {
+
+	/** The array of no picks. */
+	private static final BookStoreBook[] NO_PICKS = new BookStoreBook[0];
+
+	/**
+	 * The positions 0, 1, 2 and so on of every thread, which sampling shuffles
+	 * and restores afterwards.
+	 */
+	private static final ThreadLocal<int[]> identityPositions = ThreadLocal.withInitial(() -> new int[0]);
+
+	/** The picked books, replaced as a whole on every change. */
+	private volatile BookStoreBook[] picks = NO_PICKS;
+
+	/** The position of each picked book, by ISBN. */
+	private final IntHashMap<Integer> positions = new IntHashMap<>();
+
+	/**
+	 * Adds a book to the index if it is an editor pick, or removes it
+	 * otherwise.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	public synchronized void update(BookStoreBook book) {
+		int isbn = book.getISBN();
+
+		if (!book.isEditorPick()) {
+			remove(isbn);
+			return;
+		}
+
+		if (positions.containsKey(isbn)) {
+			return;
+		}
+
+		BookStoreBook[] newPicks = Arrays.copyOf(picks, picks.length + 1);
+		newPicks[picks.length] = book;
+		positions.put(isbn, picks.length);
+		picks = newPicks;
+	}
+
+	/**
+	 * Removes a book from the index.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	public synchronized void remove(int isbn) {
+		Integer position = positions.remove(isbn);
+
+		if (position == null) {
+			return;
+		}
+
+		// Move the last pick into the hole to keep the array dense.
+		int last = picks.length - 1;
+		BookStoreBook[] newPicks = Arrays.copyOf(picks, last);
+
+		if (position != last) {
+			newPicks[position] = picks[last];
+			positions.put(picks[last].getISBN(), position);
+		}
+
+		picks = newPicks;
+	}
+
+	/**
+	 * Removes all books from the index.
+	 */
+	public synchronized void clear() {
+		picks = NO_PICKS;
+		positions.clear();
+	}
+
+	/**
+	 * Gets distinct editor picks chosen uniformly at random.
+	 *
+	 * @param numBooks
+	 *            the maximum number of books to return
+	 * @return the books
+	 */
+	public List<Book> getEditorPicks(int numBooks) {
+		BookStoreBook[] currentPicks = picks;
+		int numPicks = currentPicks.length;
+		List<Book> listEditorPicks = new ArrayList<>(Math.min(numBooks, numPicks));
+
+		if (numBooks >= numPicks) {
+			for (BookStoreBook pick : currentPicks) {
+				listEditorPicks.add(pick.immutableBook());
+			}
+
+			return listEditorPicks;
+		}
+
+		// Partial Fisher-Yates shuffle over the positions of the calling
+		// thread, so that the published array is not touched, undone after.
+		int[] shuffled = identityPositions.get();
+
+		if (shuffled.length < numPicks) {
+			shuffled = new int[numPicks];
+
+			for (int i = 0; i < numPicks; i++) {
+				shuffled[i] = i;
+			}
+
+			identityPositions.set(shuffled);
+		}
+
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int[] swapped = new int[numBooks];
+
+		for (int i = 0; i < numBooks; i++) {
+			int j = i + rand.nextInt(numPicks - i);
+			int atJ = shuffled[j];
+
+			shuffled[j] = shuffled[i];
+			shuffled[i] = atJ;
+			swapped[i] = j;
+			listEditorPicks.add(currentPicks[atJ].immutableBook());
+		}
+
+		for (int i = numBooks - 1; i >= 0; i--) {
+			int j = swapped[i];
+			int atJ = shuffled[j];
+
+			shuffled[j] = shuffled[i];
+			shuffled[i] = atJ;
+		}
+
+		return listEditorPicks;
+	}
+}
@@ -0,0 +1,830 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link LockFreeConcurrentCertainBookStore} implements the {@link BookStore}
+ * and {@link StockManager} functionalities. Client operations never take a
+ * lock: the stock, rating and editor pick of every book are held in the
+ * {@link Slot}s of an {@link AtomicBookStoreBook}, and an operation touching
+ * several of them replaces their values at once in a {@link MultiSlotUpdate},
+ * which any thread running into it completes instead of waiting for it. An
+ * update checks that its books are still in the store when it is decided, so
+ * it never applies to a book removed or replaced after it was looked up. Only
+ * the stock manager operations which change the set of books, or which must
+ * validate a whole batch against it, serialize on a catalog lock.
+ * <p>
+ * Readers get before-and-after semantics without writing: a read records the
+ * value of every slot it visits and is accepted if none of them changed by
+ * the time it finished. A reader which failed {@link #MAX_OPTIMISTIC_READS}
+ * times freezes the slots it visited in a {@link MultiSlotUpdate} leaving
+ * their values unchanged, and reads them as they were at that moment, so it
+ * neither waits for updates nor makes them wait for it.
+ *
+ * @see BookStore
+ * @see StockManager
+ * @see AtomicBookStoreBook
+ */
+public class LockFreeConcurrentCertainBookStore implements ReservingBookStore, StockManager {
+
+	/** The number of attempts before a reader freezes the slots it reads. */
+	private static final int MAX_OPTIMISTIC_READS = 3;
+
+	/**
+	 * {@link StoreRead} is a read of the store which may be retried, so it must
+	 * copy whatever it returns and must not have side effects. Every slot it
+	 * depends on must be read through the snapshot.
+	 *
+	 * @param <T>
+	 *            the result type
+	 */
+	@FunctionalInterface
+	private interface StoreRead<T> {
+		T read(ReadSnapshot snapshot) throws BookStoreException;
+	}
+
+	/**
+	 * {@link ReadSnapshot} records the value of every slot a read visits, so
+	 * the read can be checked for updates of those slots afterwards. Slots
+	 * which were frozen are read as frozen instead.
+	 */
+	private static final class ReadSnapshot implements Slot.Reader {
+
+		/** The values of the frozen slots, null if none were frozen. */
+		private final MultiSlotUpdate.Values frozen;
+
+		/** The slots visited which were not frozen. */
+		private final List<Slot> slots = new ArrayList<>();
+
+		/** The values of the slots visited, in the order visited. */
+		private final List<Object> values = new ArrayList<>();
+
+		private ReadSnapshot(MultiSlotUpdate.Values frozen) {
+			this.frozen = frozen;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.Slot.Reader#read(com.
+		 * acertainbookstore.business.Slot)
+		 */
+		@Override
+		public Object read(Slot slot) {
+			if (frozen != null && frozen.contains(slot)) {
+				return frozen.read(slot);
+			}
+
+			Object value = slot.read();
+			slots.add(slot);
+			values.add(value);
+			return value;
+		}
+
+		/**
+		 * Checks that no slot visited changed since it was visited.
+		 *
+		 * @return true, if the read saw every slot as it was when it finished
+		 */
+		boolean isConsistent() {
+			for (int i = 0; i < slots.size(); i++) {
+				if (slots.get(i).read() != values.get(i)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	/** The mapping of books from ISBN to {@link AtomicBookStoreBook}. */
+	private Map<Integer, AtomicBookStoreBook> bookMap = null;
+
+	/** The lock serializing the stock manager operations. */
+	private Lock catalogLock = null;
+
+	/** The set of books, a new token whenever books are added or removed. */
+	private final Slot catalog = new Slot(Slot.reserveRanks(1), new Object());
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/**
+	 * Instantiates a new {@link LockFreeConcurrentCertainBookStore}.
+	 */
+	public LockFreeConcurrentCertainBookStore() {
+		// Constructors are not synchronized
+		bookMap = new ConcurrentHashMap<>();
+		catalogLock = new ReentrantLock();
+	}
+
+	private void takeCatalogLock() {
+		catalogLock.lock();
+	}
+
+	private void releaseCatalogLock() {
+		catalogLock.unlock();
+	}
+
+	/**
+	 * Runs <code>storeRead</code> until it saw every slot it visited as it was
+	 * when it finished. Results and exceptions of an attempt are only surfaced
+	 * once it was validated. After {@link #MAX_OPTIMISTIC_READS} attempts the
+	 * slots visited are frozen and the read runs against their frozen values,
+	 * freezing again with the slots it visited beyond them until it needs no
+	 * other.
+	 *
+	 * @param storeRead
+	 *            the read to perform
+	 * @return the result of the read
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static <T> T read(StoreRead<T> storeRead) throws BookStoreException {
+		Set<Slot> slots = Collections.newSetFromMap(new IdentityHashMap<>());
+		MultiSlotUpdate.Values frozen = null;
+
+		for (int attempt = 1;; attempt++) {
+			ReadSnapshot snapshot = new ReadSnapshot(frozen);
+			T result = null;
+			Exception failure = null;
+
+			try {
+				result = storeRead.read(snapshot);
+			} catch (BookStoreException | RuntimeException ex) {
+				// May be caused by reading the store while it was updated.
+				failure = ex;
+			}
+
+			if (frozen != null ? snapshot.slots.isEmpty() : snapshot.isConsistent()) {
+				if (failure instanceof BookStoreException) {
+					throw (BookStoreException) failure;
+				} else if (failure != null) {
+					throw (RuntimeException) failure;
+				}
+
+				return result;
+			}
+
+			if (attempt >= MAX_OPTIMISTIC_READS) {
+				slots.addAll(snapshot.slots);
+				frozen = MultiSlotUpdate.apply(slots, values -> values);
+			}
+		}
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private AtomicBookStoreBook validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		AtomicBookStoreBook book = validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		return book;
+	}
+
+	private AtomicBookStoreBook validate(BookRating bookRating) throws BookStoreException {
+		int ratings = bookRating.getRating();
+		AtomicBookStoreBook book = validateISBNInStock(bookRating.getISBN());
+
+		if (BookStoreUtility.isInvalidRating(ratings)) {
+			throw new BookStoreException(BookStoreConstants.RATING + ratings + BookStoreConstants.INVALID);
+		}
+
+		return book;
+	}
+
+	private AtomicBookStoreBook validate(BookEditorPick editorPickArg) throws BookStoreException {
+		int isbn = editorPickArg.getISBN();
+		return validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+	}
+
+	private AtomicBookStoreBook validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		AtomicBookStoreBook book = bookMap.get(ISBN);
+
+		if (book == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeCatalogLock();
+		try {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			// The books are only in the store once the update adding them is
+			// decided, so readers see all of them or none.
+			Map<AtomicBookStoreBook, StockBook> booksToAdd = new IdentityHashMap<>();
+			Map<Integer, AtomicBookStoreBook> booksByISBN = new HashMap<>();
+			List<Slot> slots = new ArrayList<>();
+			slots.add(catalog);
+
+			for (StockBook book : bookSet) {
+				AtomicBookStoreBook newBook = new AtomicBookStoreBook(book);
+				AtomicBookStoreBook replacedBook = booksByISBN.put(book.getISBN(), newBook);
+
+				if (replacedBook != null) {
+					booksToAdd.remove(replacedBook);
+				}
+
+				booksToAdd.put(newBook, book);
+			}
+
+			for (AtomicBookStoreBook book : booksToAdd.keySet()) {
+				book.addSlots(slots);
+			}
+
+			bookMap.putAll(booksByISBN);
+
+			MultiSlotUpdate.apply(slots, values -> {
+				for (Map.Entry<AtomicBookStoreBook, StockBook> bookEntry : booksToAdd.entrySet()) {
+					bookEntry.getKey().add(values, bookEntry.getValue());
+				}
+
+				values.set(catalog, new Object());
+				return true;
+			});
+		} finally {
+			releaseCatalogLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, true);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, false);
+	}
+
+	/**
+	 * Adds copies to the stock.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the copies are invalid or some book is not in the store
+	 */
+	private void addCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeCatalogLock();
+		try {
+			List<AtomicBookStoreBook> books = new ArrayList<>(bookCopiesSet.size());
+			List<Slot> slots = new ArrayList<>(bookCopiesSet.size());
+
+			for (BookCopy bookCopy : bookCopiesSet) {
+				AtomicBookStoreBook book = validate(bookCopy);
+				books.add(book);
+				book.addStockSlots(slots);
+			}
+
+			MultiSlotUpdate.apply(slots, values -> {
+				// Update the number of copies
+				int i = 0;
+
+				for (BookCopy bookCopy : bookCopiesSet) {
+					books.get(i++).addCopies(values, bookCopy.getNumCopies(), restock);
+				}
+
+				return true;
+			});
+		} finally {
+			releaseCatalogLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() throws BookStoreException {
+		return read(snapshot -> {
+			snapshot.read(catalog);
+			List<StockBook> listBooks = new ArrayList<>();
+
+			for (AtomicBookStoreBook book : bookMap.values()) {
+				if (book.isInStore(snapshot)) {
+					listBooks.add(book.immutableStockBook(snapshot));
+				}
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		takeCatalogLock();
+		try {
+			List<AtomicBookStoreBook> books = new ArrayList<>(editorPicks.size());
+			List<Slot> slots = new ArrayList<>(editorPicks.size());
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				AtomicBookStoreBook book = validate(editorPickArg);
+				books.add(book);
+				book.addInfoSlot(slots);
+			}
+
+			MultiSlotUpdate.apply(slots, values -> {
+				int i = 0;
+
+				for (BookEditorPick editorPickArg : editorPicks) {
+					books.get(i++).setEditorPick(values, editorPickArg.isEditorPick());
+				}
+
+				return true;
+			});
+		} finally {
+			releaseCatalogLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Check that all ISBNs that we buy are there first.
+		Map<AtomicBookStoreBook, Integer> copiesToBuy = new IdentityHashMap<>();
+
+		for (BookCopy bookCopy : bookCopiesToBuy) {
+			copiesToBuy.merge(validate(bookCopy), bookCopy.getNumCopies(), Integer::sum);
+		}
+
+		boolean bought;
+
+		if (copiesToBuy.size() == 1) {
+			Map.Entry<AtomicBookStoreBook, Integer> bookEntry = copiesToBuy.entrySet().iterator().next();
+			bought = bookEntry.getKey().buyCopies(bookEntry.getValue());
+		} else {
+			bought = buyCopies(copiesToBuy);
+		}
+
+		if (!bought) {
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/**
+	 * Buys the copies of several books at once, or records the copies missing
+	 * as sale misses if some book has too few left. The update fails if one of
+	 * the books was removed or replaced since it was looked up.
+	 *
+	 * @param copiesToBuy
+	 *            the number of copies to buy of every book
+	 * @return true, if the copies were bought, false if sale misses were
+	 *         recorded instead
+	 * @throws BookStoreException
+	 *             if some book is not in the store
+	 */
+	private static boolean buyCopies(Map<AtomicBookStoreBook, Integer> copiesToBuy) throws BookStoreException {
+		while (true) {
+			List<Slot> slots = new ArrayList<>();
+			Map<AtomicBookStoreBook, StockShards> shards = new IdentityHashMap<>();
+
+			for (AtomicBookStoreBook book : copiesToBuy.keySet()) {
+				shards.put(book, book.addStockSlots(slots));
+			}
+
+			Boolean bought = MultiSlotUpdate.apply(slots, values -> {
+				Map<AtomicBookStoreBook, Integer> salesMisses = new IdentityHashMap<>();
+
+				for (Map.Entry<AtomicBookStoreBook, Integer> bookEntry : copiesToBuy.entrySet()) {
+					AtomicBookStoreBook book = bookEntry.getKey();
+					int numCopies = book.getNumCopies(values, shards.get(book));
+
+					if (numCopies < 0) {
+						// Split or unsplit since its slots were looked up.
+						return null;
+					}
+
+					if (numCopies < bookEntry.getValue()) {
+						salesMisses.put(book, bookEntry.getValue() - numCopies);
+					}
+				}
+
+				for (Map.Entry<AtomicBookStoreBook, Integer> bookEntry : copiesToBuy.entrySet()) {
+					if (salesMisses.isEmpty()) {
+						bookEntry.getKey().takeCopies(values, bookEntry.getValue());
+					} else if (salesMisses.containsKey(bookEntry.getKey())) {
+						bookEntry.getKey().addSaleMisses(values, salesMisses.get(bookEntry.getKey()));
+					}
+				}
+
+				return salesMisses.isEmpty();
+			});
+
+			if (bought != null) {
+				return bought;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of times a book was split to spread its buyers over
+	 * shards, which only happens with more than one processor.
+	 *
+	 * @param ISBN
+	 *            the ISBN of the book
+	 * @return the number of splits
+	 * @throws BookStoreException
+	 *             if the book is not in the store
+	 */
+	public int getNumSplits(int ISBN) throws BookStoreException {
+		return validateISBNInStock(ISBN).getNumSplits();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return read(snapshot -> {
+			List<StockBook> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(validateISBNInStock(ISBN).immutableStockBook(snapshot));
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// The books handed out do not change, only the set of books is checked.
+		return read(snapshot -> {
+			List<Book> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				AtomicBookStoreBook book = validateISBNInStock(ISBN);
+
+				if (!book.isInStore(snapshot)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+				}
+
+				listBooks.add(book.immutableBook());
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<AtomicBookStoreBook> listAllEditorPicks = read(snapshot -> {
+			snapshot.read(catalog);
+			List<AtomicBookStoreBook> editorPicks = new ArrayList<>();
+
+			for (AtomicBookStoreBook book : bookMap.values()) {
+				if (book.isInStore(snapshot) && book.isEditorPick(snapshot)) {
+					editorPicks.add(book);
+				}
+			}
+
+			return editorPicks;
+		});
+
+		if (listAllEditorPicks.size() > numBooks) {
+			// We need to pick randomly the books that need to be returned.
+			Collections.shuffle(listAllEditorPicks, ThreadLocalRandom.current());
+			listAllEditorPicks = listAllEditorPicks.subList(0, numBooks);
+		}
+
+		return listAllEditorPicks.stream().map(book -> book.immutableBook()).collect(Collectors.toList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		Map<AtomicBookStoreBook, Float> averageRatings = read(snapshot -> {
+			snapshot.read(catalog);
+			Map<AtomicBookStoreBook, Float> ratings = new IdentityHashMap<>();
+
+			for (AtomicBookStoreBook book : bookMap.values()) {
+				if (book.isInStore(snapshot)) {
+					ratings.put(book, book.getAverageRating(snapshot));
+				}
+			}
+
+			return ratings;
+		});
+
+		return averageRatings.entrySet().stream()
+				.sorted(Map.Entry.<AtomicBookStoreBook, Float>comparingByValue().reversed()).limit(numBooks)
+				.map(bookEntry -> bookEntry.getKey().immutableBook()).collect(Collectors.toList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return read(snapshot -> {
+			snapshot.read(catalog);
+			List<StockBook> listBooks = new ArrayList<>();
+
+			for (AtomicBookStoreBook book : bookMap.values()) {
+				if (book.isInStore(snapshot) && book.hadSaleMiss(snapshot)) {
+					listBooks.add(book.immutableStockBook(snapshot));
+				}
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Check that all ISBNs that we rate are there first.
+		List<AtomicBookStoreBook> books = new ArrayList<>(bookRating.size());
+		List<Slot> slots = new ArrayList<>();
+
+		for (BookRating bookToRate : bookRating) {
+			AtomicBookStoreBook book = validate(bookToRate);
+			books.add(book);
+			book.addSlots(slots);
+		}
+
+		MultiSlotUpdate.apply(slots, values -> {
+			// Check again, a book may have been removed or replaced since, and
+			// apply no rating unless all of them can be applied.
+			for (AtomicBookStoreBook book : books) {
+				if (book.hadSaleMiss(values)) {
+					throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				}
+			}
+
+			// update the sum of ratings and the number of ratings
+			int i = 0;
+
+			for (BookRating bookToRate : bookRating) {
+				books.get(i++).addRating(values, bookToRate.getRating());
+			}
+
+			return true;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			takeCatalogLock();
+			try {
+				remove(new ArrayList<>(bookMap.values()));
+			} finally {
+				releaseCatalogLock();
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		stockEscrow.removeBooks(isbnSet, () -> {
+			if (isbnSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			takeCatalogLock();
+			try {
+				List<AtomicBookStoreBook> books = new ArrayList<>(isbnSet.size());
+
+				for (Integer ISBN : isbnSet) {
+					books.add(validateISBNInStock(ISBN));
+				}
+
+				remove(books);
+			} finally {
+				releaseCatalogLock();
+			}
+		});
+	}
+
+	/**
+	 * Removes books from the store, all at once, and then from the mapping.
+	 *
+	 * @param books
+	 *            the books
+	 * @throws BookStoreException
+	 *             if some book is not in the store
+	 */
+	private void remove(List<AtomicBookStoreBook> books) throws BookStoreException {
+		Boolean removed;
+
+		do {
+			List<Slot> slots = new ArrayList<>();
+			Map<AtomicBookStoreBook, StockShards> shards = new IdentityHashMap<>();
+			slots.add(catalog);
+
+			for (AtomicBookStoreBook book : books) {
+				shards.put(book, book.addSlots(slots));
+			}
+
+			removed = MultiSlotUpdate.apply(slots, values -> {
+				for (AtomicBookStoreBook book : books) {
+					if (!book.remove(values, shards.get(book))) {
+						// Split or unsplit since its slots were looked up.
+						return null;
+					}
+				}
+
+				values.set(catalog, new Object());
+				return true;
+			});
+		} while (removed == null);
+
+		for (AtomicBookStoreBook book : books) {
+			bookMap.remove(book.getISBN(), book);
+		}
+	}
+}
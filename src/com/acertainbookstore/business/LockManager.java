@@ -0,0 +1,64 @@
+package com.acertainbookstore.business;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link LockManager} implements the two levels of locks of the
+ * {@link TwoLevelLockingConcurrentCertainBookStore}: a global lock, and local
+ * locks partitioned into stripes. Local locks are always taken together with
+ * the global lock in shared mode, and stripes are always given in ascending
+ * order, so operations cannot deadlock; a lock manager decides how long an
+ * operation waits and which of two conflicting operations backs off.
+ * <p>
+ * An operation releases its locks on the thread which took them.
+ *
+ * @see OrderedLockManager
+ * @see TimestampLockManager
+ */
+public interface LockManager {
+
+	/**
+	 * Gets the number of stripes of local locks, which is a power of two.
+	 *
+	 * @return the number of stripes
+	 */
+	public int getNumStripes();
+
+	/**
+	 * Takes the global lock in shared mode and the local locks of the given
+	 * stripes.
+	 *
+	 * @param stripes
+	 *            the stripes, distinct and in ascending order
+	 * @param exclusive
+	 *            whether to take the local locks in exclusive mode
+	 * @throws BookStoreException
+	 *             if the operation has to give up, in which case it holds no
+	 *             locks
+	 */
+	public void lockLocal(int[] stripes, boolean exclusive) throws BookStoreException;
+
+	/**
+	 * Releases the locks taken by {@link #lockLocal(int[], boolean)}.
+	 *
+	 * @param stripes
+	 *            the stripes
+	 * @param exclusive
+	 *            whether the local locks are held in exclusive mode
+	 */
+	public void unlockLocal(int[] stripes, boolean exclusive);
+
+	/**
+	 * Takes the global lock in exclusive mode.
+	 *
+	 * @throws BookStoreException
+	 *             if the operation has to give up, in which case it holds no
+	 *             locks
+	 */
+	public void lockGlobal() throws BookStoreException;
+
+	/**
+	 * Releases the global lock taken by {@link #lockGlobal()}.
+	 */
+	public void unlockGlobal();
+}
@@ -0,0 +1,392 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link MultiSlotUpdate} replaces the values of several {@link Slot}s at
+ * once, without locks. The update is installed in its slots one at a time in
+ * the order of their ranks, recording the value it replaced in each. Once it
+ * holds all of them, its {@link Plan} computes the new values from the
+ * recorded ones and the update is decided in a single compare-and-set, which
+ * is the moment all its slots change together. The new values, or the
+ * recorded ones if the update did not commit, are then put back in place of
+ * the update.
+ * <p>
+ * Any thread finding the update in a slot completes it instead of waiting for
+ * the thread which started it, so updates never wait for each other. Since
+ * slots are claimed in rank order, an update completing another one only
+ * meets updates holding slots of higher rank, and completing never cycles.
+ * Readers do not complete updates: they read a held slot as the value the
+ * update recorded there until it is decided, and as its new value after.
+ *
+ * @see Slot
+ */
+final class MultiSlotUpdate {
+
+	/**
+	 * {@link Plan} computes the new values of the slots of an update from
+	 * their current values. A plan may be run by several threads for the same
+	 * update, so it must not have side effects other than setting values.
+	 *
+	 * @param <T>
+	 *            the result type
+	 */
+	@FunctionalInterface
+	interface Plan<T> {
+
+		/**
+		 * Computes the new values of the slots.
+		 *
+		 * @param values
+		 *            the values of the slots, to read and set
+		 * @return the result of the update, or null if the slots to update
+		 *         must be looked up again
+		 * @throws BookStoreException
+		 *             if the update must not be made
+		 */
+		T apply(Values values) throws BookStoreException;
+	}
+
+	/**
+	 * {@link Values} holds the current and the new values of the slots of an
+	 * update. Values read after being set read as set, so a plan may update a
+	 * slot several times.
+	 */
+	static final class Values implements Slot.Reader {
+
+		/** The slots, in rank order. */
+		private final Slot[] slots;
+
+		/** The current values of the slots. */
+		private final Object[] oldValues;
+
+		/** The new values of the slots, null where unchanged. */
+		private final Object[] newValues;
+
+		private Values(Slot[] slots, Object[] oldValues) {
+			this.slots = slots;
+			this.oldValues = oldValues;
+			this.newValues = new Object[slots.length];
+		}
+
+		/**
+		 * Checks whether the slot is one of the slots of the update.
+		 *
+		 * @param slot
+		 *            the slot
+		 * @return true, if it is
+		 */
+		boolean contains(Slot slot) {
+			return indexOf(slots, slot) >= 0;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.Slot.Reader#read(com.
+		 * acertainbookstore.business.Slot)
+		 */
+		@Override
+		public Object read(Slot slot) {
+			int i = checkedIndexOf(slot);
+			return (newValues[i] != null ? newValues[i] : oldValues[i]);
+		}
+
+		/**
+		 * Sets the new value of a slot.
+		 *
+		 * @param slot
+		 *            the slot
+		 * @param value
+		 *            the new value
+		 */
+		void set(Slot slot, Object value) {
+			newValues[checkedIndexOf(slot)] = value;
+		}
+
+		private int checkedIndexOf(Slot slot) {
+			int i = indexOf(slots, slot);
+
+			if (i < 0) {
+				throw new IllegalStateException("Slot " + slot.getRank() + " is not part of the update");
+			}
+
+			return i;
+		}
+
+		private Object valueAt(int i) {
+			return (newValues[i] != null ? newValues[i] : oldValues[i]);
+		}
+	}
+
+	/**
+	 * {@link Outcome} is the decision of an update: the values the plan set
+	 * and its result or failure, or a retry if a slot changed before the
+	 * update held all of them.
+	 */
+	private static final class Outcome {
+
+		/** The values computed by the plan, null unless the update committed. */
+		private final Values values;
+
+		/** The result of the plan. */
+		private final Object result;
+
+		/** The failure of the plan. */
+		private final BookStoreException failure;
+
+		private Outcome(Values values, Object result, BookStoreException failure) {
+			this.values = values;
+			this.result = result;
+			this.failure = failure;
+		}
+	}
+
+	/** The outcome of an update which must be made again. */
+	private static final Outcome RETRY = new Outcome(null, null, null);
+
+	/** The slots of the update, in rank order. */
+	private final Slot[] slots;
+
+	/** The values the update replaced, recorded when it was installed. */
+	private final AtomicReferenceArray<Object> expected;
+
+	/** The plan of the update. */
+	private final Plan<?> plan;
+
+	/** The outcome of the update, null until decided. */
+	private final AtomicReference<Outcome> outcome = new AtomicReference<>();
+
+	private MultiSlotUpdate(Slot[] slots, Plan<?> plan) {
+		this.slots = slots;
+		this.expected = new AtomicReferenceArray<>(slots.length);
+		this.plan = plan;
+	}
+
+	/**
+	 * Updates the slots atomically as <code>plan</code> computes.
+	 *
+	 * @param slotsToUpdate
+	 *            the slots, in any order and possibly repeated
+	 * @param plan
+	 *            the plan
+	 * @return the result of the plan, null if it asked for the slots to be
+	 *         looked up again, in which case nothing was updated
+	 * @throws BookStoreException
+	 *             if the plan failed, in which case nothing was updated
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T apply(Collection<Slot> slotsToUpdate, Plan<T> plan) throws BookStoreException {
+		Slot[] slots = sortedSlots(slotsToUpdate);
+
+		if (slots.length == 0) {
+			return plan.apply(new Values(slots, new Object[0]));
+		} else if (slots.length == 1) {
+			return applyToSlot(slots[0], plan);
+		}
+
+		while (true) {
+			MultiSlotUpdate update = new MultiSlotUpdate(slots, plan);
+			update.complete();
+			Outcome decided = update.outcome.get();
+
+			if (decided != RETRY) {
+				if (decided.failure != null) {
+					throw decided.failure;
+				}
+
+				return (T) decided.result;
+			}
+		}
+	}
+
+	/**
+	 * Updates a single slot with a plain compare-and-set.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param plan
+	 *            the plan
+	 * @return the result of the plan
+	 * @throws BookStoreException
+	 *             if the plan failed
+	 */
+	private static <T> T applyToSlot(Slot slot, Plan<T> plan) throws BookStoreException {
+		Slot[] slots = new Slot[] { slot };
+
+		while (true) {
+			Object current = slot.settle();
+			Values values = new Values(slots, new Object[] { current });
+			T result = plan.apply(values);
+
+			if (result == null || values.newValues[0] == null || slot.compareAndSet(current, values.newValues[0])) {
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Completes the update: installs it in the slots it does not hold yet,
+	 * decides it and puts the values back in its place. Any thread may
+	 * complete any update, any number of times.
+	 */
+	void complete() {
+		for (int i = 0; i < slots.length && outcome.get() == null; i++) {
+			install(i);
+		}
+
+		if (outcome.get() == null) {
+			decide();
+		}
+
+		Outcome decided = outcome.get();
+
+		for (int i = 0; i < slots.length; i++) {
+			Object value = (decided.values != null ? decided.values.valueAt(i) : expected.get(i));
+
+			// A slot the update did not reach still holds its own value.
+			if (value != null) {
+				slots[i].compareAndSet(this, value);
+			}
+		}
+	}
+
+	/**
+	 * Installs the update in a slot, unless the update is decided first. An
+	 * update found in the slot is completed first, and the update is decided
+	 * as a retry if the slot no longer holds the value recorded for it.
+	 *
+	 * @param i
+	 *            the index of the slot
+	 */
+	private void install(int i) {
+		while (outcome.get() == null) {
+			Object current = slots[i].get();
+
+			if (current == this) {
+				return;
+			}
+
+			if (current instanceof MultiSlotUpdate) {
+				((MultiSlotUpdate) current).complete();
+				continue;
+			}
+
+			expected.compareAndSet(i, null, current);
+
+			if (expected.get(i) != current) {
+				outcome.compareAndSet(null, RETRY);
+				return;
+			}
+
+			if (slots[i].compareAndSet(current, this)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decides the update once it holds all its slots, running the plan on the
+	 * recorded values.
+	 */
+	private void decide() {
+		Object[] oldValues = new Object[slots.length];
+
+		for (int i = 0; i < slots.length; i++) {
+			oldValues[i] = expected.get(i);
+		}
+
+		Values values = new Values(slots, oldValues);
+		Outcome decided;
+
+		try {
+			Object result = plan.apply(values);
+			decided = (result != null ? new Outcome(values, result, null) : new Outcome(null, null, null));
+		} catch (BookStoreException ex) {
+			decided = new Outcome(null, null, ex);
+		}
+
+		outcome.compareAndSet(null, decided);
+	}
+
+	/**
+	 * Gets the value of a slot holding the update, as readers see it.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the new value if the update committed, the recorded value
+	 *         otherwise
+	 */
+	Object valueOf(Slot slot) {
+		int i = indexOf(slots, slot);
+		Outcome decided = outcome.get();
+		return (decided != null && decided.values != null ? decided.values.valueAt(i) : expected.get(i));
+	}
+
+	/**
+	 * Sorts slots by rank, dropping repeated ones.
+	 *
+	 * @param slotsToSort
+	 *            the slots
+	 * @return the slots in rank order
+	 */
+	private static Slot[] sortedSlots(Collection<Slot> slotsToSort) {
+		Slot[] sorted = slotsToSort.toArray(new Slot[0]);
+		Arrays.sort(sorted, Comparator.comparingLong(Slot::getRank));
+		List<Slot> distinct = new ArrayList<>(sorted.length);
+
+		for (Slot slot : sorted) {
+			Slot last = (distinct.isEmpty() ? null : distinct.get(distinct.size() - 1));
+
+			if (last == slot) {
+				continue;
+			}
+
+			if (last != null && last.getRank() == slot.getRank()) {
+				throw new IllegalStateException("Slots share the rank " + slot.getRank());
+			}
+
+			distinct.add(slot);
+		}
+
+		return distinct.toArray(new Slot[0]);
+	}
+
+	/**
+	 * Finds a slot among slots in rank order.
+	 *
+	 * @param slots
+	 *            the slots
+	 * @param slot
+	 *            the slot to find
+	 * @return the index, or -1 if absent
+	 */
+	private static int indexOf(Slot[] slots, Slot slot) {
+		int low = 0;
+		int high = slots.length - 1;
+		long rank = slot.getRank();
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midRank = slots[mid].getRank();
+
+			if (midRank < rank) {
+				low = mid + 1;
+			} else if (midRank > rank) {
+				high = mid - 1;
+			} else {
+				return (slots[mid] == slot ? mid : -1);
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,779 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link MultiVersionConcurrentCertainBookStore} implements the
+ * {@link BookStore} and {@link StockManager} functionalities with
+ * multi-version concurrency control. Every update of a book installs a new
+ * immutable version of it, tagged with the version number of the store
+ * operation that wrote it. Operations which modify the store are serialized on
+ * a writer lock and make their versions visible all at once by publishing
+ * their version number. Readers take no lock at all: they pin the last
+ * published version number as their snapshot and read, for every book, the
+ * newest version not newer than the snapshot. Catalog scans therefore neither
+ * block nor are blocked by purchases, and always see a consistent state.
+ * <p>
+ * Old versions are dropped by the writers as soon as no open snapshot can see
+ * them any more.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class MultiVersionConcurrentCertainBookStore implements ReservingBookStore, StockManager {
+
+	/**
+	 * {@link BookVersion} is one version of a book. A version without a book
+	 * marks that the book was removed.
+	 */
+	private static final class BookVersion {
+
+		/** The ISBN. */
+		private final int isbn;
+
+		/** The book as of this version, or null if it was removed. */
+		private final ImmutableStockBook book;
+
+		/** The version number of the operation that wrote this version. */
+		private final long version;
+
+		/** The previous version, cut off once no snapshot can see it. */
+		private volatile BookVersion previous;
+
+		private BookVersion(int isbn, ImmutableStockBook book, long version, BookVersion previous) {
+			this.isbn = isbn;
+			this.book = book;
+			this.version = version;
+			this.previous = previous;
+		}
+	}
+
+	/** The mapping of books from ISBN to their newest {@link BookVersion}. */
+	private Map<Integer, BookVersion> bookMap = null;
+
+	/** The open snapshots, mapping their version number to their count. */
+	private ConcurrentNavigableMap<Long, Integer> activeSnapshots = null;
+
+	/** The removal markers still waiting to be purged from the map. */
+	private Deque<BookVersion> removedBooks = null;
+
+	/** The lock serializing the writers. */
+	private Lock writeLock = null;
+
+	/** The version number of the last operation made visible to readers. */
+	private volatile long committedVersion = 0;
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/**
+	 * Instantiates a new {@link MultiVersionConcurrentCertainBookStore}.
+	 */
+	public MultiVersionConcurrentCertainBookStore() {
+		// Constructors are not synchronized
+		bookMap = new ConcurrentHashMap<>();
+		activeSnapshots = new ConcurrentSkipListMap<>();
+		removedBooks = new ArrayDeque<>();
+		writeLock = new ReentrantLock();
+	}
+
+	/**
+	 * Opens a snapshot of the last published version. The snapshot is
+	 * registered before it is used, so that the writers keep the versions it
+	 * can see.
+	 *
+	 * @return the version number of the snapshot
+	 */
+	private long openSnapshot() {
+		while (true) {
+			long snapshot = committedVersion;
+			activeSnapshots.merge(snapshot, 1, Integer::sum);
+
+			// If a writer published in between it may not have seen our
+			// registration, so we retry with the newer version.
+			if (committedVersion == snapshot) {
+				return snapshot;
+			}
+
+			closeSnapshot(snapshot);
+		}
+	}
+
+	private void closeSnapshot(long snapshot) {
+		activeSnapshots.computeIfPresent(snapshot, (version, count) -> count == 1 ? null : count - 1);
+	}
+
+	/**
+	 * Gets the book as seen by <code>snapshot</code>.
+	 *
+	 * @param head
+	 *            the newest version of the book, may be null
+	 * @param snapshot
+	 *            the version number of the snapshot
+	 * @return the book, or null if it does not exist in the snapshot
+	 */
+	private static ImmutableStockBook visibleBook(BookVersion head, long snapshot) {
+		BookVersion current = head;
+
+		while (current != null && current.version > snapshot) {
+			current = current.previous;
+		}
+
+		return current == null ? null : current.book;
+	}
+
+	/**
+	 * Takes the writer lock and gets the version number for the versions the
+	 * operation installs.
+	 *
+	 * @return the version number of the operation
+	 */
+	private long beginWrite() {
+		writeLock.lock();
+		return committedVersion + 1;
+	}
+
+	/**
+	 * Publishes the versions installed with <code>version</code>, drops the
+	 * versions no snapshot can see any more and releases the writer lock.
+	 *
+	 * @param version
+	 *            the version number of the operation
+	 */
+	private void endWrite(long version) {
+		try {
+			committedVersion = version;
+
+			long horizon = oldestVisibleVersion();
+
+			while (!removedBooks.isEmpty() && removedBooks.peekFirst().version <= horizon) {
+				BookVersion removed = removedBooks.pollFirst();
+				bookMap.remove(removed.isbn, removed);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the oldest version number a reader can see, i.e. that of the oldest
+	 * open snapshot or, without open snapshots, the last published one.
+	 *
+	 * @return the oldest visible version number
+	 */
+	private long oldestVisibleVersion() {
+		Map.Entry<Long, Integer> oldestSnapshot = activeSnapshots.firstEntry();
+		long committed = committedVersion;
+
+		return oldestSnapshot == null ? committed : Math.min(oldestSnapshot.getKey(), committed);
+	}
+
+	/**
+	 * Installs a new version of a book. Must be called between
+	 * {@link #beginWrite()} and {@link #endWrite(long)}.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param book
+	 *            the new book, or null to remove it
+	 * @param version
+	 *            the version number of the operation
+	 */
+	private void install(int isbn, ImmutableStockBook book, long version) {
+		BookVersion head = bookMap.get(isbn);
+
+		if (head != null && head.version == version) {
+			// Written twice by the same operation, the first one was never seen.
+			head = head.previous;
+		}
+
+		BookVersion newHead = new BookVersion(isbn, book, version, head);
+
+		// Keep the newest version every open snapshot can see, and nothing
+		// older than that.
+		long horizon = oldestVisibleVersion();
+		BookVersion current = newHead;
+
+		while (current != null && current.version > horizon) {
+			current = current.previous;
+		}
+
+		if (current != null) {
+			current.previous = null;
+		}
+
+		bookMap.put(isbn, newHead);
+
+		if (book == null) {
+			removedBooks.addLast(newHead);
+		}
+	}
+
+	/**
+	 * Gets the newest version of a book. Only meaningful to writers.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the book, or null if it is not in stock
+	 */
+	private ImmutableStockBook latestBook(int isbn) {
+		BookVersion head = bookMap.get(isbn);
+		return head == null ? null : head.book;
+	}
+
+	private static ImmutableStockBook copyOf(StockBook book, int numCopies, long numSaleMisses, long numTimesRated,
+			long totalRating, boolean editorPick) {
+		return new ImmutableStockBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice(), numCopies,
+				numSaleMisses, numTimesRated, totalRating, editorPick);
+	}
+
+	private static Book immutableBook(StockBook book) {
+		return new ImmutableBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice());
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (latestBook(isbn) != null) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private ImmutableStockBook validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		ImmutableStockBook book = validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		return book;
+	}
+
+	private ImmutableStockBook validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		ImmutableStockBook book = latestBook(ISBN);
+
+		if (book == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	private ImmutableStockBook validateISBNInSnapshot(Integer ISBN, long snapshot) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		ImmutableStockBook book = visibleBook(bookMap.get(ISBN), snapshot);
+
+		if (book == null) {// Check if the book is in the snapshot
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	/**
+	 * Gets all books of a snapshot.
+	 *
+	 * @param snapshot
+	 *            the version number of the snapshot
+	 * @return the books
+	 */
+	private List<ImmutableStockBook> snapshotBooks(long snapshot) {
+		List<ImmutableStockBook> listBooks = new ArrayList<>(bookMap.size());
+
+		for (BookVersion head : bookMap.values()) {
+			ImmutableStockBook book = visibleBook(head, snapshot);
+
+			if (book != null) {
+				listBooks.add(book);
+			}
+		}
+
+		return listBooks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long version = beginWrite();
+		try {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			for (StockBook book : bookSet) {
+				install(book.getISBN(), copyOf(book, book.getNumCopies(), book.getNumSaleMisses(),
+						book.getNumTimesRated(), book.getTotalRating(), book.isEditorPick()), version);
+			}
+		} finally {
+			endWrite(version);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, true);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, false);
+	}
+
+	/**
+	 * Adds copies to the stock.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the copies are invalid or some book is not in the store
+	 */
+	private void addCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long version = beginWrite();
+		try {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(bookCopy);
+			}
+
+			// Update the number of copies, a restock also resets the sale misses
+			for (BookCopy bookCopy : bookCopiesSet) {
+				ImmutableStockBook book = latestBook(bookCopy.getISBN());
+				install(book.getISBN(), copyOf(book, book.getNumCopies() + bookCopy.getNumCopies(),
+						restock ? 0 : book.getNumSaleMisses(),
+						book.getNumTimesRated(), book.getTotalRating(), book.isEditorPick()), version);
+			}
+		} finally {
+			endWrite(version);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() {
+		long snapshot = openSnapshot();
+		try {
+			return new ArrayList<>(snapshotBooks(snapshot));
+		} finally {
+			closeSnapshot(snapshot);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long version = beginWrite();
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validateISBNInStock(editorPickArg.getISBN());
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				ImmutableStockBook book = latestBook(editorPickArg.getISBN());
+				install(book.getISBN(), copyOf(book, book.getNumCopies(), book.getNumSaleMisses(),
+						book.getNumTimesRated(), book.getTotalRating(), editorPickArg.isEditorPick()), version);
+			}
+		} finally {
+			endWrite(version);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Check that all ISBNs that we buy are there first.
+		Map<Integer, Integer> salesMisses = new HashMap<>();
+
+		long version = beginWrite();
+		try {
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				ImmutableStockBook book = validate(bookCopyToBuy);
+
+				if (book.getNumCopies() < bookCopyToBuy.getNumCopies()) {
+					// If we cannot sell the copies of the book, it is a miss.
+					salesMisses.put(book.getISBN(), bookCopyToBuy.getNumCopies() - book.getNumCopies());
+				}
+			}
+
+			// We throw exception now since we want to see how many books in the
+			// order incurred misses which is used by books in demand
+			if (!salesMisses.isEmpty()) {
+				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+					ImmutableStockBook book = latestBook(saleMissEntry.getKey());
+					install(book.getISBN(), copyOf(book, book.getNumCopies(),
+							book.getNumSaleMisses() + saleMissEntry.getValue(), book.getNumTimesRated(),
+							book.getTotalRating(), book.isEditorPick()), version);
+				}
+				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			// Then make the purchase.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				ImmutableStockBook book = latestBook(bookCopyToBuy.getISBN());
+				install(book.getISBN(), copyOf(book, book.getNumCopies() - bookCopyToBuy.getNumCopies(),
+						book.getNumSaleMisses(), book.getNumTimesRated(), book.getTotalRating(), book.isEditorPick()),
+						version);
+			}
+		} finally {
+			endWrite(version);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long snapshot = openSnapshot();
+		try {
+			List<StockBook> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(validateISBNInSnapshot(ISBN, snapshot));
+			}
+
+			return listBooks;
+		} finally {
+			closeSnapshot(snapshot);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long snapshot = openSnapshot();
+		try {
+			List<Book> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(immutableBook(validateISBNInSnapshot(ISBN, snapshot)));
+			}
+
+			return listBooks;
+		} finally {
+			closeSnapshot(snapshot);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<ImmutableStockBook> listAllEditorPicks = new ArrayList<>();
+		long snapshot = openSnapshot();
+		try {
+			for (ImmutableStockBook book : snapshotBooks(snapshot)) {
+				if (book.isEditorPick()) {
+					listAllEditorPicks.add(book);
+				}
+			}
+		} finally {
+			closeSnapshot(snapshot);
+		}
+
+		if (listAllEditorPicks.size() > numBooks) {
+			// We need to pick randomly the books that need to be returned.
+			Collections.shuffle(listAllEditorPicks, ThreadLocalRandom.current());
+			listAllEditorPicks = listAllEditorPicks.subList(0, numBooks);
+		}
+
+		List<Book> listEditorPicks = new ArrayList<>(listAllEditorPicks.size());
+
+		for (ImmutableStockBook book : listAllEditorPicks) {
+			listEditorPicks.add(immutableBook(book));
+		}
+
+		return listEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<ImmutableStockBook> listRatedBooks;
+		long snapshot = openSnapshot();
+		try {
+			listRatedBooks = snapshotBooks(snapshot);
+		} finally {
+			closeSnapshot(snapshot);
+		}
+
+		// The versions are immutable, so the sort needs no snapshot.
+		listRatedBooks.sort(Comparator.comparingDouble(ImmutableStockBook::getAverageRating).reversed());
+
+		List<Book> listTopRatedBooks = new ArrayList<>(Math.min(numBooks, listRatedBooks.size()));
+
+		for (ImmutableStockBook book : listRatedBooks.subList(0, Math.min(numBooks, listRatedBooks.size()))) {
+			listTopRatedBooks.add(immutableBook(book));
+		}
+
+		return listTopRatedBooks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		long snapshot = openSnapshot();
+		try {
+			List<StockBook> listBooksInDemand = new ArrayList<>();
+
+			for (StockBook book : snapshotBooks(snapshot)) {
+				if (book.getNumSaleMisses() > 0) {
+					listBooksInDemand.add(book);
+				}
+			}
+
+			return listBooksInDemand;
+		} finally {
+			closeSnapshot(snapshot);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long version = beginWrite();
+		try {
+			// Check that all ISBNs that we rate are there first.
+			for (BookRating bookToRate : bookRating) {
+				int ratings = bookToRate.getRating();
+				ImmutableStockBook book = validateISBNInStock(bookToRate.getISBN());
+
+				if (BookStoreUtility.isInvalidRating(ratings)) {
+					throw new BookStoreException(BookStoreConstants.RATING + ratings + BookStoreConstants.INVALID);
+				}
+
+				if (book.getNumSaleMisses() > 0) {
+					throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				}
+			}
+
+			// update the sum of ratings and the number of ratings
+			for (BookRating bookToRate : bookRating) {
+				ImmutableStockBook book = latestBook(bookToRate.getISBN());
+				install(book.getISBN(), copyOf(book, book.getNumCopies(), book.getNumSaleMisses(),
+						book.getNumTimesRated() + 1, book.getTotalRating() + bookToRate.getRating(),
+						book.isEditorPick()), version);
+			}
+		} finally {
+			endWrite(version);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			long version = beginWrite();
+			try {
+				for (BookVersion head : new ArrayList<>(bookMap.values())) {
+					if (head.book != null) {
+						install(head.isbn, null, version);
+					}
+				}
+			} finally {
+				endWrite(version);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		stockEscrow.removeBooks(isbnSet, () -> {
+			if (isbnSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			long version = beginWrite();
+			try {
+				for (Integer ISBN : isbnSet) {
+					validateISBNInStock(ISBN);
+				}
+
+				for (int isbn : isbnSet) {
+					install(isbn, null, version);
+				}
+			} finally {
+				endWrite(version);
+			}
+		});
+	}
+}
@@ -0,0 +1,25 @@
+package com.acertainbookstore.business;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+
+/**
+ * {@link OffHeapConcurrentCertainBookStore} implements the {@link BookStore}
+ * and {@link StockManager} functionalities for catalogs too large to keep as
+ * objects on the heap. It works like {@link ColumnarConcurrentCertainBookStore}
+ * but stores the books in an {@link OffHeapStockTable}, so heap usage and
+ * garbage collection pauses do not grow with the number of titles.
+ *
+ * @see BookStore
+ * @see StockManager
+ * @see OffHeapStockTable
+ */
+public class OffHeapConcurrentCertainBookStore extends ColumnarConcurrentCertainBookStore {
+
+	/**
+	 * Instantiates a new {@link OffHeapConcurrentCertainBookStore}.
+	 */
+	public OffHeapConcurrentCertainBookStore() {
+		super(new OffHeapStockTable());
+	}
+}
@@ -0,0 +1,557 @@
+package com.acertainbookstore.business;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link OffHeapStockTable} stores the books of a catalog outside of the Java
+ * heap, in direct byte buffers. Every book is a fixed-width record holding its
+ * numeric fields and the location of its title and author, which are appended
+ * as UTF-8 to separate text buffers. The ISBN to slot index is an open
+ * addressing table in a direct buffer as well, so the heap holds a handful of
+ * buffer objects whatever the size of the catalog, and {@link Book} and
+ * {@link StockBook} objects only exist while they are being returned.
+ * <p>
+ * Records are kept dense by moving the last record into the slot of a removed
+ * book. The text of removed books is reclaimed once it makes up half of the
+ * text written. The table is not synchronized.
+ *
+ * @see StockTable
+ * @see OffHeapConcurrentCertainBookStore
+ */
+public class OffHeapStockTable implements StockTable {
+
+	/** The offset of the ISBN in a record. */
+	private static final int ISBN_OFFSET = 0;
+
+	/** The offset of the number of copies in a record. */
+	private static final int NUM_COPIES_OFFSET = 4;
+
+	/** The offset of the total rating in a record. */
+	private static final int TOTAL_RATING_OFFSET = 8;
+
+	/** The offset of the number of times rated in a record. */
+	private static final int NUM_TIMES_RATED_OFFSET = 16;
+
+	/** The offset of the number of sale misses in a record. */
+	private static final int NUM_SALE_MISSES_OFFSET = 24;
+
+	/** The offset of the price in a record. */
+	private static final int PRICE_OFFSET = 32;
+
+	/** The offset of the editor pick flag in a record. */
+	private static final int EDITOR_PICK_OFFSET = 36;
+
+	/** The offset of the text buffer index in a record. */
+	private static final int TEXT_CHUNK_OFFSET = 40;
+
+	/** The offset of the text position in a record. */
+	private static final int TEXT_POSITION_OFFSET = 44;
+
+	/** The offset of the title length in bytes in a record. */
+	private static final int TITLE_LENGTH_OFFSET = 48;
+
+	/** The offset of the author length in bytes in a record. */
+	private static final int AUTHOR_LENGTH_OFFSET = 52;
+
+	/** The size of a record in bytes. */
+	private static final int RECORD_SIZE = 56;
+
+	/** The binary logarithm of the number of records per record buffer. */
+	private static final int RECORD_CHUNK_SHIFT = 14;
+
+	/** The number of records per record buffer. */
+	private static final int RECORDS_PER_CHUNK = 1 << RECORD_CHUNK_SHIFT;
+
+	/** The size of a text buffer in bytes. */
+	private static final int TEXT_CHUNK_SIZE = 1 << 20;
+
+	/** The size of an index entry in bytes: the ISBN and the slot plus one. */
+	private static final int INDEX_ENTRY_SIZE = 8;
+
+	/** The default number of index entries. */
+	private static final int DEFAULT_INDEX_CAPACITY = 1024;
+
+	/** The number of books. */
+	private int size = 0;
+
+	/** The record buffers. */
+	private ByteBuffer[] recordChunks = new ByteBuffer[0];
+
+	/** The text buffers. */
+	private ByteBuffer[] textChunks = new ByteBuffer[0];
+
+	/** The number of bytes written into the last text buffer. */
+	private int textPosition = 0;
+
+	/** The number of text bytes written. */
+	private long textBytes = 0;
+
+	/** The number of text bytes belonging to removed books. */
+	private long garbageTextBytes = 0;
+
+	/** The index from ISBN to slot, an entry is empty when its slot is 0. */
+	private ByteBuffer index;
+
+	/** The number of entries of the index. */
+	private int indexCapacity;
+
+	/**
+	 * Instantiates a new empty {@link OffHeapStockTable}.
+	 */
+	public OffHeapStockTable() {
+		allocateIndex(DEFAULT_INDEX_CAPACITY);
+	}
+
+	private static ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+	}
+
+	private ByteBuffer recordChunk(int slot) {
+		return recordChunks[slot >>> RECORD_CHUNK_SHIFT];
+	}
+
+	private static int recordBase(int slot) {
+		return (slot & (RECORDS_PER_CHUNK - 1)) * RECORD_SIZE;
+	}
+
+	private void allocateIndex(int capacity) {
+		index = allocate(capacity * INDEX_ENTRY_SIZE);
+		indexCapacity = capacity;
+	}
+
+	/**
+	 * Gets the home entry of an ISBN in the index.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the entry number
+	 */
+	private int homeEntry(int isbn) {
+		// Spread the bits since consecutive ISBNs are common.
+		int hash = isbn * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (indexCapacity - 1);
+	}
+
+	/**
+	 * Gets the index entry of an ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the entry number, or -1 if the ISBN is not in the index
+	 */
+	private int findEntry(int isbn) {
+		int mask = indexCapacity - 1;
+
+		for (int entry = homeEntry(isbn); index.getInt(entry * INDEX_ENTRY_SIZE + 4) != 0; entry = (entry + 1)
+				& mask) {
+			if (index.getInt(entry * INDEX_ENTRY_SIZE) == isbn) {
+				return entry;
+			}
+		}
+
+		return -1;
+	}
+
+	private void putEntry(int isbn, int slot) {
+		int mask = indexCapacity - 1;
+		int entry = homeEntry(isbn);
+
+		while (index.getInt(entry * INDEX_ENTRY_SIZE + 4) != 0) {
+			entry = (entry + 1) & mask;
+		}
+
+		index.putInt(entry * INDEX_ENTRY_SIZE, isbn);
+		index.putInt(entry * INDEX_ENTRY_SIZE + 4, slot + 1);
+	}
+
+	private void removeEntry(int entry) {
+		int mask = indexCapacity - 1;
+
+		// Shift back the entries of the probe sequence which would no longer be
+		// reachable across the hole.
+		int hole = entry;
+
+		for (int next = (hole + 1) & mask; index.getInt(next * INDEX_ENTRY_SIZE + 4) != 0; next = (next + 1)
+				& mask) {
+			int home = homeEntry(index.getInt(next * INDEX_ENTRY_SIZE));
+
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				index.putLong(hole * INDEX_ENTRY_SIZE, index.getLong(next * INDEX_ENTRY_SIZE));
+				hole = next;
+			}
+		}
+
+		index.putInt(hole * INDEX_ENTRY_SIZE + 4, 0);
+	}
+
+	private void growIndex() {
+		ByteBuffer oldIndex = index;
+		int oldCapacity = indexCapacity;
+		allocateIndex(indexCapacity << 1);
+
+		for (int entry = 0; entry < oldCapacity; entry++) {
+			int slotPlusOne = oldIndex.getInt(entry * INDEX_ENTRY_SIZE + 4);
+
+			if (slotPlusOne != 0) {
+				putEntry(oldIndex.getInt(entry * INDEX_ENTRY_SIZE), slotPlusOne - 1);
+			}
+		}
+	}
+
+	/**
+	 * Appends text to the text buffers.
+	 *
+	 * @param text
+	 *            the UTF-8 bytes
+	 * @return the text buffer index in the high and the position in the low 32
+	 *         bits
+	 */
+	private long appendText(byte[] text) {
+		if (textChunks.length == 0 || textPosition + text.length > textChunks[textChunks.length - 1].capacity()) {
+			textChunks = Arrays.copyOf(textChunks, textChunks.length + 1);
+			textChunks[textChunks.length - 1] = allocate(Math.max(TEXT_CHUNK_SIZE, text.length));
+			textPosition = 0;
+		}
+
+		int chunk = textChunks.length - 1;
+		int position = textPosition;
+		ByteBuffer target = textChunks[chunk].duplicate();
+		target.position(position);
+		target.put(text);
+		textPosition += text.length;
+		textBytes += text.length;
+		return ((long) chunk << 32) | position;
+	}
+
+	private byte[] readText(int slot) {
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		byte[] text = new byte[record.getInt(base + TITLE_LENGTH_OFFSET) + record.getInt(base + AUTHOR_LENGTH_OFFSET)];
+		ByteBuffer source = textChunks[record.getInt(base + TEXT_CHUNK_OFFSET)].duplicate();
+		source.position(record.getInt(base + TEXT_POSITION_OFFSET));
+		source.get(text);
+		return text;
+	}
+
+	private void writeTextLocation(int slot, long location, int titleLength, int authorLength) {
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		record.putInt(base + TEXT_CHUNK_OFFSET, (int) (location >>> 32));
+		record.putInt(base + TEXT_POSITION_OFFSET, (int) location);
+		record.putInt(base + TITLE_LENGTH_OFFSET, titleLength);
+		record.putInt(base + AUTHOR_LENGTH_OFFSET, authorLength);
+	}
+
+	/**
+	 * Copies the text of all books into fresh text buffers, dropping the text
+	 * of removed books.
+	 */
+	private void compactText() {
+		ByteBuffer[] oldTextChunks = textChunks;
+		byte[][] texts = new byte[size][];
+
+		for (int slot = 0; slot < size; slot++) {
+			texts[slot] = readText(slot);
+		}
+
+		textChunks = new ByteBuffer[0];
+		textPosition = 0;
+		textBytes = 0;
+		garbageTextBytes = 0;
+
+		for (int slot = 0; slot < size; slot++) {
+			ByteBuffer record = recordChunk(slot);
+			int base = recordBase(slot);
+			writeTextLocation(slot, appendText(texts[slot]), record.getInt(base + TITLE_LENGTH_OFFSET),
+					record.getInt(base + AUTHOR_LENGTH_OFFSET));
+		}
+
+		Arrays.fill(oldTextChunks, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#size()
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#slotOf(int)
+	 */
+	@Override
+	public int slotOf(int isbn) {
+		int entry = findEntry(isbn);
+		return entry < 0 ? -1 : index.getInt(entry * INDEX_ENTRY_SIZE + 4) - 1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.StockTable#add(com.acertainbookstore.business
+	 * .StockBook)
+	 */
+	@Override
+	public int add(StockBook book) {
+		int slot = size;
+
+		if ((slot >>> RECORD_CHUNK_SHIFT) == recordChunks.length) {
+			recordChunks = Arrays.copyOf(recordChunks, recordChunks.length + 1);
+			recordChunks[recordChunks.length - 1] = allocate(RECORDS_PER_CHUNK * RECORD_SIZE);
+		}
+
+		byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+		byte[] author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+		byte[] text = Arrays.copyOf(title, title.length + author.length);
+		System.arraycopy(author, 0, text, title.length, author.length);
+
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		record.putInt(base + ISBN_OFFSET, book.getISBN());
+		record.putInt(base + NUM_COPIES_OFFSET, book.getNumCopies());
+		record.putLong(base + TOTAL_RATING_OFFSET, book.getTotalRating());
+		record.putLong(base + NUM_TIMES_RATED_OFFSET, book.getNumTimesRated());
+		record.putLong(base + NUM_SALE_MISSES_OFFSET, book.getNumSaleMisses());
+		record.putFloat(base + PRICE_OFFSET, book.getPrice());
+		record.put(base + EDITOR_PICK_OFFSET, (byte) (book.isEditorPick() ? 1 : 0));
+		writeTextLocation(slot, appendText(text), title.length, author.length);
+
+		size++;
+
+		if (size > indexCapacity / 2) {
+			growIndex();
+		}
+
+		putEntry(book.getISBN(), slot);
+		return slot;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#remove(int)
+	 */
+	@Override
+	public boolean remove(int isbn) {
+		int entry = findEntry(isbn);
+
+		if (entry < 0) {
+			return false;
+		}
+
+		int slot = index.getInt(entry * INDEX_ENTRY_SIZE + 4) - 1;
+		removeEntry(entry);
+
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		garbageTextBytes += record.getInt(base + TITLE_LENGTH_OFFSET) + record.getInt(base + AUTHOR_LENGTH_OFFSET);
+
+		int last = --size;
+
+		if (slot != last) {
+			ByteBuffer lastRecord = recordChunk(last);
+			int lastBase = recordBase(last);
+
+			for (int offset = 0; offset < RECORD_SIZE; offset += 8) {
+				record.putLong(base + offset, lastRecord.getLong(lastBase + offset));
+			}
+
+			int movedEntry = findEntry(record.getInt(base + ISBN_OFFSET));
+			index.putInt(movedEntry * INDEX_ENTRY_SIZE + 4, slot + 1);
+		}
+
+		if (garbageTextBytes > textBytes / 2) {
+			compactText();
+		}
+
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#clear()
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		recordChunks = new ByteBuffer[0];
+		textChunks = new ByteBuffer[0];
+		textPosition = 0;
+		textBytes = 0;
+		garbageTextBytes = 0;
+		allocateIndex(DEFAULT_INDEX_CAPACITY);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#getISBN(int)
+	 */
+	@Override
+	public int getISBN(int slot) {
+		return recordChunk(slot).getInt(recordBase(slot) + ISBN_OFFSET);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#getNumCopies(int)
+	 */
+	@Override
+	public int getNumCopies(int slot) {
+		return recordChunk(slot).getInt(recordBase(slot) + NUM_COPIES_OFFSET);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#buyCopies(int, int)
+	 */
+	@Override
+	public void buyCopies(int slot, int copies) {
+		ByteBuffer record = recordChunk(slot);
+		int offset = recordBase(slot) + NUM_COPIES_OFFSET;
+		record.putInt(offset, record.getInt(offset) - copies);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#addCopies(int, int)
+	 */
+	@Override
+	public void addCopies(int slot, int copies) {
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		record.putInt(base + NUM_COPIES_OFFSET, record.getInt(base + NUM_COPIES_OFFSET) + copies);
+		record.putLong(base + NUM_SALE_MISSES_OFFSET, 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#returnCopies(int, int)
+	 */
+	@Override
+	public void returnCopies(int slot, int copies) {
+		ByteBuffer record = recordChunk(slot);
+		int offset = recordBase(slot) + NUM_COPIES_OFFSET;
+		record.putInt(offset, record.getInt(offset) + copies);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#addSaleMiss(int, int)
+	 */
+	@Override
+	public void addSaleMiss(int slot, int misses) {
+		ByteBuffer record = recordChunk(slot);
+		int offset = recordBase(slot) + NUM_SALE_MISSES_OFFSET;
+		record.putLong(offset, record.getLong(offset) + misses);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#hadSaleMiss(int)
+	 */
+	@Override
+	public boolean hadSaleMiss(int slot) {
+		return recordChunk(slot).getLong(recordBase(slot) + NUM_SALE_MISSES_OFFSET) > 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#addRating(int, int)
+	 */
+	@Override
+	public void addRating(int slot, int rating) {
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		record.putLong(base + TOTAL_RATING_OFFSET, record.getLong(base + TOTAL_RATING_OFFSET) + rating);
+		record.putLong(base + NUM_TIMES_RATED_OFFSET, record.getLong(base + NUM_TIMES_RATED_OFFSET) + 1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#getAverageRating(int)
+	 */
+	@Override
+	public float getAverageRating(int slot) {
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		long numTimesRated = record.getLong(base + NUM_TIMES_RATED_OFFSET);
+		return numTimesRated == 0 ? -1.0f : (float) record.getLong(base + TOTAL_RATING_OFFSET) / numTimesRated;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#isEditorPick(int)
+	 */
+	@Override
+	public boolean isEditorPick(int slot) {
+		return recordChunk(slot).get(recordBase(slot) + EDITOR_PICK_OFFSET) != 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#setEditorPick(int, boolean)
+	 */
+	@Override
+	public void setEditorPick(int slot, boolean editorPick) {
+		recordChunk(slot).put(recordBase(slot) + EDITOR_PICK_OFFSET, (byte) (editorPick ? 1 : 0));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#immutableBook(int)
+	 */
+	@Override
+	public Book immutableBook(int slot) {
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		int titleLength = record.getInt(base + TITLE_LENGTH_OFFSET);
+		byte[] text = readText(slot);
+
+		return new ImmutableBook(record.getInt(base + ISBN_OFFSET),
+				new String(text, 0, titleLength, StandardCharsets.UTF_8),
+				new String(text, titleLength, text.length - titleLength, StandardCharsets.UTF_8),
+				record.getFloat(base + PRICE_OFFSET));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.StockTable#immutableStockBook(int)
+	 */
+	@Override
+	public StockBook immutableStockBook(int slot) {
+		ByteBuffer record = recordChunk(slot);
+		int base = recordBase(slot);
+		int titleLength = record.getInt(base + TITLE_LENGTH_OFFSET);
+		byte[] text = readText(slot);
+
+		return new ImmutableStockBook(record.getInt(base + ISBN_OFFSET),
+				new String(text, 0, titleLength, StandardCharsets.UTF_8),
+				new String(text, titleLength, text.length - titleLength, StandardCharsets.UTF_8),
+				record.getFloat(base + PRICE_OFFSET), record.getInt(base + NUM_COPIES_OFFSET),
+				record.getLong(base + NUM_SALE_MISSES_OFFSET), record.getLong(base + NUM_TIMES_RATED_OFFSET),
+				record.getLong(base + TOTAL_RATING_OFFSET), record.get(base + EDITOR_PICK_OFFSET) != 0);
+	}
+}
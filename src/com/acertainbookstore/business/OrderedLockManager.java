@@ -0,0 +1,168 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link OrderedLockManager} is the default {@link LockManager}. It relies on
+ * the canonical lock order alone to avoid deadlocks, so conflicting operations
+ * simply queue on {@link ReentrantReadWriteLock}s, but an operation gives up
+ * with a {@link BookStoreException} once it waited longer than the lock
+ * timeout for its locks.
+ *
+ * @see LockManager
+ */
+public class OrderedLockManager implements LockManager {
+
+	/** The global lock. */
+	private final ReadWriteLock globalLock = new ReentrantReadWriteLock();
+
+	/** The local locks. */
+	private final ReadWriteLock[] lockStripes;
+
+	/** The lock timeout in nanoseconds, or 0 to wait forever. */
+	private final long lockTimeoutNanos;
+
+	/**
+	 * Instantiates a new {@link OrderedLockManager}.
+	 *
+	 * @param numLockStripes
+	 *            the number of lock stripes, rounded up to a power of two
+	 * @param lockTimeoutMillis
+	 *            how long an operation may wait for its locks in milliseconds,
+	 *            or 0 to wait forever
+	 */
+	public OrderedLockManager(int numLockStripes, long lockTimeoutMillis) {
+		if (numLockStripes < 1) {
+			throw new IllegalArgumentException("numLockStripes = " + numLockStripes + ", but it must be positive");
+		}
+
+		if (lockTimeoutMillis < 0) {
+			throw new IllegalArgumentException(
+					"lockTimeoutMillis = " + lockTimeoutMillis + ", but it must not be negative");
+		}
+
+		lockStripes = new ReadWriteLock[numLockStripes == 1 ? 1 : Integer.highestOneBit(numLockStripes - 1) << 1];
+		lockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+
+		for (int i = 0; i < lockStripes.length; i++) {
+			lockStripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#getNumStripes()
+	 */
+	@Override
+	public int getNumStripes() {
+		return lockStripes.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#lockLocal(int[], boolean)
+	 */
+	@Override
+	public void lockLocal(int[] stripes, boolean exclusive) throws BookStoreException {
+		long deadline = System.nanoTime() + lockTimeoutNanos;
+
+		acquire(globalLock.readLock(), deadline);
+
+		for (int i = 0; i < stripes.length; i++) {
+			ReadWriteLock lockStripe = lockStripes[stripes[i]];
+
+			try {
+				acquire(exclusive ? lockStripe.writeLock() : lockStripe.readLock(), deadline);
+			} catch (BookStoreException ex) {
+				// Give back what we have so others are not kept waiting.
+				releaseLocal(stripes, i, exclusive);
+				throw ex;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#unlockLocal(int[], boolean)
+	 */
+	@Override
+	public void unlockLocal(int[] stripes, boolean exclusive) {
+		releaseLocal(stripes, stripes.length, exclusive);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#lockGlobal()
+	 */
+	@Override
+	public void lockGlobal() throws BookStoreException {
+		acquire(globalLock.writeLock(), System.nanoTime() + lockTimeoutNanos);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#unlockGlobal()
+	 */
+	@Override
+	public void unlockGlobal() {
+		globalLock.writeLock().unlock();
+	}
+
+	/**
+	 * Releases the first <code>numStripes</code> local locks of
+	 * <code>stripes</code> in reverse order, then the global lock.
+	 *
+	 * @param stripes
+	 *            the stripes
+	 * @param numStripes
+	 *            the number of stripes locked
+	 * @param exclusive
+	 *            whether the local locks are held in exclusive mode
+	 */
+	private void releaseLocal(int[] stripes, int numStripes, boolean exclusive) {
+		for (int i = numStripes - 1; i >= 0; i--) {
+			ReadWriteLock lockStripe = lockStripes[stripes[i]];
+			(exclusive ? lockStripe.writeLock() : lockStripe.readLock()).unlock();
+		}
+
+		globalLock.readLock().unlock();
+	}
+
+	/**
+	 * Takes <code>lock</code>, waiting until <code>deadline</code> at most.
+	 *
+	 * @param lock
+	 *            the lock
+	 * @param deadline
+	 *            the deadline as given by {@link System#nanoTime()}, ignored
+	 *            if there is no lock timeout
+	 * @throws BookStoreException
+	 *             if the deadline passed or the thread was interrupted
+	 */
+	private void acquire(Lock lock, long deadline) throws BookStoreException {
+		if (lockTimeoutNanos == 0) {
+			lock.lock();
+			return;
+		}
+
+		try {
+			if (!lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				throw new BookStoreException(BookStoreConstants.LOCK_TIMEOUT);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreConstants.LOCK_TIMEOUT, ex);
+		}
+	}
+}
@@ -0,0 +1,484 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link PrioritySchedulingCertainBookStore} schedules the calls to a store,
+ * so back-office work does not add to the latency of customers. Calls are
+ * classified as interactive, the calls of {@link BookStore}, or bulk, the
+ * calls of {@link StockManager}. Reservations are interactive, and are
+ * available if the store is a {@link ReservingBookStore}.
+ * <p>
+ * Only bulk calls which write are scheduled. Interactive calls and bulk reads
+ * share the store, and enter it by incrementing a counter of calls in flight,
+ * so they take no lock unless a bulk write holds the gate. Bulk writes are
+ * admitted only a few at a time, and once admitted they wait for a moment when
+ * no shared call is in flight, letting every shared call arriving meanwhile
+ * pass them. A bulk write waiting for the write lock of a store would
+ * otherwise hold up every read arriving after it, since queued writers take
+ * precedence over new readers; holding the gate, it finds the locks free
+ * instead. If no such moment comes within a bounded time, the bulk write
+ * stops letting new shared calls pass and waits for the ones in flight, so a
+ * steady stream of customers cannot starve it.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class PrioritySchedulingCertainBookStore implements ReservingBookStore, StockManager {
+
+	/** The default number of bulk writes running at once. */
+	private static final int DEFAULT_MAX_CONCURRENT_BULK_CALLS = 1;
+
+	/** The default time a bulk write yields to shared calls in milliseconds. */
+	private static final long DEFAULT_MAX_BULK_DEFERRAL_MILLIS = 100;
+
+	/** The store serving the clients. */
+	private final BookStore bookStore;
+
+	/** The store serving the stock managers. */
+	private final StockManager stockManager;
+
+	/** The lock bulk writes and the shared calls waiting for them sleep on. */
+	private final ReentrantLock gate = new ReentrantLock();
+
+	/** The condition signalled when no shared call is in flight. */
+	private final Condition noSharedCalls = gate.newCondition();
+
+	/** The condition signalled when no bulk write holds the gate. */
+	private final Condition noBulkWrites = gate.newCondition();
+
+	/** The shared calls in flight. */
+	private final AtomicInteger sharedCalls = new AtomicInteger();
+
+	/** The bulk writes holding the gate. */
+	private final AtomicInteger bulkWrites = new AtomicInteger();
+
+	/** The bulk writes waiting for the shared calls in flight. */
+	private final AtomicInteger waitingBulkWrites = new AtomicInteger();
+
+	/** The permits of the bulk writes, handed out in arrival order. */
+	private final Semaphore bulkPermits;
+
+	/** The time a bulk write yields to shared calls in nanoseconds. */
+	private final long maxBulkDeferralNanos;
+
+	/** The time a bulk write waits to be admitted in milliseconds, or 0 to wait forever. */
+	private final long admissionTimeoutMillis;
+
+	/**
+	 * Instantiates a new {@link PrioritySchedulingCertainBookStore} admitting
+	 * one bulk write at a time.
+	 *
+	 * @param bookStore
+	 *            the store serving the clients
+	 * @param stockManager
+	 *            the store serving the stock managers
+	 */
+	public PrioritySchedulingCertainBookStore(BookStore bookStore, StockManager stockManager) {
+		this(bookStore, stockManager, DEFAULT_MAX_CONCURRENT_BULK_CALLS, DEFAULT_MAX_BULK_DEFERRAL_MILLIS, 0);
+	}
+
+	/**
+	 * Instantiates a new {@link PrioritySchedulingCertainBookStore}.
+	 *
+	 * @param bookStore
+	 *            the store serving the clients
+	 * @param stockManager
+	 *            the store serving the stock managers
+	 * @param maxConcurrentBulkCalls
+	 *            the number of bulk writes running at once
+	 * @param maxBulkDeferralMillis
+	 *            how long a bulk write yields to shared calls in milliseconds
+	 * @param admissionTimeoutMillis
+	 *            how long a bulk write may wait to be admitted in
+	 *            milliseconds, or 0 to wait forever
+	 */
+	public PrioritySchedulingCertainBookStore(BookStore bookStore, StockManager stockManager,
+			int maxConcurrentBulkCalls, long maxBulkDeferralMillis, long admissionTimeoutMillis) {
+		if (maxConcurrentBulkCalls < 1) {
+			throw new IllegalArgumentException(
+					"maxConcurrentBulkCalls = " + maxConcurrentBulkCalls + ", but it must be positive");
+		}
+
+		if (maxBulkDeferralMillis < 0) {
+			throw new IllegalArgumentException(
+					"maxBulkDeferralMillis = " + maxBulkDeferralMillis + ", but it must not be negative");
+		}
+
+		if (admissionTimeoutMillis < 0) {
+			throw new IllegalArgumentException(
+					"admissionTimeoutMillis = " + admissionTimeoutMillis + ", but it must not be negative");
+		}
+
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+		this.bulkPermits = new Semaphore(maxConcurrentBulkCalls, true);
+		this.maxBulkDeferralNanos = TimeUnit.MILLISECONDS.toNanos(maxBulkDeferralMillis);
+		this.admissionTimeoutMillis = admissionTimeoutMillis;
+	}
+
+	/**
+	 * Gets the store serving the clients as a store holding reservations.
+	 *
+	 * @return the store
+	 * @throws BookStoreException
+	 *             if the store does not hold reservations
+	 */
+	private ReservingBookStore reservingBookStore() throws BookStoreException {
+		if (!(bookStore instanceof ReservingBookStore)) {
+			throw new BookStoreException(BookStoreConstants.RESERVATIONS_NOT_SUPPORTED);
+		}
+
+		return (ReservingBookStore) bookStore;
+	}
+
+	/**
+	 * Lets an interactive call or a bulk read into the store, once no bulk
+	 * write holds the gate.
+	 */
+	private void beginShared() {
+		while (true) {
+			sharedCalls.incrementAndGet();
+
+			// A bulk write announces itself before checking for shared calls,
+			// so either it sees this call or this call sees it.
+			if (bulkWrites.get() == 0) {
+				return;
+			}
+
+			endShared();
+
+			gate.lock();
+			try {
+				while (bulkWrites.get() > 0) {
+					noBulkWrites.awaitUninterruptibly();
+				}
+			} finally {
+				gate.unlock();
+			}
+		}
+	}
+
+	private void endShared() {
+		if (sharedCalls.decrementAndGet() == 0 && waitingBulkWrites.get() > 0) {
+			gate.lock();
+			try {
+				noSharedCalls.signalAll();
+			} finally {
+				gate.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Admits a bulk write, then lets it through the gate once no shared call
+	 * is in flight. When the deferral runs out first, new shared calls are
+	 * held back until the ones in flight are done.
+	 *
+	 * @throws BookStoreException
+	 *             if the call was not admitted in time
+	 */
+	private void beginBulkWrite() throws BookStoreException {
+		try {
+			if (admissionTimeoutMillis == 0) {
+				bulkPermits.acquire();
+			} else if (!bulkPermits.tryAcquire(admissionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new BookStoreException(BookStoreConstants.ADMISSION_TIMEOUT);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreConstants.ADMISSION_TIMEOUT, ex);
+		}
+
+		gate.lock();
+		waitingBulkWrites.incrementAndGet();
+		try {
+			long remainingNanos = maxBulkDeferralNanos;
+
+			while (sharedCalls.get() > 0 && remainingNanos > 0) {
+				remainingNanos = noSharedCalls.awaitNanos(remainingNanos);
+			}
+
+			bulkWrites.incrementAndGet();
+
+			while (sharedCalls.get() > 0) {
+				noSharedCalls.awaitUninterruptibly();
+			}
+		} catch (InterruptedException ex) {
+			bulkPermits.release();
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreConstants.ADMISSION_TIMEOUT, ex);
+		} finally {
+			waitingBulkWrites.decrementAndGet();
+			gate.unlock();
+		}
+	}
+
+	private void endBulkWrite() {
+		if (bulkWrites.decrementAndGet() == 0) {
+			gate.lock();
+			try {
+				noBulkWrites.signalAll();
+			} finally {
+				gate.unlock();
+			}
+		}
+
+		bulkPermits.release();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		beginShared();
+		try {
+			bookStore.buyBooks(bookCopiesToBuy);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		beginShared();
+		try {
+			return reservingBookStore().reserveCopies(bookCopiesToReserve, ttlMillis);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		beginShared();
+		try {
+			reservingBookStore().confirmReservation(reservationId);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		beginShared();
+		try {
+			reservingBookStore().releaseReservation(reservationId);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		beginShared();
+		try {
+			bookStore.rateBooks(bookRating);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		beginShared();
+		try {
+			return bookStore.getBooks(isbnSet);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		beginShared();
+		try {
+			return bookStore.getTopRatedBooks(numBooks);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		beginShared();
+		try {
+			return bookStore.getEditorPicks(numBooks);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		beginBulkWrite();
+		try {
+			stockManager.addBooks(bookSet);
+		} finally {
+			endBulkWrite();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		beginBulkWrite();
+		try {
+			stockManager.addCopies(bookCopiesSet);
+		} finally {
+			endBulkWrite();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		beginShared();
+		try {
+			return stockManager.getBooks();
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		beginShared();
+		try {
+			return stockManager.getBooksByISBN(isbnSet);
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		beginShared();
+		try {
+			return stockManager.getBooksInDemand();
+		} finally {
+			endShared();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util.Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		beginBulkWrite();
+		try {
+			stockManager.updateEditorPicks(editorPicks);
+		} finally {
+			endBulkWrite();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		beginBulkWrite();
+		try {
+			stockManager.removeAllBooks();
+		} finally {
+			endBulkWrite();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		beginBulkWrite();
+		try {
+			stockManager.removeBooks(isbnSet);
+		} finally {
+			endBulkWrite();
+		}
+	}
+}
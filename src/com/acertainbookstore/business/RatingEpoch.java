@@ -0,0 +1,125 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link RatingEpoch} tells readers whether batches of ratings ran while they
+ * read. Stores let <code>rateBooks</code> batches run concurrently with each
+ * other and with readers under a shared lock; each batch is counted when it
+ * starts and when it finishes, and a reader which wants the ratings of several
+ * books as of one point in time accepts its read only if no batch was in
+ * flight when it started and none started until it ended, the same way a
+ * seqlock works.
+ *
+ * @see BookStoreBook
+ */
+public class RatingEpoch {
+
+	/** The number of attempts before a reader should exclude the raters. */
+	private static final int MAX_OPTIMISTIC_READS = 3;
+
+	/**
+	 * {@link RatedRead} is a read of books and their ratings which may be
+	 * retried, so it must copy whatever it returns and must not have side
+	 * effects.
+	 *
+	 * @param <T>
+	 *            the result type
+	 */
+	@FunctionalInterface
+	public interface RatedRead<T> {
+		T read() throws BookStoreException;
+	}
+
+	/** The number of batches started. */
+	private final AtomicLong batchesStarted = new AtomicLong();
+
+	/** The number of batches finished. */
+	private final AtomicLong batchesFinished = new AtomicLong();
+
+	/**
+	 * Records that a batch of ratings starts.
+	 */
+	public void beginBatch() {
+		batchesStarted.incrementAndGet();
+	}
+
+	/**
+	 * Records that a batch of ratings finished.
+	 */
+	public void endBatch() {
+		batchesFinished.incrementAndGet();
+	}
+
+	/**
+	 * Starts a read.
+	 *
+	 * @return the stamp to validate the read with, or -1 if a batch is in
+	 *         flight and reading now is pointless
+	 */
+	public long startRead() {
+		// Read the finished count first: if both counts then match, no batch
+		// was in flight when the started count was read.
+		long finished = batchesFinished.get();
+		long started = batchesStarted.get();
+		return started == finished ? started : -1;
+	}
+
+	/**
+	 * Checks that no batch started since {@link #startRead()} returned
+	 * <code>stamp</code>.
+	 *
+	 * @param stamp
+	 *            the stamp
+	 * @return true, if the read saw the ratings as of one point in time
+	 */
+	public boolean validate(long stamp) {
+		return stamp >= 0 && batchesStarted.get() == stamp;
+	}
+
+	/**
+	 * Runs <code>ratedRead</code> until an attempt did not overlap any batch of
+	 * ratings, giving up after {@link #MAX_OPTIMISTIC_READS} attempts. The
+	 * caller holds a lock excluding every update but ratings, so exceptions
+	 * other than runtime exceptions, which a racing rating may cause, are
+	 * thrown right away.
+	 *
+	 * @param ratedRead
+	 *            the read to perform
+	 * @return the result of the read, or null if every attempt overlapped a
+	 *         batch and the caller has to exclude the raters
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public <T> T readOptimistically(RatedRead<T> ratedRead) throws BookStoreException {
+		for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+			long stamp = startRead();
+
+			if (stamp < 0) {
+				Thread.yield();
+				continue;
+			}
+
+			T result;
+
+			try {
+				result = ratedRead.read();
+			} catch (RuntimeException ex) {
+				// May be caused by ratings changing while the read sorted them.
+				if (validate(stamp)) {
+					throw ex;
+				}
+
+				continue;
+			}
+
+			if (validate(stamp)) {
+				return result;
+			}
+		}
+
+		return null;
+	}
+}
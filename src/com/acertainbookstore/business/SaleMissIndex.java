@@ -0,0 +1,69 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.acertainbookstore.utils.IntHashMap;
+
+/**
+ * {@link SaleMissIndex} keeps the books of a store which missed sales since
+ * copies were last added, so the books in demand are listed without scanning
+ * the catalog.
+ * <p>
+ * Updates are serialized by the index, since a store may record misses of
+ * different books concurrently, but reads are not: the store must exclude
+ * updates while listing.
+ *
+ * @see BookStoreBook
+ */
+public class SaleMissIndex {
+
+	/** The books in demand, by ISBN. */
+	private final IntHashMap<BookStoreBook> booksInDemand = new IntHashMap<>();
+
+	/**
+	 * Adds a book to the index if it missed sales, or removes it otherwise.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	public synchronized void update(BookStoreBook book) {
+		if (book.hadSaleMiss()) {
+			booksInDemand.put(book.getISBN(), book);
+		} else {
+			booksInDemand.remove(book.getISBN());
+		}
+	}
+
+	/**
+	 * Removes a book from the index.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	public synchronized void remove(int isbn) {
+		booksInDemand.remove(isbn);
+	}
+
+	/**
+	 * Removes all books from the index.
+	 */
+	public synchronized void clear() {
+		booksInDemand.clear();
+	}
+
+	/**
+	 * Gets the books in demand.
+	 *
+	 * @return the books
+	 */
+	public List<StockBook> getBooksInDemand() {
+		List<StockBook> listBooksInDemand = new ArrayList<>(booksInDemand.size());
+
+		for (BookStoreBook book : booksInDemand.values()) {
+			listBooksInDemand.add(book.immutableStockBook());
+		}
+
+		return listBooksInDemand;
+	}
+}
@@ -0,0 +1,648 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link ShardedConcurrentCertainBookStore} implements the {@link BookStore}
+ * and {@link StockManager} functionalities. The catalog is split by ISBN hash
+ * into shards, each with its own map and read-write lock. An operation only
+ * locks the shards holding its books, in ascending shard order so that
+ * overlapping operations cannot deadlock; there is no global lock, and scans
+ * of the whole catalog lock every shard in the same order.
+ * <p>
+ * With a single shard this is the single-lock store; the default is a few
+ * shards per core, enough that operations on different books rarely meet on a
+ * shard.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class ShardedConcurrentCertainBookStore implements ReservingBookStore, StockManager {
+
+	/** The default number of shards for every available core. */
+	private static final int DEFAULT_SHARDS_PER_CORE = 4;
+
+	/**
+	 * {@link Shard} is a partition of the catalog, guarded by its own lock.
+	 */
+	private static final class Shard {
+
+		/** The mapping of books from ISBN to {@link BookStoreBook}. */
+		private final Map<Integer, BookStoreBook> bookMap = new HashMap<>();
+
+		/** The lock of the shard. */
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	}
+
+	/** The shards. */
+	private Shard[] shards = null;
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/**
+	 * Instantiates a new {@link ShardedConcurrentCertainBookStore} with
+	 * {@link #DEFAULT_SHARDS_PER_CORE} shards for every available core.
+	 */
+	public ShardedConcurrentCertainBookStore() {
+		this(DEFAULT_SHARDS_PER_CORE * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates a new {@link ShardedConcurrentCertainBookStore}.
+	 *
+	 * @param numShards
+	 *            the number of shards, rounded up to a power of two
+	 */
+	public ShardedConcurrentCertainBookStore(int numShards) {
+		// Constructors are not synchronized
+		if (numShards < 1) {
+			throw new IllegalArgumentException("numShards = " + numShards + ", but it must be positive");
+		}
+
+		shards = new Shard[numShards == 1 ? 1 : Integer.highestOneBit(numShards - 1) << 1];
+
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard();
+		}
+	}
+
+	/**
+	 * Gets the index of the shard holding the book with the given ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the shard index
+	 */
+	private int shardFor(int isbn) {
+		// Spread the bits since consecutive ISBNs are common.
+		int hash = isbn * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (shards.length - 1);
+	}
+
+	/**
+	 * Gets the distinct shards holding the given ISBNs, in ascending order.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the sorted shard indices
+	 */
+	private int[] shardsFor(Collection<Integer> isbns) {
+		return isbns.stream().mapToInt(isbn -> shardFor(isbn)).sorted().distinct().toArray();
+	}
+
+	private Map<Integer, BookStoreBook> bookMapFor(int isbn) {
+		return shards[shardFor(isbn)].bookMap;
+	}
+
+	private void takeReadLocks(int[] shardIndices) {
+		for (int shardIndex : shardIndices) {
+			shards[shardIndex].lock.readLock().lock();
+		}
+	}
+
+	private void releaseReadLocks(int[] shardIndices) {
+		for (int i = shardIndices.length - 1; i >= 0; i--) {
+			shards[shardIndices[i]].lock.readLock().unlock();
+		}
+	}
+
+	private void takeWriteLocks(int[] shardIndices) {
+		for (int shardIndex : shardIndices) {
+			shards[shardIndex].lock.writeLock().lock();
+		}
+	}
+
+	private void releaseWriteLocks(int[] shardIndices) {
+		for (int i = shardIndices.length - 1; i >= 0; i--) {
+			shards[shardIndices[i]].lock.writeLock().unlock();
+		}
+	}
+
+	private void takeAllLocks(boolean exclusive) {
+		for (Shard shard : shards) {
+			(exclusive ? shard.lock.writeLock() : shard.lock.readLock()).lock();
+		}
+	}
+
+	private void releaseAllLocks(boolean exclusive) {
+		for (int i = shards.length - 1; i >= 0; i--) {
+			Lock lock = exclusive ? shards[i].lock.writeLock() : shards[i].lock.readLock();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Collects the books of all shards. The caller holds the locks of all
+	 * shards.
+	 *
+	 * @return the books
+	 */
+	private List<BookStoreBook> allBooks() {
+		List<BookStoreBook> listBooks = new ArrayList<>();
+
+		for (Shard shard : shards) {
+			listBooks.addAll(shard.bookMap.values());
+		}
+
+		return listBooks;
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookMapFor(isbn).containsKey(isbn)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private BookStoreBook validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		BookStoreBook book = validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		return book;
+	}
+
+	private BookStoreBook validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		BookStoreBook book = bookMapFor(ISBN).get(ISBN);
+
+		if (book == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int[] shardIndices = shardsFor(bookSet.stream().map(StockBook::getISBN).collect(Collectors.toList()));
+		takeWriteLocks(shardIndices);
+
+		try {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			for (StockBook book : bookSet) {
+				int isbn = book.getISBN();
+				bookMapFor(isbn).put(isbn, new BookStoreBook(book));
+			}
+		} finally {
+			releaseWriteLocks(shardIndices);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, true);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, false);
+	}
+
+	/**
+	 * Adds copies to the stock.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the copies are invalid or some book is not in the store
+	 */
+	private void addCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int[] shardIndices = shardsFor(bookCopiesSet.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+		takeWriteLocks(shardIndices);
+
+		try {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(bookCopy);
+			}
+
+			// Update the number of copies
+			for (BookCopy bookCopy : bookCopiesSet) {
+				BookStoreBook book = bookMapFor(bookCopy.getISBN()).get(bookCopy.getISBN());
+
+				if (restock) {
+					book.addCopies(bookCopy.getNumCopies());
+				} else {
+					book.returnCopies(bookCopy.getNumCopies());
+				}
+			}
+		} finally {
+			releaseWriteLocks(shardIndices);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() {
+		takeAllLocks(false);
+
+		try {
+			return allBooks().stream().map(book -> book.immutableStockBook()).collect(Collectors.toList());
+		} finally {
+			releaseAllLocks(false);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int[] shardIndices = shardsFor(editorPicks.stream().map(BookEditorPick::getISBN).collect(Collectors.toList()));
+		takeWriteLocks(shardIndices);
+
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validateISBNInStock(editorPickArg.getISBN());
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				int isbn = editorPickArg.getISBN();
+				bookMapFor(isbn).get(isbn).setEditorPick(editorPickArg.isEditorPick());
+			}
+		} finally {
+			releaseWriteLocks(shardIndices);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		Map<BookStoreBook, Integer> salesMisses = new HashMap<>();
+
+		int[] shardIndices = shardsFor(bookCopiesToBuy.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+		takeWriteLocks(shardIndices);
+
+		try {
+			// Check that all ISBNs that we buy are there first.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				BookStoreBook book = validate(bookCopyToBuy);
+
+				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+					// If we cannot sell the copies of the book, it is a miss.
+					salesMisses.put(book, bookCopyToBuy.getNumCopies() - book.getNumCopies());
+				}
+			}
+
+			// We throw exception now since we want to see how many books in the
+			// order incurred misses which is used by books in demand
+			if (!salesMisses.isEmpty()) {
+				for (Map.Entry<BookStoreBook, Integer> saleMissEntry : salesMisses.entrySet()) {
+					saleMissEntry.getKey().addSaleMiss(saleMissEntry.getValue());
+				}
+				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			// Then make the purchase.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				int isbn = bookCopyToBuy.getISBN();
+				bookMapFor(isbn).get(isbn).buyCopies(bookCopyToBuy.getNumCopies());
+			}
+		} finally {
+			releaseWriteLocks(shardIndices);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int[] shardIndices = shardsFor(isbnSet);
+		takeReadLocks(shardIndices);
+
+		try {
+			List<StockBook> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(validateISBNInStock(ISBN).immutableStockBook());
+			}
+
+			return listBooks;
+		} finally {
+			releaseReadLocks(shardIndices);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int[] shardIndices = shardsFor(isbnSet);
+		takeReadLocks(shardIndices);
+
+		try {
+			List<Book> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(validateISBNInStock(ISBN).immutableBook());
+			}
+
+			return listBooks;
+		} finally {
+			releaseReadLocks(shardIndices);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<Book> listAllEditorPicks;
+
+		takeAllLocks(false);
+
+		try {
+			listAllEditorPicks = allBooks().stream().filter(book -> book.isEditorPick())
+					.map(book -> book.immutableBook()).collect(Collectors.toList());
+		} finally {
+			releaseAllLocks(false);
+		}
+
+		if (listAllEditorPicks.size() > numBooks) {
+			// We need to pick randomly the books that need to be returned.
+			Collections.shuffle(listAllEditorPicks, ThreadLocalRandom.current());
+			listAllEditorPicks = new ArrayList<>(listAllEditorPicks.subList(0, numBooks));
+		}
+
+		return listAllEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		takeAllLocks(false);
+
+		try {
+			return allBooks().stream()
+					.sorted(Comparator.comparingDouble(BookStoreBook::getAverageRating).reversed()).limit(numBooks)
+					.map(book -> book.immutableBook()).collect(Collectors.toList());
+		} finally {
+			releaseAllLocks(false);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		takeAllLocks(false);
+
+		try {
+			return allBooks().stream().filter(book -> book.hadSaleMiss()).map(book -> book.immutableStockBook())
+					.collect(Collectors.toList());
+		} finally {
+			releaseAllLocks(false);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int[] shardIndices = shardsFor(bookRating.stream().map(BookRating::getISBN).collect(Collectors.toList()));
+		takeWriteLocks(shardIndices);
+
+		try {
+			// Check that all ISBNs that we rate are there first.
+			for (BookRating bookToRate : bookRating) {
+				int ratings = bookToRate.getRating();
+				BookStoreBook book = validateISBNInStock(bookToRate.getISBN());
+
+				if (BookStoreUtility.isInvalidRating(ratings)) {
+					throw new BookStoreException(BookStoreConstants.RATING + ratings + BookStoreConstants.INVALID);
+				}
+
+				if (book.hadSaleMiss()) {
+					throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				}
+			}
+
+			// update the sum of ratings and the number of ratings
+			for (BookRating bookToRate : bookRating) {
+				int isbn = bookToRate.getISBN();
+				bookMapFor(isbn).get(isbn).addRating(bookToRate.getRating());
+			}
+		} finally {
+			releaseWriteLocks(shardIndices);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			takeAllLocks(true);
+
+			try {
+				for (Shard shard : shards) {
+					shard.bookMap.clear();
+				}
+			} finally {
+				releaseAllLocks(true);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		stockEscrow.removeBooks(isbnSet, () -> {
+			if (isbnSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			int[] shardIndices = shardsFor(isbnSet);
+			takeWriteLocks(shardIndices);
+
+			try {
+				for (Integer ISBN : isbnSet) {
+					validateISBNInStock(ISBN);
+				}
+
+				for (int isbn : isbnSet) {
+					bookMapFor(isbn).remove(isbn);
+				}
+			} finally {
+				releaseWriteLocks(shardIndices);
+			}
+		});
+	}
+}
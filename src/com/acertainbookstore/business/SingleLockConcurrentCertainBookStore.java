@@ -1,47 +1,121 @@
 package com.acertainbookstore.business;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 import java.util.stream.Collectors;
 
+import com.acertainbookstore.interfaces.AsyncBookStore;
+import com.acertainbookstore.interfaces.AsyncStockManager;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.IntHashMap;
 
 /**
  * {@link SingleLockConcurrentCertainBookStore} implements the {@link BookStore}
  * and {@link StockManager} functionalities.
+ * <p>
+ * Purchases are combined: a buyer publishes its order and whoever holds the
+ * write lock applies all published orders in arrival order, so a burst of
+ * orders for a hot book costs one lock acquisition instead of one per order.
+ * <p>
+ * Ratings are accumulated in striped adders, so batches of ratings only take
+ * the read lock and run concurrently with each other. Readers returning
+ * ratings validate against a {@link RatingEpoch} that no batch ran while they
+ * read, and take the write lock if batches keep overlapping.
  * 
  * @see BookStore
  * @see StockManager
+ * @see AsyncBookStore
+ * @see AsyncStockManager
  */
-public class SingleLockConcurrentCertainBookStore implements BookStore, StockManager {
+public class SingleLockConcurrentCertainBookStore
+		implements ReservingBookStore, StockManager, AsyncBookStore, AsyncStockManager {
+
+	/** The time a buyer waits before trying to combine again, in nanoseconds. */
+	private static final long COMBINE_WAIT_NANOS = 50000;
+
+	/** The number of times a buyer tries the write lock before queueing for it. */
+	private static final int MAX_COMBINE_TRY_LOCKS = 4;
+
+	/** The maximum number of times a combiner drains the published orders. */
+	private static final int MAX_COMBINE_PASSES = 4;
 
 	/** The mapping of books from ISBN to {@link BookStoreBook}. */
-	private Map<Integer, BookStoreBook> bookMap = null;
+	private IntHashMap<BookStoreBook> bookMap = null;
 	private ReadWriteLock readWriteLock = null;
 
+	/**
+	 * {@link PendingPurchase} is an order published for the combiner.
+	 */
+	private static final class PendingPurchase {
+
+		/** The books to buy. */
+		private final Set<BookCopy> bookCopiesToBuy;
+
+		/** The thread waiting for the outcome. */
+		private final Thread buyer;
+
+		/** The unexpected failure of the purchase, null if there was none. */
+		private RuntimeException runtimeFailure;
+
+		/** The failure of the purchase, null if it succeeded. */
+		private BookStoreException failure;
+
+		/** Whether the purchase has been applied. */
+		private volatile boolean done = false;
+
+		private PendingPurchase(Set<BookCopy> bookCopiesToBuy) {
+			this.bookCopiesToBuy = bookCopiesToBuy;
+			this.buyer = Thread.currentThread();
+		}
+	}
+
+	/** The orders waiting for a combiner, in arrival order. */
+	private Queue<PendingPurchase> pendingPurchases = null;
+
+	/** The batches of ratings running under the read lock. */
+	private RatingEpoch ratingEpoch = null;
+
+	/** The books ordered by average rating. */
+	private TopRatedIndex topRatedIndex = null;
+
+	/** The editor picks. */
+	private EditorPickIndex editorPickIndex = null;
+
+	/** The books which missed sales. */
+	private SaleMissIndex saleMissIndex = null;
+
+	/** The cached list of all books. */
+	private final CatalogListing catalogListing = new CatalogListing();
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/** The calls which do not block the caller. */
+	private final AsyncStore asyncStore = new AsyncStore(this, this);
+
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
 	public SingleLockConcurrentCertainBookStore() {
 		// Constructors are not synchronized
-		bookMap = new HashMap<>();
+		bookMap = new IntHashMap<>();
 		readWriteLock = new ReentrantReadWriteLock();
+		pendingPurchases = new ConcurrentLinkedQueue<>();
+		ratingEpoch = new RatingEpoch();
+		topRatedIndex = new TopRatedIndex();
+		editorPickIndex = new EditorPickIndex();
+		saleMissIndex = new SaleMissIndex();
 	}
 
 	private void takeReadLock() {
@@ -60,16 +134,55 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		readWriteLock.writeLock().unlock();
 	}
 
-	private void validate(StockBook book) throws BookStoreException {
+	/**
+	 * Runs <code>ratedRead</code> under the read lock, retrying it while
+	 * batches of ratings overlap it, and under the write lock if they keep
+	 * doing so.
+	 *
+	 * @param ratedRead
+	 *            the read to perform
+	 * @return the result of the read
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private <T> T readRatings(RatingEpoch.RatedRead<T> ratedRead) throws BookStoreException {
+		T result;
+
+		takeReadLock();
+		try {
+			result = ratingEpoch.readOptimistically(ratedRead);
+		} finally {
+			releaseReadLock();
+		}
+
+		if (result != null) {
+			return result;
+		}
+
+		takeWriteLock();
+		try {
+			return ratedRead.read();
+		} finally {
+			releaseWriteLock();
+		}
+	}
+
+	/**
+	 * Checks the fields of a book to add, which needs no lock.
+	 *
+	 * @param book
+	 *            the book
+	 * @throws BookStoreException
+	 *             if a field is invalid
+	 */
+	private static void validateFormat(StockBook book) throws BookStoreException {
 		int isbn = book.getISBN();
 		String bookTitle = book.getTitle();
 		String bookAuthor = book.getAuthor();
 		int noCopies = book.getNumCopies();
 		float bookPrice = book.getPrice();
 
-		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
-		}
+		validateISBN(isbn); // Check if the book has valid ISBN
 
 		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
 			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
@@ -86,9 +199,35 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		if (bookPrice < 0.0) { // Check if the price of the book is valid
 			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
+	}
+
+	/**
+	 * Checks the fields of copies to add, which needs no lock.
+	 *
+	 * @param bookCopy
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if a field is invalid
+	 */
+	private static void validateFormat(BookCopy bookCopy) throws BookStoreException {
+		int numCopies = bookCopy.getNumCopies();
+
+		validateISBN(bookCopy.getISBN()); // Check if the book has valid ISBN
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private static void validateISBN(int ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+	}
 
-		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+	private void validateISBNNotInStock(int ISBN) throws BookStoreException {
+		if (bookMap.containsKey(ISBN)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.DUPLICATED);
 		}
 	}
 
@@ -103,15 +242,9 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		}
 	}
 
-	private void validate(BookEditorPick editorPickArg) throws BookStoreException {
-		int isbn = editorPickArg.getISBN();
-		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
-	}
+	private void validateISBNInStock(int ISBN) throws BookStoreException {
+		validateISBN(ISBN); // Check if the book has valid ISBN
 
-	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
-		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
-		}
 		if (!bookMap.containsKey(ISBN)) {// Check if the book is in stock
 			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 		}
@@ -123,22 +256,27 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
 	 */
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BatchValidator.checkAll(bookSet, book -> validateFormat(book));
 
 		takeWriteLock();
 		try {
-			if (bookSet == null) {
-				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
-			}
-
-			// Check if all are there
-			for (StockBook book : bookSet) {
-				validate(book);
-			}
+			// Check if all are new
+			BatchValidator.checkAll(bookSet, book -> validateISBNNotInStock(book.getISBN()));
 
 			for (StockBook book : bookSet) {
 				int isbn = book.getISBN();
-				bookMap.put(isbn, new BookStoreBook(book));
+				BookStoreBook bookStoreBook = new BookStoreBook(book);
+				bookMap.put(isbn, bookStoreBook);
+				topRatedIndex.update(bookStoreBook);
+				editorPickIndex.update(bookStoreBook);
+				saleMissIndex.update(bookStoreBook);
 			}
+
+			catalogListing.modified();
 		} finally {
 			releaseWriteLock();
 		}
@@ -150,18 +288,48 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
 	 */
 	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, true);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, false);
+	}
+
+	/**
+	 * Adds copies to the stock.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the copies are invalid or some book is not in the store
+	 */
+	private void addCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
 		int isbn;
 		int numCopies;
 
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BatchValidator.checkAll(bookCopiesSet, bookCopy -> validateFormat(bookCopy));
+
 		takeWriteLock();
 		try {
-			if (bookCopiesSet == null) {
-				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
-			}
-
-			for (BookCopy bookCopy : bookCopiesSet) {
-				validate(bookCopy);
-			}
+			BatchValidator.checkAll(bookCopiesSet, bookCopy -> validateISBNInStock(bookCopy.getISBN()));
 
 			BookStoreBook book;
 
@@ -170,8 +338,15 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				isbn = bookCopy.getISBN();
 				numCopies = bookCopy.getNumCopies();
 				book = bookMap.get(isbn);
-				book.addCopies(numCopies);
+				if (restock) {
+					book.addCopies(numCopies);
+				} else {
+					book.returnCopies(numCopies);
+				}
+				saleMissIndex.update(book);
 			}
+
+			catalogListing.modified();
 		} finally {
 			releaseWriteLock();
 		}
@@ -182,15 +357,12 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
-	public List<StockBook> getBooks() {
-		try {
+	public List<StockBook> getBooks() throws BookStoreException {
+		return catalogListing.getBooks(() -> readRatings(() -> {
 			Collection<BookStoreBook> bookMapValues = bookMap.values();
 
 			return bookMapValues.stream().map(book -> book.immutableStockBook()).collect(Collectors.toList());
-		} finally {
-			releaseReadLock();
-		}
-
+		}));
 	}
 
 	/*
@@ -201,22 +373,24 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * .Set)
 	 */
 	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BatchValidator.checkAll(editorPicks, editorPickArg -> validateISBN(editorPickArg.getISBN()));
+
 		takeWriteLock();
 		try {
 			// Check that all ISBNs that we add/remove are there first.
-			if (editorPicks == null) {
-				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
-			}
-
-			int isbnValue = 1;
+			BatchValidator.checkAll(editorPicks, editorPickArg -> validateISBNInStock(editorPickArg.getISBN()));
 
 			for (BookEditorPick editorPickArg : editorPicks) {
-				validate(editorPickArg);
+				BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				editorPickIndex.update(book);
 			}
 
-			for (BookEditorPick editorPickArg : editorPicks) {
-				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
-			}
+			catalogListing.modified();
 		} finally {
 			releaseWriteLock();
 		}
@@ -232,6 +406,100 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		PendingPurchase purchase = new PendingPurchase(bookCopiesToBuy);
+		pendingPurchases.add(purchase);
+
+		for (int attempt = 1; !purchase.done; attempt++) {
+			// Queue for the lock once trying failed often enough, so that a
+			// stream of readers cannot keep the buyer from ever combining.
+			if (attempt > MAX_COMBINE_TRY_LOCKS) {
+				takeWriteLock();
+			} else if (!readWriteLock.writeLock().tryLock()) {
+				// The lock holder may pick up our order, it wakes us if so.
+				LockSupport.parkNanos(this, COMBINE_WAIT_NANOS);
+				continue;
+			}
+
+			try {
+				combinePurchases();
+			} finally {
+				releaseWriteLock();
+			}
+		}
+
+		if (purchase.runtimeFailure != null) {
+			throw purchase.runtimeFailure;
+		}
+
+		if (purchase.failure != null) {
+			throw purchase.failure;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/**
+	 * Applies the published orders in arrival order and hands each buyer its
+	 * outcome. Must be called with the write lock held.
+	 */
+	private void combinePurchases() {
+		PendingPurchase purchase;
+
+		for (int pass = 0; pass < MAX_COMBINE_PASSES && !pendingPurchases.isEmpty(); pass++) {
+			while ((purchase = pendingPurchases.poll()) != null) {
+				try {
+					buyCopies(purchase.bookCopiesToBuy);
+				} catch (BookStoreException ex) {
+					purchase.failure = ex;
+				} catch (RuntimeException ex) {
+					purchase.runtimeFailure = ex;
+				}
+
+				purchase.done = true;
+				LockSupport.unpark(purchase.buyer);
+			}
+		}
+	}
+
+	/**
+	 * Buys the books of a single order. Must be called with the write lock
+	 * held.
+	 *
+	 * @param bookCopiesToBuy
+	 *            the books to buy
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private void buyCopies(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
 		// Check that all ISBNs that we buy are there first.
 		int isbn;
 		BookStoreBook book;
@@ -239,40 +507,39 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 
 		Map<Integer, Integer> salesMisses = new HashMap<>();
 
-		takeWriteLock();
-		try {
-			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				isbn = bookCopyToBuy.getISBN();
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			isbn = bookCopyToBuy.getISBN();
 
-				validate(bookCopyToBuy);
+			validate(bookCopyToBuy);
 
-				book = bookMap.get(isbn);
+			book = bookMap.get(isbn);
 
-				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-					// If we cannot sell the copies of the book, it is a miss.
-					salesMisses.put(isbn, bookCopyToBuy.getNumCopies() - book.getNumCopies());
-					saleMiss = true;
-				}
+			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+				// If we cannot sell the copies of the book, it is a miss.
+				salesMisses.put(isbn, bookCopyToBuy.getNumCopies() - book.getNumCopies());
+				saleMiss = true;
 			}
+		}
 
-			// We throw exception now since we want to see how many books in the
-			// order incurred misses which is used by books in demand
-			if (saleMiss) {
-				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
-					book = bookMap.get(saleMissEntry.getKey());
-					book.addSaleMiss(saleMissEntry.getValue());
-				}
-				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		// We throw exception now since we want to see how many books in the
+		// order incurred misses which is used by books in demand
+		if (saleMiss) {
+			for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+				book = bookMap.get(saleMissEntry.getKey());
+				book.addSaleMiss(saleMissEntry.getValue());
+				saleMissIndex.update(book);
 			}
+			catalogListing.modified();
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
 
-			// Then make the purchase.
-			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				book = bookMap.get(bookCopyToBuy.getISBN());
-				book.buyCopies(bookCopyToBuy.getNumCopies());
-			}
-		} finally {
-			releaseWriteLock();
+		// Then make the purchase.
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			book = bookMap.get(bookCopyToBuy.getISBN());
+			book.buyCopies(bookCopyToBuy.getNumCopies());
 		}
+
+		catalogListing.modified();
 	}
 
 	/*
@@ -286,16 +553,13 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		takeReadLock();
-		try {
-			for (Integer ISBN : isbnSet) {
-				validateISBNInStock(ISBN);
-			}
+		BatchValidator.checkAll(isbnSet, ISBN -> validateISBN(ISBN));
+
+		return readRatings(() -> {
+			BatchValidator.checkAll(isbnSet, ISBN -> validateISBNInStock(ISBN));
 
 			return isbnSet.stream().map(isbn -> bookMap.get(isbn).immutableStockBook()).collect(Collectors.toList());
-		} finally {
-			releaseReadLock();
-		}
+		});
 	}
 
 	/*
@@ -334,34 +598,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 			}
 
-			List<BookStoreBook> listAllEditorPicks = bookMap.entrySet().stream().map(pair -> pair.getValue())
-					.filter(book -> book.isEditorPick()).collect(Collectors.toList());
-
-			// Find numBooks random indices of books that will be picked.
-			Random rand = new Random();
-			Set<Integer> tobePicked = new HashSet<>();
-			int rangePicks = listAllEditorPicks.size();
-
-			if (rangePicks <= numBooks) {
-
-				// We need to add all books.
-				for (int i = 0; i < listAllEditorPicks.size(); i++) {
-					tobePicked.add(i);
-				}
-			} else {
-
-				// We need to pick randomly the books that need to be returned.
-				int randNum;
-
-				while (tobePicked.size() < numBooks) {
-					randNum = rand.nextInt(rangePicks);
-					tobePicked.add(randNum);
-				}
-			}
-
-			// Return all the books by the randomly chosen indices.
-			return tobePicked.stream().map(index -> listAllEditorPicks.get(index).immutableBook())
-					.collect(Collectors.toList());
+			return editorPickIndex.getEditorPicks(numBooks);
 		} finally {
 			releaseReadLock();
 		}
@@ -379,74 +616,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
 
-		List<BookStoreBook> listSortedRatedBooks = new ArrayList<BookStoreBook>();
-		List<Book> listTopRatedBooks = new ArrayList<>();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet().iterator();
-
-		BookStoreBook book;
-		takeReadLock();
-		try {
-			// Get all books
-
-			while (it.hasNext()) {
-				Entry<Integer, BookStoreBook> pair = it.next();
-				book = pair.getValue();
-				listSortedRatedBooks.add(book);
-			}
-
-			// Sort all books that are rated
-
-			Collections.sort(listSortedRatedBooks, new Comparator<BookStoreBook>() {
-
-				public int compare(BookStoreBook b1, BookStoreBook b2) {
-
-					float averageRate1 = b1.getAverageRating();
-					float averageRate2 = b2.getAverageRating();
-					if (averageRate1 < averageRate2)
-						return 1;
-					else {
-						if (averageRate1 == averageRate2)
-							return 0;
-						else
-							return -1;
-					}
-				}
-
-			});
-
-			// Find numBooks descending indices of books that will be picked.
-
-			Set<Integer> tobePicked = new HashSet<>();
-			int rangePicks = listSortedRatedBooks.size();
-			if (rangePicks <= numBooks) {
-
-				// We need to add all books.
-
-				for (int i = 0; i < rangePicks; i++) {
-					tobePicked.add(i);
-				}
-
-			} else {
-
-				// We need to pick top k rated books that need to be returned.
-				int indexNum = 0;
-				while (tobePicked.size() < numBooks) {
-					tobePicked.add(indexNum);
-					indexNum++;
-				}
-			}
-
-			// Get the numBooks books.
-
-			for (Integer index : tobePicked) {
-				book = listSortedRatedBooks.get(index);
-				listTopRatedBooks.add(book.immutableBook());
-			}
-			return listTopRatedBooks;
-		} finally {
-			releaseReadLock();
-		}
-
+		return readRatings(() -> topRatedIndex.getTopRatedBooks(numBooks));
 	}
 
 	/*
@@ -456,7 +626,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException();
+		return readRatings(() -> saleMissIndex.getBooksInDemand());
 	}
 
 	/*
@@ -475,7 +645,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		int isbn;
 		int ratings;
 		BookStoreBook book;
-		takeWriteLock();
+		takeReadLock();
 		try {
 			for (BookRating bookToRate : bookRating) {
 
@@ -505,15 +675,22 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				}
 			}
 			// update the sum of ratings and the number of ratings
+			ratingEpoch.beginBatch();
+			try {
+				for (BookRating bookToRate : bookRating) {
 
-			for (BookRating bookToRate : bookRating) {
+					book = bookMap.get(bookToRate.getISBN());
 
-				book = bookMap.get(bookToRate.getISBN());
+					book.addRating(bookToRate.getRating());
+					topRatedIndex.update(book);
+				}
 
-				book.addRating(bookToRate.getRating());
+				catalogListing.modified();
+			} finally {
+				ratingEpoch.endBatch();
 			}
 		} finally {
-			releaseWriteLock();
+			releaseReadLock();
 		}
 	}
 
@@ -523,9 +700,48 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			takeWriteLock();
+			try {
+				bookMap.clear();
+				topRatedIndex.clear();
+				editorPickIndex.clear();
+				saleMissIndex.clear();
+
+				catalogListing.modified();
+			} finally {
+				releaseWriteLock();
+			}
+		});
+	}
+
+	/**
+	 * Replaces all books with copies of <code>books</code>, including their
+	 * sale misses, ratings and editor picks, to take over the state of another
+	 * store. The books are not validated, as they come from a store which did.
+	 *
+	 * @param books
+	 *            the books
+	 * @throws BookStoreException
+	 *             if the locks cannot be taken
+	 */
+	void replaceAllBooks(Collection<StockBook> books) throws BookStoreException {
 		takeWriteLock();
 		try {
 			bookMap.clear();
+			topRatedIndex.clear();
+			editorPickIndex.clear();
+			saleMissIndex.clear();
+
+			for (StockBook book : books) {
+				BookStoreBook bookStoreBook = new BookStoreBook(book);
+				bookMap.put(book.getISBN(), bookStoreBook);
+				topRatedIndex.update(bookStoreBook);
+				editorPickIndex.update(bookStoreBook);
+				saleMissIndex.update(bookStoreBook);
+			}
+
+			catalogListing.modified();
 		} finally {
 			releaseWriteLock();
 		}
@@ -537,27 +753,158 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
-		takeWriteLock();
-		try {
+		stockEscrow.removeBooks(isbnSet, () -> {
 			if (isbnSet == null) {
 				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 			}
 
-			for (Integer ISBN : isbnSet) {
-				if (BookStoreUtility.isInvalidISBN(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
-				}
+			BatchValidator.checkAll(isbnSet, ISBN -> validateISBN(ISBN));
+
+			takeWriteLock();
+			try {
+				BatchValidator.checkAll(isbnSet, ISBN -> validateISBNInStock(ISBN));
 
-				if (!bookMap.containsKey(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+				for (int isbn : isbnSet) {
+					bookMap.remove(isbn);
+					topRatedIndex.remove(isbn);
+					editorPickIndex.remove(isbn);
+					saleMissIndex.remove(isbn);
 				}
-			}
 
-			for (int isbn : isbnSet) {
-				bookMap.remove(isbn);
+				catalogListing.modified();
+			} finally {
+				releaseWriteLock();
 			}
-		} finally {
-			releaseWriteLock();
-		}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#buyBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> bookCopiesToBuy) {
+		return asyncStore.buyBooksAsync(bookCopiesToBuy);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#rateBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating) {
+		return asyncStore.rateBooksAsync(bookRating);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> isbnSet) {
+		return asyncStore.getBooksAsync(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getTopRatedBooksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks) {
+		return asyncStore.getTopRatedBooksAsync(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getEditorPicksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks) {
+		return asyncStore.getEditorPicksAsync(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet) {
+		return asyncStore.addBooksAsync(bookSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addCopiesAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet) {
+		return asyncStore.addCopiesAsync(bookCopiesSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksAsync() {
+		return asyncStore.getBooksAsync();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksByISBNAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(Set<Integer> isbnSet) {
+		return asyncStore.getBooksByISBNAsync(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemandAsync()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync() {
+		return asyncStore.getBooksInDemandAsync();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#updateEditorPicksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> updateEditorPicksAsync(Set<BookEditorPick> editorPicks) {
+		return asyncStore.updateEditorPicksAsync(editorPicks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeAllBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> removeAllBooksAsync() {
+		return asyncStore.removeAllBooksAsync();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet) {
+		return asyncStore.removeBooksAsync(isbnSet);
 	}
 }
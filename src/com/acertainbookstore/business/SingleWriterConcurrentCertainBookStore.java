@@ -0,0 +1,882 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link SingleWriterConcurrentCertainBookStore} implements the
+ * {@link BookStore} and {@link StockManager} functionalities with a single
+ * writer thread. Every operation which modifies the store is written as a
+ * command into a preallocated ring buffer. The writer thread owns the mutable
+ * books, so it applies the commands without any locking, and it drains the
+ * ring in batches: after each batch it publishes immutable copies of the books
+ * the batch changed and only then hands the outcomes back to the waiting
+ * callers. Read operations never enter the ring and work on the published
+ * copies.
+ * <p>
+ * The writer publishes a batch under the write lock of a {@link StampedLock},
+ * so readers see the whole store as of the end of some batch: a read runs as
+ * an optimistic read of the lock and is retried whenever a publication
+ * overlapped it, and only after {@link #MAX_OPTIMISTIC_READS} failed attempts
+ * does it fall back to the read lock.
+ * <p>
+ * Stopping the store is recorded in the sequence producers claim their slots
+ * from, so a producer either claims a slot before the store stopped, and the
+ * writer applies its command before exiting, or fails without claiming one.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class SingleWriterConcurrentCertainBookStore implements ReservingBookStore, StockManager {
+
+	/** The default number of slots in the ring buffer. */
+	private static final int DEFAULT_RING_SIZE = 1024;
+
+	/** The maximum number of commands applied before publishing. */
+	private static final int MAX_BATCH_SIZE = 256;
+
+	/** The time a producer waits for a slot of a full ring, in nanoseconds. */
+	private static final long FULL_RING_WAIT_NANOS = 1000;
+
+	/** The number of optimistic attempts before a reader takes the read lock. */
+	private static final int MAX_OPTIMISTIC_READS = 3;
+
+	/** The bit of the producer sequence set once the store is stopped. */
+	private static final long STOPPED = 1L << 62;
+
+	/**
+	 * {@link PublishedRead} is a read of the published books which may be
+	 * retried, so it must copy whatever it returns and must not have side
+	 * effects.
+	 *
+	 * @param <T>
+	 *            the result type
+	 */
+	@FunctionalInterface
+	private interface PublishedRead<T> {
+		T read() throws BookStoreException;
+	}
+
+	/**
+	 * {@link CommandType} lists the operations going through the ring buffer.
+	 */
+	private enum CommandType {
+		ADD_BOOKS, ADD_COPIES, BUY_BOOKS, RATE_BOOKS, UPDATE_EDITOR_PICKS, REMOVE_BOOKS, REMOVE_ALL_BOOKS, RETURN_COPIES
+	}
+
+	/**
+	 * {@link Slot} is a preallocated entry of the ring buffer. Its sequence
+	 * tells which command it can hold: a slot is free for the command with
+	 * sequence <code>s</code> when its sequence is <code>s</code>, and holds
+	 * that command once its sequence is <code>s + 1</code>. The producer frees
+	 * the slot for the next lap after collecting the outcome.
+	 */
+	private static final class Slot {
+
+		/** The sequence of the slot. */
+		private volatile long sequence;
+
+		/** The type of the command. */
+		private CommandType type;
+
+		/** The argument of the command. */
+		private Set<?> argument;
+
+		/** The thread waiting for the outcome. */
+		private Thread waiter;
+
+		/** The failure of the command, null if it succeeded. */
+		private Throwable failure;
+
+		/** Whether the command has been applied and published. */
+		private volatile boolean done;
+
+		private Slot(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	/** The ring buffer. */
+	private final Slot[] ring;
+
+	/** The mask mapping a sequence to its slot. */
+	private final int ringMask;
+
+	/**
+	 * The next sequence to be claimed by a producer, with {@link #STOPPED} set
+	 * once the store is stopped.
+	 */
+	private final AtomicLong producerSequence = new AtomicLong();
+
+	/** The writer thread. */
+	private final Thread writer;
+
+	/** Whether the writer is parked waiting for commands. */
+	private volatile boolean writerParked = false;
+
+	/**
+	 * The mapping of books from ISBN to {@link BookStoreBook}, owned by the
+	 * writer thread.
+	 */
+	private final Map<Integer, BookStoreBook> bookMap = new HashMap<>();
+
+	/** The ISBNs changed by the current batch, owned by the writer thread. */
+	private final Set<Integer> changedBooks = new HashSet<>();
+
+	/** The published copies of the books, read by everyone else. */
+	private final Map<Integer, StockBook> publishedBooks = new ConcurrentHashMap<>();
+
+	/** The lock the writer publishes batches under. */
+	private final StampedLock publicationLock = new StampedLock();
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/**
+	 * Instantiates a new {@link SingleWriterConcurrentCertainBookStore} with
+	 * the default ring size.
+	 */
+	public SingleWriterConcurrentCertainBookStore() {
+		this(DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Instantiates a new {@link SingleWriterConcurrentCertainBookStore} and
+	 * starts its writer thread.
+	 *
+	 * @param ringSize
+	 *            the number of slots in the ring buffer, rounded up to a power
+	 *            of two
+	 */
+	public SingleWriterConcurrentCertainBookStore(int ringSize) {
+		if (ringSize < 2) {
+			throw new IllegalArgumentException("ringSize = " + ringSize + ", but it must be at least 2");
+		}
+
+		ring = new Slot[Integer.highestOneBit(ringSize - 1) << 1];
+		ringMask = ring.length - 1;
+
+		for (int i = 0; i < ring.length; i++) {
+			ring[i] = new Slot(i);
+		}
+
+		writer = new Thread(this::runWriter, "bookstore-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stops the writer thread once the commands already submitted are applied.
+	 * Operations which modify the store fail afterwards.
+	 */
+	public void stop() {
+		producerSequence.getAndUpdate(sequence -> sequence | STOPPED);
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Claims the sequence of the next command, unless the store is stopped.
+	 *
+	 * @return the sequence
+	 * @throws BookStoreException
+	 *             if the store is stopped
+	 */
+	private long claimSequence() throws BookStoreException {
+		while (true) {
+			long sequence = producerSequence.get();
+
+			if ((sequence & STOPPED) != 0) {
+				throw new BookStoreException("The book store is stopped");
+			}
+
+			if (producerSequence.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+
+	/**
+	 * Submits a command to the writer thread and waits for its outcome.
+	 *
+	 * @param type
+	 *            the type of the command
+	 * @param argument
+	 *            the argument of the command
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private void execute(CommandType type, Set<?> argument) throws BookStoreException {
+		long sequence = claimSequence();
+		Slot slot = ring[(int) (sequence & ringMask)];
+
+		// Wait for the slot if the ring is full.
+		while (slot.sequence != sequence) {
+			LockSupport.parkNanos(this, FULL_RING_WAIT_NANOS);
+		}
+
+		slot.type = type;
+		slot.argument = argument;
+		slot.waiter = Thread.currentThread();
+		slot.failure = null;
+		slot.done = false;
+		slot.sequence = sequence + 1;
+
+		if (writerParked) {
+			LockSupport.unpark(writer);
+		}
+
+		while (!slot.done) {
+			LockSupport.park(this);
+		}
+
+		Throwable failure = slot.failure;
+		slot.argument = null;
+		slot.failure = null;
+		slot.sequence = sequence + ring.length;
+
+		if (failure instanceof BookStoreException) {
+			throw (BookStoreException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure != null) {
+			throw new BookStoreException(failure);
+		}
+	}
+
+	/**
+	 * The loop of the writer thread.
+	 */
+	private void runWriter() {
+		Slot[] batch = new Slot[MAX_BATCH_SIZE];
+		long nextSequence = 0;
+
+		while (true) {
+			Slot slot = ring[(int) (nextSequence & ringMask)];
+
+			if (slot.sequence != nextSequence + 1) {
+				// Exit once stopped with every claimed command applied.
+				if (producerSequence.get() == (nextSequence | STOPPED)) {
+					return;
+				}
+
+				writerParked = true;
+
+				if (slot.sequence != nextSequence + 1 && producerSequence.get() != (nextSequence | STOPPED)) {
+					LockSupport.park(this);
+				}
+
+				writerParked = false;
+				continue;
+			}
+
+			int batchSize = 0;
+
+			while (batchSize < MAX_BATCH_SIZE && slot.sequence == nextSequence + 1) {
+				apply(slot);
+				batch[batchSize++] = slot;
+				nextSequence++;
+				slot = ring[(int) (nextSequence & ringMask)];
+			}
+
+			publish();
+
+			for (int i = 0; i < batchSize; i++) {
+				// Read the waiter first, the slot may be reused once it is done.
+				Thread waiter = batch[i].waiter;
+				batch[i].waiter = null;
+				batch[i].done = true;
+				LockSupport.unpark(waiter);
+				batch[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Applies the command in <code>slot</code> to the books and records its
+	 * failure, if any.
+	 *
+	 * @param slot
+	 *            the slot
+	 */
+	@SuppressWarnings("unchecked")
+	private void apply(Slot slot) {
+		try {
+			switch (slot.type) {
+			case ADD_BOOKS:
+				applyAddBooks((Set<StockBook>) slot.argument);
+				break;
+
+			case ADD_COPIES:
+				applyAddCopies((Set<BookCopy>) slot.argument, true);
+				break;
+
+			case RETURN_COPIES:
+				applyAddCopies((Set<BookCopy>) slot.argument, false);
+				break;
+
+			case BUY_BOOKS:
+				applyBuyBooks((Set<BookCopy>) slot.argument);
+				break;
+
+			case RATE_BOOKS:
+				applyRateBooks((Set<BookRating>) slot.argument);
+				break;
+
+			case UPDATE_EDITOR_PICKS:
+				applyUpdateEditorPicks((Set<BookEditorPick>) slot.argument);
+				break;
+
+			case REMOVE_BOOKS:
+				applyRemoveBooks((Set<Integer>) slot.argument);
+				break;
+
+			case REMOVE_ALL_BOOKS:
+				changedBooks.addAll(bookMap.keySet());
+				bookMap.clear();
+				break;
+
+			default:
+				throw new IllegalStateException("Unsupported command " + slot.type);
+			}
+		} catch (BookStoreException | RuntimeException ex) {
+			slot.failure = ex;
+		}
+	}
+
+	/**
+	 * Publishes copies of the books changed by the current batch.
+	 */
+	private void publish() {
+		if (changedBooks.isEmpty()) {
+			return;
+		}
+
+		long stamp = publicationLock.writeLock();
+		try {
+			for (Integer isbn : changedBooks) {
+				BookStoreBook book = bookMap.get(isbn);
+
+				if (book == null) {
+					publishedBooks.remove(isbn);
+				} else {
+					publishedBooks.put(isbn, book.immutableStockBook());
+				}
+			}
+		} finally {
+			publicationLock.unlockWrite(stamp);
+		}
+
+		changedBooks.clear();
+	}
+
+	/**
+	 * Runs <code>publishedRead</code> as an optimistic read, retrying it
+	 * whenever a publication overlapped it, and under the read lock once the
+	 * optimistic attempts are used up. Results and exceptions of an attempt
+	 * are only surfaced after its stamp was validated.
+	 *
+	 * @param publishedRead
+	 *            the read to perform
+	 * @return the result of the read
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private <T> T read(PublishedRead<T> publishedRead) throws BookStoreException {
+		for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+			long stamp = publicationLock.tryOptimisticRead();
+
+			if (stamp == 0) {
+				// The writer is publishing a batch, no point in reading now.
+				continue;
+			}
+
+			T result = null;
+			Exception failure = null;
+
+			try {
+				result = publishedRead.read();
+			} catch (BookStoreException | RuntimeException ex) {
+				// May be caused by reading a batch while it was published.
+				failure = ex;
+			}
+
+			if (publicationLock.validate(stamp)) {
+				if (failure instanceof BookStoreException) {
+					throw (BookStoreException) failure;
+				} else if (failure != null) {
+					throw (RuntimeException) failure;
+				}
+
+				return result;
+			}
+		}
+
+		long stamp = publicationLock.readLock();
+		try {
+			return publishedRead.read();
+		} finally {
+			publicationLock.unlockRead(stamp);
+		}
+	}
+
+	private static Book immutableBook(StockBook book) {
+		return new ImmutableBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice());
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private void validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+		if (!bookMap.containsKey(ISBN)) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	private StockBook validatePublishedISBN(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		StockBook book = publishedBooks.get(ISBN);
+
+		if (book == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	private void applyAddBooks(Set<StockBook> bookSet) throws BookStoreException {
+		// Check if all are there
+		for (StockBook book : bookSet) {
+			validate(book);
+		}
+
+		for (StockBook book : bookSet) {
+			bookMap.put(book.getISBN(), new BookStoreBook(book));
+			changedBooks.add(book.getISBN());
+		}
+	}
+
+	private void applyAddCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
+		for (BookCopy bookCopy : bookCopiesSet) {
+			validate(bookCopy);
+		}
+
+		// Update the number of copies, only a restock resets the sale misses
+		for (BookCopy bookCopy : bookCopiesSet) {
+			BookStoreBook book = bookMap.get(bookCopy.getISBN());
+
+			if (restock) {
+				book.addCopies(bookCopy.getNumCopies());
+			} else {
+				book.returnCopies(bookCopy.getNumCopies());
+			}
+
+			changedBooks.add(bookCopy.getISBN());
+		}
+	}
+
+	private void applyBuyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		Map<Integer, Integer> salesMisses = new HashMap<>();
+
+		// Check that all ISBNs that we buy are there first.
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			validate(bookCopyToBuy);
+
+			BookStoreBook book = bookMap.get(bookCopyToBuy.getISBN());
+
+			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+				// If we cannot sell the copies of the book, it is a miss.
+				salesMisses.put(book.getISBN(), bookCopyToBuy.getNumCopies() - book.getNumCopies());
+			}
+		}
+
+		// We throw exception now since we want to see how many books in the
+		// order incurred misses which is used by books in demand
+		if (!salesMisses.isEmpty()) {
+			for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+				bookMap.get(saleMissEntry.getKey()).addSaleMiss(saleMissEntry.getValue());
+				changedBooks.add(saleMissEntry.getKey());
+			}
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		// Then make the purchase.
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			bookMap.get(bookCopyToBuy.getISBN()).buyCopies(bookCopyToBuy.getNumCopies());
+			changedBooks.add(bookCopyToBuy.getISBN());
+		}
+	}
+
+	private void applyRateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		// Check that all ISBNs that we rate are there first.
+		for (BookRating bookToRate : bookRating) {
+			int ratings = bookToRate.getRating();
+			validateISBNInStock(bookToRate.getISBN());
+
+			if (BookStoreUtility.isInvalidRating(ratings)) {
+				throw new BookStoreException(BookStoreConstants.RATING + ratings + BookStoreConstants.INVALID);
+			}
+
+			if (bookMap.get(bookToRate.getISBN()).hadSaleMiss()) {
+				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+			}
+		}
+
+		// update the sum of ratings and the number of ratings
+		for (BookRating bookToRate : bookRating) {
+			bookMap.get(bookToRate.getISBN()).addRating(bookToRate.getRating());
+			changedBooks.add(bookToRate.getISBN());
+		}
+	}
+
+	private void applyUpdateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		for (BookEditorPick editorPickArg : editorPicks) {
+			validateISBNInStock(editorPickArg.getISBN());
+		}
+
+		for (BookEditorPick editorPickArg : editorPicks) {
+			bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+			changedBooks.add(editorPickArg.getISBN());
+		}
+	}
+
+	private void applyRemoveBooks(Set<Integer> isbnSet) throws BookStoreException {
+		for (Integer ISBN : isbnSet) {
+			validateISBNInStock(ISBN);
+		}
+
+		for (int isbn : isbnSet) {
+			bookMap.remove(isbn);
+			changedBooks.add(isbn);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(CommandType.ADD_BOOKS, bookSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(CommandType.ADD_COPIES, bookCopiesSet);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		execute(CommandType.RETURN_COPIES, bookCopiesSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() throws BookStoreException {
+		return read(() -> new ArrayList<>(publishedBooks.values()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(CommandType.UPDATE_EDITOR_PICKS, editorPicks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(CommandType.BUY_BOOKS, bookCopiesToBuy);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return read(() -> {
+			List<StockBook> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(validatePublishedISBN(ISBN));
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return read(() -> {
+			List<Book> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(immutableBook(validatePublishedISBN(ISBN)));
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<Book> listAllEditorPicks = read(() -> {
+			List<Book> listEditorPicks = new ArrayList<>();
+
+			for (StockBook book : publishedBooks.values()) {
+				if (book.isEditorPick()) {
+					listEditorPicks.add(immutableBook(book));
+				}
+			}
+
+			return listEditorPicks;
+		});
+
+		if (listAllEditorPicks.size() > numBooks) {
+			// We need to pick randomly the books that need to be returned.
+			Collections.shuffle(listAllEditorPicks, ThreadLocalRandom.current());
+			listAllEditorPicks = new ArrayList<>(listAllEditorPicks.subList(0, numBooks));
+		}
+
+		return listAllEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<StockBook> listRatedBooks = read(() -> new ArrayList<>(publishedBooks.values()));
+		listRatedBooks.sort(Comparator.comparingDouble(StockBook::getAverageRating).reversed());
+
+		List<Book> listTopRatedBooks = new ArrayList<>(Math.min(numBooks, listRatedBooks.size()));
+
+		for (StockBook book : listRatedBooks.subList(0, Math.min(numBooks, listRatedBooks.size()))) {
+			listTopRatedBooks.add(immutableBook(book));
+		}
+
+		return listTopRatedBooks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return read(() -> {
+			List<StockBook> listBooksInDemand = new ArrayList<>();
+
+			for (StockBook book : publishedBooks.values()) {
+				if (book.getNumSaleMisses() > 0) {
+					listBooksInDemand.add(book);
+				}
+			}
+
+			return listBooksInDemand;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(CommandType.RATE_BOOKS, bookRating);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			execute(CommandType.REMOVE_ALL_BOOKS, null);
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		stockEscrow.removeBooks(isbnSet, () -> {
+			if (isbnSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			execute(CommandType.REMOVE_BOOKS, isbnSet);
+		});
+	}
+}
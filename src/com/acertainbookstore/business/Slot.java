@@ -0,0 +1,109 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link Slot} holds an immutable value of the lock-free store, such as the
+ * stock of a book. A value is replaced with compare-and-set, either alone or
+ * together with the values of other slots by a {@link MultiSlotUpdate}, which
+ * is installed in each of its slots until it is decided. Readers never wait
+ * for an update: a slot holding an update reads as the value the update found
+ * there until it is decided, and as the value it leaves there after. Writers
+ * finding an update in a slot complete it before replacing the value.
+ * <p>
+ * Every value a slot takes is a new object, so a value read twice was not
+ * replaced in between.
+ *
+ * @see MultiSlotUpdate
+ */
+class Slot extends AtomicReference<Object> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * {@link Reader} reads the values of slots, either as they are now or as
+	 * they were at some point in time.
+	 */
+	@FunctionalInterface
+	interface Reader {
+
+		/**
+		 * Reads the value of a slot.
+		 *
+		 * @param slot
+		 *            the slot
+		 * @return the value
+		 */
+		Object read(Slot slot);
+	}
+
+	/** The next rank not given to a slot yet. */
+	private static final AtomicLong nextRank = new AtomicLong();
+
+	/** The rank of the slot, the order in which updates claim their slots. */
+	private final long rank;
+
+	/**
+	 * Instantiates a new {@link Slot}.
+	 *
+	 * @param rank
+	 *            the rank, reserved with {@link #reserveRanks(int)}
+	 * @param value
+	 *            the initial value
+	 */
+	Slot(long rank, Object value) {
+		super(value);
+		this.rank = rank;
+	}
+
+	/**
+	 * Reserves ranks for new slots, so that no two slots share a rank.
+	 *
+	 * @param numRanks
+	 *            the number of ranks
+	 * @return the first rank, the others follow it
+	 */
+	static long reserveRanks(int numRanks) {
+		return nextRank.getAndAdd(numRanks);
+	}
+
+	/**
+	 * Gets the rank of the slot.
+	 *
+	 * @return the rank
+	 */
+	long getRank() {
+		return rank;
+	}
+
+	/**
+	 * Reads the value of the slot without waiting for or helping an update
+	 * installed in it.
+	 *
+	 * @return the value
+	 */
+	Object read() {
+		Object value = get();
+		return (value instanceof MultiSlotUpdate ? ((MultiSlotUpdate) value).valueOf(this) : value);
+	}
+
+	/**
+	 * Gets the value of the slot, completing the updates installed in it
+	 * first, so that the value can be replaced with compare-and-set.
+	 *
+	 * @return the value
+	 */
+	Object settle() {
+		while (true) {
+			Object value = get();
+
+			if (!(value instanceof MultiSlotUpdate)) {
+				return value;
+			}
+
+			((MultiSlotUpdate) value).complete();
+		}
+	}
+}
@@ -0,0 +1,615 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link StampedLockConcurrentCertainBookStore} implements the
+ * {@link BookStore} and {@link StockManager} functionalities. Like
+ * {@link SingleLockConcurrentCertainBookStore} it protects the whole store
+ * with a single lock, but it uses a {@link StampedLock}: the read operations
+ * first run as optimistic reads which do not write to the lock at all, and are
+ * validated and retried if a writer got in. Only after
+ * {@link #MAX_OPTIMISTIC_READS} failed attempts does a reader fall back to the
+ * read lock.
+ *
+ * @see BookStore
+ * @see StockManager
+ * @see SingleLockConcurrentCertainBookStore
+ */
+public class StampedLockConcurrentCertainBookStore implements ReservingBookStore, StockManager {
+
+	/** The number of optimistic attempts before a reader takes the read lock. */
+	private static final int MAX_OPTIMISTIC_READS = 3;
+
+	/**
+	 * {@link StoreRead} is a read of the store which may run optimistically, so
+	 * it must copy whatever it returns and must not have side effects.
+	 *
+	 * @param <T>
+	 *            the result type
+	 */
+	@FunctionalInterface
+	private interface StoreRead<T> {
+		T read() throws BookStoreException;
+	}
+
+	/**
+	 * The mapping of books from ISBN to {@link BookStoreBook}. The map is
+	 * concurrent so that optimistic readers never observe a map in the middle
+	 * of a resize; the books themselves are only consistent once the stamp has
+	 * been validated.
+	 */
+	private Map<Integer, BookStoreBook> bookMap = null;
+	private StampedLock stampedLock = null;
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/**
+	 * Instantiates a new {@link StampedLockConcurrentCertainBookStore}.
+	 */
+	public StampedLockConcurrentCertainBookStore() {
+		// Constructors are not synchronized
+		bookMap = new ConcurrentHashMap<>();
+		stampedLock = new StampedLock();
+	}
+
+	private long takeWriteLock() {
+		return stampedLock.writeLock();
+	}
+
+	private void releaseWriteLock(long stamp) {
+		stampedLock.unlockWrite(stamp);
+	}
+
+	/**
+	 * Runs <code>storeRead</code> as an optimistic read, retrying it whenever a
+	 * writer invalidated the stamp, and under the read lock once the optimistic
+	 * attempts are used up. Results and exceptions of an attempt are only
+	 * surfaced after its stamp was validated.
+	 *
+	 * @param storeRead
+	 *            the read to perform
+	 * @return the result of the read
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private <T> T read(StoreRead<T> storeRead) throws BookStoreException {
+		for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+			long stamp = stampedLock.tryOptimisticRead();
+
+			if (stamp == 0) {
+				// A writer holds the lock, no point in reading now.
+				continue;
+			}
+
+			T result = null;
+			Exception failure = null;
+
+			try {
+				result = storeRead.read();
+			} catch (BookStoreException | RuntimeException ex) {
+				// May be caused by reading a book while it was being updated.
+				failure = ex;
+			}
+
+			if (stampedLock.validate(stamp)) {
+				if (failure instanceof BookStoreException) {
+					throw (BookStoreException) failure;
+				} else if (failure != null) {
+					throw (RuntimeException) failure;
+				}
+
+				return result;
+			}
+		}
+
+		long stamp = stampedLock.readLock();
+		try {
+			return storeRead.read();
+		} finally {
+			stampedLock.unlockRead(stamp);
+		}
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private void validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validate(BookEditorPick editorPickArg) throws BookStoreException {
+		int isbn = editorPickArg.getISBN();
+		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+	}
+
+	private BookStoreBook validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		BookStoreBook book = bookMap.get(ISBN);
+
+		if (book == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		long stamp = takeWriteLock();
+		try {
+			if (bookSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			for (StockBook book : bookSet) {
+				int isbn = book.getISBN();
+				bookMap.put(isbn, new BookStoreBook(book));
+			}
+		} finally {
+			releaseWriteLock(stamp);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, true);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, false);
+	}
+
+	/**
+	 * Adds copies to the stock.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the copies are invalid or some book is not in the store
+	 */
+	private void addCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
+		long stamp = takeWriteLock();
+		try {
+			if (bookCopiesSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(bookCopy);
+			}
+
+			// Update the number of copies
+			for (BookCopy bookCopy : bookCopiesSet) {
+				BookStoreBook book = bookMap.get(bookCopy.getISBN());
+
+				if (restock) {
+					book.addCopies(bookCopy.getNumCopies());
+				} else {
+					book.returnCopies(bookCopy.getNumCopies());
+				}
+			}
+		} finally {
+			releaseWriteLock(stamp);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() throws BookStoreException {
+		return read(() -> {
+			List<StockBook> listBooks = new ArrayList<>(bookMap.size());
+
+			for (BookStoreBook book : bookMap.values()) {
+				listBooks.add(book.immutableStockBook());
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		long stamp = takeWriteLock();
+		try {
+			// Check that all ISBNs that we add/remove are there first.
+			if (editorPicks == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validate(editorPickArg);
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+			}
+		} finally {
+			releaseWriteLock(stamp);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Check that all ISBNs that we buy are there first.
+		int isbn;
+		BookStoreBook book;
+		boolean saleMiss = false;
+
+		Map<Integer, Integer> salesMisses = new HashMap<>();
+
+		long stamp = takeWriteLock();
+		try {
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				isbn = bookCopyToBuy.getISBN();
+
+				validate(bookCopyToBuy);
+
+				book = bookMap.get(isbn);
+
+				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+					// If we cannot sell the copies of the book, it is a miss.
+					salesMisses.put(isbn, bookCopyToBuy.getNumCopies() - book.getNumCopies());
+					saleMiss = true;
+				}
+			}
+
+			// We throw exception now since we want to see how many books in the
+			// order incurred misses which is used by books in demand
+			if (saleMiss) {
+				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+					book = bookMap.get(saleMissEntry.getKey());
+					book.addSaleMiss(saleMissEntry.getValue());
+				}
+				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			// Then make the purchase.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				book = bookMap.get(bookCopyToBuy.getISBN());
+				book.buyCopies(bookCopyToBuy.getNumCopies());
+			}
+		} finally {
+			releaseWriteLock(stamp);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return read(() -> {
+			List<StockBook> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(validateISBNInStock(ISBN).immutableStockBook());
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return read(() -> {
+			List<Book> listBooks = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(validateISBNInStock(ISBN).immutableBook());
+			}
+
+			return listBooks;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<Book> listAllEditorPicks = read(() -> {
+			List<Book> editorPicks = new ArrayList<>();
+
+			for (BookStoreBook book : bookMap.values()) {
+				if (book.isEditorPick()) {
+					editorPicks.add(book.immutableBook());
+				}
+			}
+
+			return editorPicks;
+		});
+
+		// The picks are private copies by now, so they can be sampled without
+		// holding on to the lock.
+		if (listAllEditorPicks.size() > numBooks) {
+			Collections.shuffle(listAllEditorPicks, ThreadLocalRandom.current());
+			listAllEditorPicks = new ArrayList<>(listAllEditorPicks.subList(0, numBooks));
+		}
+
+		return listAllEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// Copy each book together with its average rating, so that the sort
+		// below works on values that cannot change under it.
+		List<StockBook> listRatedBooks = read(() -> {
+			List<StockBook> ratedBooks = new ArrayList<>(bookMap.size());
+
+			for (BookStoreBook book : bookMap.values()) {
+				ratedBooks.add(book.immutableStockBook());
+			}
+
+			return ratedBooks;
+		});
+
+		listRatedBooks.sort(Comparator.comparingDouble(StockBook::getAverageRating).reversed());
+
+		List<Book> listTopRatedBooks = new ArrayList<>(Math.min(numBooks, listRatedBooks.size()));
+
+		for (StockBook book : listRatedBooks.subList(0, Math.min(numBooks, listRatedBooks.size()))) {
+			listTopRatedBooks.add(new ImmutableBook(book.getISBN(), book.getTitle(), book.getAuthor(),
+					book.getPrice()));
+		}
+
+		return listTopRatedBooks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return read(() -> {
+			List<StockBook> listBooksInDemand = new ArrayList<>();
+
+			for (BookStoreBook book : bookMap.values()) {
+				if (book.hadSaleMiss()) {
+					listBooksInDemand.add(book.immutableStockBook());
+				}
+			}
+
+			return listBooksInDemand;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long stamp = takeWriteLock();
+		try {
+			// Check that all ISBNs that we rate are there first.
+			for (BookRating bookToRate : bookRating) {
+				int ratings = bookToRate.getRating();
+				BookStoreBook book = validateISBNInStock(bookToRate.getISBN());
+
+				if (BookStoreUtility.isInvalidRating(ratings)) {
+					throw new BookStoreException(BookStoreConstants.RATING + ratings + BookStoreConstants.INVALID);
+				}
+
+				if (book.hadSaleMiss()) {
+					throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				}
+			}
+
+			// update the sum of ratings and the number of ratings
+			for (BookRating bookToRate : bookRating) {
+				bookMap.get(bookToRate.getISBN()).addRating(bookToRate.getRating());
+			}
+		} finally {
+			releaseWriteLock(stamp);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		stockEscrow.removeAllBooks(() -> {
+			long stamp = takeWriteLock();
+			try {
+				bookMap.clear();
+			} finally {
+				releaseWriteLock(stamp);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		stockEscrow.removeBooks(isbnSet, () -> {
+			long stamp = takeWriteLock();
+			try {
+				if (isbnSet == null) {
+					throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+				}
+
+				for (Integer ISBN : isbnSet) {
+					validateISBNInStock(ISBN);
+				}
+
+				for (int isbn : isbnSet) {
+					bookMap.remove(isbn);
+				}
+			} finally {
+				releaseWriteLock(stamp);
+			}
+		});
+	}
+}
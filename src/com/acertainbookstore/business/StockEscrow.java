@@ -0,0 +1,342 @@
+package com.acertainbookstore.business;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link StockEscrow} implements timed reservations of copies for a store.
+ * Reserving takes the copies out of stock with <code>buyBooks</code>, so the
+ * store's locks are held only as long as for a purchase and reserved copies
+ * can never be sold twice. The reserved copies are then held in escrow until
+ * the reservation is confirmed, which keeps them sold, or released or expired,
+ * which hands them back to the store through its {@link CopyReturn}. Handing
+ * copies back is not a restock: unlike <code>addCopies</code> it leaves the
+ * sale misses of the books alone, so abandoned reservations do not hide the
+ * demand reported by <code>getBooksInDemand</code>.
+ * <p>
+ * Whichever of confirming, releasing or the reaper removes a reservation from
+ * the escrow first settles it, and the others find it gone.
+ * <p>
+ * Removing a book voids the copies of it held in escrow, so they are never
+ * handed to a book added later under the same ISBN. The store removes books
+ * through {@link #removeBooks(Set, Removal)} and
+ * {@link #removeAllBooks(Removal)}, which exclude reserving and handing copies
+ * back while the books are removed and their copies voided. The escrow takes
+ * its lock before any lock of the store, never the other way around.
+ *
+ * @see BookStore
+ */
+public class StockEscrow {
+
+	/**
+	 * {@link CopyReturn} hands copies taken out of stock back to a store,
+	 * adding them to the number of copies without clearing the sale misses.
+	 */
+	@FunctionalInterface
+	interface CopyReturn {
+
+		/**
+		 * Returns copies to stock.
+		 *
+		 * @param bookCopies
+		 *            the copies
+		 * @throws BookStoreException
+		 *             if some book is not in the store, in which case no
+		 *             copies are returned
+		 */
+		void returnCopies(Set<BookCopy> bookCopies) throws BookStoreException;
+	}
+
+	/**
+	 * {@link Removal} removes books from a store.
+	 */
+	@FunctionalInterface
+	interface Removal {
+
+		/**
+		 * Removes the books.
+		 *
+		 * @throws BookStoreException
+		 *             if the books cannot be removed, in which case none are
+		 */
+		void remove() throws BookStoreException;
+	}
+
+	/**
+	 * {@link Reaper} holds the thread expiring reservations of all stores,
+	 * started when the first reservation is made.
+	 */
+	private static final class Reaper {
+
+		/** The executor running the expirations. */
+		private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-reservation-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		static {
+			// Confirmed and released reservations should not linger in the queue.
+			EXECUTOR.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	/**
+	 * {@link Reservation} is a set of copies held in escrow.
+	 */
+	private static final class Reservation {
+
+		/** The reserved copies, guarded by the removal lock. */
+		private Set<BookCopy> bookCopies;
+
+		/** The scheduled expiration, null until scheduled. */
+		private volatile ScheduledFuture<?> expiration = null;
+
+		Reservation(Set<BookCopy> bookCopies) {
+			this.bookCopies = bookCopies;
+		}
+	}
+
+	/** The store the copies are taken from. */
+	private final BookStore bookStore;
+
+	/** The path the copies are returned through. */
+	private final CopyReturn copyReturn;
+
+	/** The reservations held, by id. */
+	private final ConcurrentHashMap<Long, Reservation> reservations = new ConcurrentHashMap<>();
+
+	/** The last reservation id handed out. */
+	private final AtomicLong lastReservationId = new AtomicLong();
+
+	/**
+	 * The lock removals of books take in exclusive mode, and reserving and
+	 * handing copies back in shared mode.
+	 */
+	private final ReentrantReadWriteLock removalLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Instantiates a new {@link StockEscrow}.
+	 *
+	 * @param bookStore
+	 *            the store the copies are taken from
+	 * @param copyReturn
+	 *            the path the copies are returned through
+	 */
+	StockEscrow(BookStore bookStore, CopyReturn copyReturn) {
+		this.bookStore = bookStore;
+		this.copyReturn = copyReturn;
+	}
+
+	/**
+	 * Reserves copies of books for <code>ttlMillis</code> milliseconds.
+	 *
+	 * @param bookCopiesToReserve
+	 *            the copies to reserve
+	 * @param ttlMillis
+	 *            the time to live of the reservation in milliseconds
+	 * @return the reservation id
+	 * @throws BookStoreException
+	 *             if the copies cannot be bought, with the same sale misses
+	 *             as <code>buyBooks</code>
+	 */
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		if (bookCopiesToReserve == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (ttlMillis <= 0) {
+			throw new BookStoreException("ttlMillis = " + ttlMillis + ", but it must be positive");
+		}
+
+		// Copy the set first, the caller may change it after buying.
+		Set<BookCopy> bookCopies = new HashSet<>(bookCopiesToReserve);
+		long reservationId;
+		Reservation reservation;
+
+		// Hold off removals until the copies are in escrow, where they can be
+		// voided.
+		removalLock.readLock().lock();
+		try {
+			bookStore.buyBooks(bookCopies);
+
+			reservationId = lastReservationId.incrementAndGet();
+			reservation = new Reservation(bookCopies);
+			reservations.put(reservationId, reservation);
+		} finally {
+			removalLock.readLock().unlock();
+		}
+
+		reservation.expiration = Reaper.EXECUTOR.schedule(() -> expire(reservationId, reservation), ttlMillis,
+				TimeUnit.MILLISECONDS);
+		return reservationId;
+	}
+
+	/**
+	 * Confirms a reservation, keeping its copies sold.
+	 *
+	 * @param reservationId
+	 *            the reservation id
+	 * @throws BookStoreException
+	 *             if the reservation is not held, because it never was or it
+	 *             was already confirmed, released or expired
+	 */
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		settle(reservationId);
+	}
+
+	/**
+	 * Releases a reservation, returning its copies to stock.
+	 *
+	 * @param reservationId
+	 *            the reservation id
+	 * @throws BookStoreException
+	 *             if the reservation is not held, because it never was or it
+	 *             was already confirmed, released or expired
+	 */
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		removalLock.readLock().lock();
+		try {
+			giveBack(settle(reservationId));
+		} finally {
+			removalLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes books from the store and voids their copies held in escrow.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs of the books
+	 * @param removal
+	 *            the removal of the books from the store
+	 * @throws BookStoreException
+	 *             if the books cannot be removed, in which case no copies are
+	 *             voided
+	 */
+	void removeBooks(Set<Integer> isbnSet, Removal removal) throws BookStoreException {
+		removalLock.writeLock().lock();
+		try {
+			removal.remove();
+
+			for (Reservation reservation : reservations.values()) {
+				if (reservation.bookCopies.stream().anyMatch(bookCopy -> isbnSet.contains(bookCopy.getISBN()))) {
+					Set<BookCopy> bookCopies = new HashSet<>(reservation.bookCopies);
+					bookCopies.removeIf(bookCopy -> isbnSet.contains(bookCopy.getISBN()));
+					reservation.bookCopies = bookCopies;
+				}
+			}
+		} finally {
+			removalLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all books from the store and voids all copies held in escrow.
+	 * The reservations stay held, with no copies.
+	 *
+	 * @param removal
+	 *            the removal of the books from the store
+	 * @throws BookStoreException
+	 *             if the books cannot be removed, in which case no copies are
+	 *             voided
+	 */
+	void removeAllBooks(Removal removal) throws BookStoreException {
+		removalLock.writeLock().lock();
+		try {
+			removal.remove();
+
+			for (Reservation reservation : reservations.values()) {
+				reservation.bookCopies = Collections.emptySet();
+			}
+		} finally {
+			removalLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a reservation from the escrow and cancels its expiration.
+	 *
+	 * @param reservationId
+	 *            the reservation id
+	 * @return the reservation
+	 * @throws BookStoreException
+	 *             if the reservation is not held
+	 */
+	private Reservation settle(long reservationId) throws BookStoreException {
+		Reservation reservation = reservations.remove(reservationId);
+
+		if (reservation == null) {
+			throw new BookStoreException(
+					BookStoreConstants.RESERVATION + reservationId + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		ScheduledFuture<?> expiration = reservation.expiration;
+
+		if (expiration != null) {
+			expiration.cancel(false);
+		}
+
+		return reservation;
+	}
+
+	/**
+	 * Expires a reservation unless it was settled already.
+	 *
+	 * @param reservationId
+	 *            the reservation id
+	 * @param reservation
+	 *            the reservation
+	 */
+	private void expire(long reservationId, Reservation reservation) {
+		removalLock.readLock().lock();
+		try {
+			if (reservations.remove(reservationId, reservation)) {
+				giveBack(reservation);
+			}
+		} finally {
+			removalLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the copies of a reservation to stock. The caller holds the
+	 * removal lock in shared mode, so the copies of removed books are voided
+	 * already; books the store dropped some other way are skipped.
+	 *
+	 * @param reservation
+	 *            the reservation
+	 */
+	private void giveBack(Reservation reservation) {
+		if (reservation.bookCopies.isEmpty()) {
+			return;
+		}
+
+		try {
+			copyReturn.returnCopies(reservation.bookCopies);
+		} catch (BookStoreException ex) {
+			// Some book is gone, return the copies of the others one by one.
+			for (BookCopy bookCopy : reservation.bookCopies) {
+				Set<BookCopy> bookCopies = new HashSet<>();
+				bookCopies.add(bookCopy);
+
+				try {
+					copyReturn.returnCopies(bookCopies);
+				} catch (BookStoreException bookGone) {
+					;
+				}
+			}
+		}
+	}
+}
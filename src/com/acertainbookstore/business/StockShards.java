@@ -0,0 +1,136 @@
+package com.acertainbookstore.business;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * {@link StockShards} holds copies of a hot book in escrow, spread over one
+ * {@link Slot} per processor, so concurrent buyers of the book draw from
+ * different cache lines instead of contending on a single counter. Each buyer
+ * draws from the shard of its thread; copies only move between the shards and
+ * the book's own stock when a shard runs dry, in a {@link MultiSlotUpdate} of
+ * both.
+ * <p>
+ * Shards are closed when the book stops being split. A closed shard refuses
+ * draws, so copies cannot be stranded in it.
+ *
+ * @see AtomicBookStoreBook
+ */
+final class StockShards {
+
+	/** The largest number of shards. */
+	private static final int MAX_SHARDS = 64;
+
+	/** The number of shards, the number of processors rounded up to a power of two. */
+	static final int NUM_SHARDS = Math.min(
+			Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1), MAX_SHARDS);
+
+	/** The value of a closed shard. */
+	static final Object CLOSED = new Object();
+
+	/**
+	 * {@link ShardStock} is the number of copies in a shard. Every change of a
+	 * shard is a new instance.
+	 */
+	static final class ShardStock {
+
+		/** The number of copies. */
+		private final int numCopies;
+
+		ShardStock(int numCopies) {
+			this.numCopies = numCopies;
+		}
+	}
+
+	/**
+	 * {@link PaddedSlot} is a {@link Slot} followed by a cache line of
+	 * padding, so that the shards allocated together do not share one.
+	 */
+	@SuppressWarnings("unused")
+	private static final class PaddedSlot extends Slot {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The padding. */
+		private long p1, p2, p3, p4, p5, p6, p7;
+
+		private PaddedSlot(long rank, Object value) {
+			super(rank, value);
+		}
+	}
+
+	/** The shards. */
+	private final Slot[] shards = new Slot[NUM_SHARDS];
+
+	/**
+	 * Instantiates new empty {@link StockShards}.
+	 */
+	StockShards() {
+		long firstRank = Slot.reserveRanks(NUM_SHARDS);
+
+		for (int i = 0; i < NUM_SHARDS; i++) {
+			shards[i] = new PaddedSlot(firstRank + i, new ShardStock(0));
+		}
+	}
+
+	/**
+	 * Gets the shard of the calling thread.
+	 *
+	 * @return the shard
+	 */
+	Slot shardOfThread() {
+		int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+		return shards[(hash ^ (hash >>> 16)) & (NUM_SHARDS - 1)];
+	}
+
+	/**
+	 * Adds all shards to the slots of an update.
+	 *
+	 * @param slots
+	 *            the slots
+	 */
+	void addSlots(Collection<Slot> slots) {
+		slots.addAll(Arrays.asList(shards));
+	}
+
+	/**
+	 * Gets the number of copies in a shard.
+	 *
+	 * @param value
+	 *            the value of the shard
+	 * @return the number of copies, 0 if the shard is closed
+	 */
+	static int getNumCopies(Object value) {
+		return (value instanceof ShardStock ? ((ShardStock) value).numCopies : 0);
+	}
+
+	/**
+	 * Gets the number of copies the shards hold.
+	 *
+	 * @param reader
+	 *            the reader of the shards
+	 * @return the number of copies
+	 */
+	int getNumCopies(Slot.Reader reader) {
+		int numCopies = 0;
+
+		for (Slot shard : shards) {
+			numCopies += getNumCopies(reader.read(shard));
+		}
+
+		return numCopies;
+	}
+
+	/**
+	 * Closes all shards in an update.
+	 *
+	 * @param values
+	 *            the values of the update
+	 */
+	void close(MultiSlotUpdate.Values values) {
+		for (Slot shard : shards) {
+			values.set(shard, CLOSED);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.acertainbookstore.business;
+
+import java.util.Arrays;
+
+/**
+ * {@link StockTable} stores the books of a catalog in dense slots numbered
+ * from zero to <code>size() - 1</code>, and reads and updates the stock of a
+ * book through its slot. Removing a book may move another book into its slot,
+ * so slot numbers are only stable while no book is removed. Implementations
+ * are not synchronized.
+ *
+ * @see ColumnarStockTable
+ * @see OffHeapStockTable
+ */
+public interface StockTable {
+
+	/**
+	 * Gets the number of books.
+	 *
+	 * @return the number of books
+	 */
+	public int size();
+
+	/**
+	 * Gets the slot of a book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the slot, or -1 if the book is not in the table
+	 */
+	public int slotOf(int isbn);
+
+	/**
+	 * Checks whether a book is in the table.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return true, if the book is in the table
+	 */
+	public default boolean contains(int isbn) {
+		return slotOf(isbn) >= 0;
+	}
+
+	/**
+	 * Adds a book to the table.
+	 *
+	 * @param book
+	 *            the book, whose ISBN must not be in the table
+	 * @return the slot of the book
+	 */
+	public int add(StockBook book);
+
+	/**
+	 * Removes a book from the table, moving the last book into its slot.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return true, if the book was in the table
+	 */
+	public boolean remove(int isbn);
+
+	/**
+	 * Removes all the books.
+	 */
+	public void clear();
+
+	/**
+	 * Gets the ISBN of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the ISBN
+	 */
+	public int getISBN(int slot);
+
+	/**
+	 * Gets the number of copies of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the number of copies
+	 */
+	public int getNumCopies(int slot);
+
+	/**
+	 * Checks whether the book in a slot has at least <code>copies</code>
+	 * copies.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param copies
+	 *            the number of copies
+	 * @return true, if there are enough copies
+	 */
+	public default boolean areCopiesInStore(int slot, int copies) {
+		return getNumCopies(slot) >= copies;
+	}
+
+	/**
+	 * Takes copies of the book in a slot, which the caller has checked to be
+	 * in store.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param copies
+	 *            the number of copies
+	 */
+	public void buyCopies(int slot, int copies);
+
+	/**
+	 * Adds copies to the book in a slot, which clears its sale misses.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param copies
+	 *            the number of copies
+	 */
+	public void addCopies(int slot, int copies);
+
+	/**
+	 * Gives back copies bought earlier to the book in a slot, which leaves its
+	 * sale misses untouched.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param copies
+	 *            the number of copies
+	 */
+	public void returnCopies(int slot, int copies);
+
+	/**
+	 * Records sale misses of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param misses
+	 *            the number of copies missing
+	 */
+	public void addSaleMiss(int slot, int misses);
+
+	/**
+	 * Checks whether the book in a slot had a sale miss.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return true, if the book had a sale miss
+	 */
+	public boolean hadSaleMiss(int slot);
+
+	/**
+	 * Records a rating of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param rating
+	 *            the rating
+	 */
+	public void addRating(int slot, int rating);
+
+	/**
+	 * Gets the average rating of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the average rating, -1 if the book was never rated
+	 */
+	public float getAverageRating(int slot);
+
+	/**
+	 * Checks whether the book in a slot is an editor pick.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return true, if the book is an editor pick
+	 */
+	public boolean isEditorPick(int slot);
+
+	/**
+	 * Sets whether the book in a slot is an editor pick.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param editorPick
+	 *            whether the book is an editor pick
+	 */
+	public void setEditorPick(int slot, boolean editorPick);
+
+	/**
+	 * Gets the book in a slot as a {@link Book} which does not change with the
+	 * table.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the book
+	 */
+	public Book immutableBook(int slot);
+
+	/**
+	 * Gets the book in a slot as a {@link StockBook} copy.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the book
+	 */
+	public StockBook immutableStockBook(int slot);
+
+	/**
+	 * Gets the slots of the editor picks, in slot order.
+	 *
+	 * @return the slots
+	 */
+	public default int[] editorPickSlots() {
+		int size = size();
+		int count = 0;
+
+		for (int slot = 0; slot < size; slot++) {
+			if (isEditorPick(slot)) {
+				count++;
+			}
+		}
+
+		int[] slots = new int[count];
+
+		for (int slot = 0, i = 0; i < count; slot++) {
+			if (isEditorPick(slot)) {
+				slots[i++] = slot;
+			}
+		}
+
+		return slots;
+	}
+
+	/**
+	 * Gets the slots of the <code>numBooks</code> best rated books, best first.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the slots
+	 */
+	public default int[] topRatedSlots(int numBooks) {
+		int size = size();
+
+		// Pack each slot with its rating into a long ordering by descending
+		// rating, so that the whole sort runs on a primitive array.
+		long[] keys = new long[size];
+
+		for (int slot = 0; slot < size; slot++) {
+			int bits = Float.floatToIntBits(getAverageRating(slot));
+			int orderedBits = bits ^ ((bits >> 31) & 0x7fffffff);
+			keys[slot] = ((long) ~orderedBits << 32) | slot;
+		}
+
+		Arrays.sort(keys);
+
+		int[] slots = new int[Math.min(numBooks, size)];
+
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = (int) keys[i];
+		}
+
+		return slots;
+	}
+}
@@ -0,0 +1,535 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link TimestampLockManager} is a {@link LockManager} which decides by age
+ * which of two conflicting operations waits. Every operation gets a timestamp
+ * when it first asks for locks and keeps it when it restarts, so it eventually
+ * becomes the oldest operation and cannot starve.
+ * <ul>
+ * <li>With {@link Policy#WAIT_DIE}, an operation waits for older holders only;
+ * if a younger one holds a lock it needs, it dies: it releases its locks, backs
+ * off and starts over.</li>
+ * <li>With {@link Policy#WOUND_WAIT}, an operation waits for younger holders
+ * only; if an older one holds a lock it needs, it wounds the younger holders,
+ * which start over unless they already got all their locks.</li>
+ * </ul>
+ * Either way an operation gives up with a {@link BookStoreException} once it
+ * waited longer than the lock timeout, restarts included.
+ * <p>
+ * An operation waiting for a lock in exclusive mode conflicts with younger
+ * operations asking for it in shared mode as if it held it already, so a
+ * steady stream of readers cannot keep a writer waiting, the global lock
+ * included.
+ * <p>
+ * Waiters only wake up when the lock may be theirs: readers when a writer
+ * releases the lock or stops waiting for it, and one writer when the lock
+ * becomes free.
+ *
+ * @see LockManager
+ */
+public class TimestampLockManager implements LockManager {
+
+	/**
+	 * The policies deciding which of two conflicting operations waits.
+	 */
+	public enum Policy {
+		WAIT_DIE, WOUND_WAIT
+	}
+
+	/** The longest a waiter sleeps before checking if it was wounded. */
+	private static final long WOUND_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** The shortest an operation backs off before starting over. */
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+	/** The longest an operation backs off before starting over. */
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * {@link Transaction} is an operation asking for or holding locks.
+	 */
+	private static final class Transaction {
+
+		/** The timestamp, lower is older. */
+		private final long timestamp;
+
+		/** Whether an older operation wants this one to start over. */
+		private volatile boolean wounded = false;
+
+		/** The locks held, in the order they were taken, the global lock first. */
+		private final List<TimestampLock> held = new ArrayList<>();
+
+		Transaction(long timestamp) {
+			this.timestamp = timestamp;
+		}
+	}
+
+	/** The order of operations by age, oldest first. */
+	private static final Comparator<Transaction> BY_AGE = Comparator.comparingLong(transaction -> transaction.timestamp);
+
+	/**
+	 * {@link TimestampLock} is a shared/exclusive lock remembering which
+	 * operations hold it, guarded by its own monitor, with one condition for
+	 * the operations waiting in each mode.
+	 */
+	private static final class TimestampLock {
+
+		/** The monitor guarding the lock. */
+		private final ReentrantLock monitor = new ReentrantLock();
+
+		/** The condition operations waiting in shared mode wait on. */
+		private final Condition sharedTurn = monitor.newCondition();
+
+		/** The condition operations waiting in exclusive mode wait on. */
+		private final Condition exclusiveTurn = monitor.newCondition();
+
+		/** The holder in exclusive mode. */
+		private Transaction writer = null;
+
+		/** The number of times the holder in exclusive mode took the lock. */
+		private int writerHolds = 0;
+
+		/** The holders in shared mode, with the number of times each took the lock. */
+		private final Map<Transaction, Integer> readers = new HashMap<>();
+
+		/** The operations waiting for the lock in exclusive mode, oldest first. */
+		private final NavigableSet<Transaction> waitingWriters = new TreeSet<>(BY_AGE);
+
+		/**
+		 * Gets the oldest operation waiting for the lock in exclusive mode if
+		 * it is older than <code>transaction</code>. The caller holds the
+		 * monitor of the lock.
+		 *
+		 * @param transaction
+		 *            the transaction
+		 * @return the waiting operation, or null if there is none
+		 */
+		private Transaction olderWaitingWriter(Transaction transaction) {
+			Transaction oldest = (waitingWriters.isEmpty() ? null : waitingWriters.first());
+			return (oldest != null && oldest.timestamp < transaction.timestamp ? oldest : null);
+		}
+
+		/**
+		 * Checks whether no operation holds the lock. The caller holds the
+		 * monitor of the lock.
+		 *
+		 * @return true, if the lock is free
+		 */
+		private boolean isFree() {
+			return writer == null && readers.isEmpty();
+		}
+
+		/**
+		 * Releases one hold of <code>transaction</code> on the lock, waking
+		 * the waiters the lock may now be granted to.
+		 *
+		 * @param transaction
+		 *            the transaction
+		 */
+		private void release(Transaction transaction) {
+			monitor.lock();
+			try {
+				if (writer == transaction) {
+					if (--writerHolds == 0) {
+						writer = null;
+						sharedTurn.signalAll();
+						exclusiveTurn.signal();
+					}
+				} else {
+					int holds = readers.get(transaction);
+
+					if (holds > 1) {
+						readers.put(transaction, holds - 1);
+					} else {
+						readers.remove(transaction);
+
+						if (readers.isEmpty()) {
+							// Readers never wait for readers.
+							exclusiveTurn.signal();
+						}
+					}
+				}
+			} finally {
+				monitor.unlock();
+			}
+		}
+	}
+
+	/** The outcomes of asking for a lock. */
+	private enum Outcome {
+		GRANTED, RESTART, TIMED_OUT
+	}
+
+	/** The clock handing out timestamps. */
+	private final AtomicLong clock = new AtomicLong();
+
+	/** The global lock. */
+	private final TimestampLock globalLock = new TimestampLock();
+
+	/** The local locks. */
+	private final TimestampLock[] lockStripes;
+
+	/** The policy. */
+	private final Policy policy;
+
+	/** The lock timeout in nanoseconds, or 0 to wait forever. */
+	private final long lockTimeoutNanos;
+
+	/** The operation running on each thread between locking and unlocking. */
+	private final ThreadLocal<Transaction> current = new ThreadLocal<>();
+
+	/**
+	 * Instantiates a new {@link TimestampLockManager}.
+	 *
+	 * @param numLockStripes
+	 *            the number of lock stripes, rounded up to a power of two
+	 * @param policy
+	 *            the policy
+	 * @param lockTimeoutMillis
+	 *            how long an operation may wait for its locks in milliseconds,
+	 *            or 0 to wait forever
+	 */
+	public TimestampLockManager(int numLockStripes, Policy policy, long lockTimeoutMillis) {
+		if (numLockStripes < 1) {
+			throw new IllegalArgumentException("numLockStripes = " + numLockStripes + ", but it must be positive");
+		}
+
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+
+		if (lockTimeoutMillis < 0) {
+			throw new IllegalArgumentException(
+					"lockTimeoutMillis = " + lockTimeoutMillis + ", but it must not be negative");
+		}
+
+		lockStripes = new TimestampLock[numLockStripes == 1 ? 1 : Integer.highestOneBit(numLockStripes - 1) << 1];
+		this.policy = policy;
+		lockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+
+		for (int i = 0; i < lockStripes.length; i++) {
+			lockStripes[i] = new TimestampLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#getNumStripes()
+	 */
+	@Override
+	public int getNumStripes() {
+		return lockStripes.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#lockLocal(int[], boolean)
+	 */
+	@Override
+	public void lockLocal(int[] stripes, boolean exclusive) throws BookStoreException {
+		TimestampLock[] locks = new TimestampLock[stripes.length];
+
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i] = lockStripes[stripes[i]];
+		}
+
+		lockAll(locks, exclusive, false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#unlockLocal(int[], boolean)
+	 */
+	@Override
+	public void unlockLocal(int[] stripes, boolean exclusive) {
+		unlockAll();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#lockGlobal()
+	 */
+	@Override
+	public void lockGlobal() throws BookStoreException {
+		lockAll(new TimestampLock[0], false, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.LockManager#unlockGlobal()
+	 */
+	@Override
+	public void unlockGlobal() {
+		unlockAll();
+	}
+
+	/**
+	 * Takes the global lock, then <code>locks</code> in order, starting over
+	 * whenever the policy says so.
+	 *
+	 * @param locks
+	 *            the local locks
+	 * @param exclusive
+	 *            whether to take the local locks in exclusive mode
+	 * @param global
+	 *            whether to take the global lock in exclusive mode
+	 * @throws BookStoreException
+	 *             if the lock timeout expired or the thread was interrupted
+	 */
+	private void lockAll(TimestampLock[] locks, boolean exclusive, boolean global) throws BookStoreException {
+		Transaction transaction = new Transaction(clock.getAndIncrement());
+		long deadline = System.nanoTime() + lockTimeoutNanos;
+		long backoffNanos = MIN_BACKOFF_NANOS;
+
+		while (true) {
+			Outcome outcome;
+
+			try {
+				outcome = acquire(globalLock, global, transaction, deadline);
+
+				if (outcome == Outcome.GRANTED) {
+					transaction.held.add(globalLock);
+
+					for (TimestampLock lock : locks) {
+						outcome = acquire(lock, exclusive, transaction, deadline);
+
+						if (outcome != Outcome.GRANTED) {
+							break;
+						}
+
+						transaction.held.add(lock);
+					}
+				}
+			} catch (BookStoreException ex) {
+				release(transaction);
+				throw ex;
+			}
+
+			if (outcome == Outcome.GRANTED) {
+				// Once all locks are held, wounds no longer matter.
+				current.set(transaction);
+				return;
+			}
+
+			release(transaction);
+
+			if (outcome == Outcome.TIMED_OUT || (lockTimeoutNanos != 0 && System.nanoTime() - deadline >= 0)) {
+				throw new BookStoreException(BookStoreConstants.LOCK_TIMEOUT);
+			}
+
+			// Start over with the same timestamp, letting the winner go first.
+			transaction.wounded = false;
+			LockSupport.parkNanos(backoffNanos);
+			backoffNanos = Math.min(backoffNanos << 1, MAX_BACKOFF_NANOS);
+		}
+	}
+
+	/**
+	 * Releases the locks of the operation running on this thread.
+	 */
+	private void unlockAll() {
+		Transaction transaction = current.get();
+		current.remove();
+		release(transaction);
+	}
+
+	/**
+	 * Releases the locks of <code>transaction</code> in reverse order, the
+	 * global lock last.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 */
+	private void release(Transaction transaction) {
+		for (int i = transaction.held.size() - 1; i >= 0; i--) {
+			transaction.held.get(i).release(transaction);
+		}
+
+		transaction.held.clear();
+	}
+
+	/**
+	 * Asks for <code>lock</code> on behalf of <code>transaction</code>.
+	 *
+	 * @param lock
+	 *            the lock
+	 * @param exclusive
+	 *            whether to take the lock in exclusive mode
+	 * @param transaction
+	 *            the transaction
+	 * @param deadline
+	 *            the deadline as given by {@link System#nanoTime()}, ignored
+	 *            if there is no lock timeout
+	 * @return whether the lock was granted, or why not
+	 * @throws BookStoreException
+	 *             if the thread was interrupted
+	 */
+	private Outcome acquire(TimestampLock lock, boolean exclusive, Transaction transaction, long deadline)
+			throws BookStoreException {
+		boolean granted = false;
+		lock.monitor.lock();
+		try {
+			try {
+				while (true) {
+					// Two ISBNs of one operation may share a stripe.
+					if (lock.writer == transaction) {
+						lock.writerHolds++;
+						granted = true;
+						return Outcome.GRANTED;
+					}
+
+					if (!exclusive && lock.readers.containsKey(transaction)) {
+						lock.readers.merge(transaction, 1, Integer::sum);
+						granted = true;
+						return Outcome.GRANTED;
+					}
+
+					boolean conflict = lock.writer != null || (exclusive && !lock.readers.isEmpty())
+							|| (!exclusive && lock.olderWaitingWriter(transaction) != null);
+
+					if (!conflict) {
+						if (exclusive) {
+							lock.writer = transaction;
+							lock.writerHolds = 1;
+						} else {
+							lock.readers.put(transaction, 1);
+						}
+
+						granted = true;
+						return Outcome.GRANTED;
+					}
+
+					if (transaction.wounded) {
+						return Outcome.RESTART;
+					}
+
+					if (!resolve(lock, exclusive, transaction)) {
+						return Outcome.RESTART;
+					}
+
+					if (exclusive) {
+						lock.waitingWriters.add(transaction);
+					}
+
+					long waitNanos = WOUND_CHECK_NANOS;
+
+					if (lockTimeoutNanos != 0) {
+						long remainingNanos = deadline - System.nanoTime();
+
+						if (remainingNanos <= 0) {
+							return Outcome.TIMED_OUT;
+						}
+
+						waitNanos = Math.min(waitNanos, remainingNanos);
+					}
+
+					try {
+						(exclusive ? lock.exclusiveTurn : lock.sharedTurn).awaitNanos(waitNanos);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new BookStoreException(BookStoreConstants.LOCK_TIMEOUT, ex);
+					}
+				}
+			} finally {
+				if (exclusive && lock.waitingWriters.remove(transaction) && !granted) {
+					// Readers held back for this writer may go ahead, and the
+					// lock may have been handed to it while it gave up.
+					lock.sharedTurn.signalAll();
+
+					if (lock.isFree()) {
+						lock.exclusiveTurn.signal();
+					}
+				}
+			}
+		} finally {
+			lock.monitor.unlock();
+		}
+	}
+
+	/**
+	 * Applies the policy to <code>transaction</code> and the holders of
+	 * <code>lock</code> conflicting with it, counting an older operation
+	 * waiting for the lock in exclusive mode as a holder when
+	 * <code>transaction</code> asks for shared mode. The caller holds the
+	 * monitor of <code>lock</code>.
+	 *
+	 * @param lock
+	 *            the lock
+	 * @param exclusive
+	 *            whether the lock is asked for in exclusive mode
+	 * @param transaction
+	 *            the transaction
+	 * @return true, if <code>transaction</code> may wait
+	 */
+	private boolean resolve(TimestampLock lock, boolean exclusive, Transaction transaction) {
+		if (lock.writer != null) {
+			if (!resolve(lock.writer, transaction)) {
+				return false;
+			}
+		}
+
+		if (exclusive) {
+			for (Transaction reader : lock.readers.keySet()) {
+				if (!resolve(reader, transaction)) {
+					return false;
+				}
+			}
+		} else {
+			Transaction waitingWriter = lock.olderWaitingWriter(transaction);
+
+			if (waitingWriter != null && !resolve(waitingWriter, transaction)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Applies the policy to <code>transaction</code> and one conflicting
+	 * holder.
+	 *
+	 * @param holder
+	 *            the holder
+	 * @param transaction
+	 *            the transaction
+	 * @return true, if <code>transaction</code> may wait for the holder
+	 */
+	private boolean resolve(Transaction holder, Transaction transaction) {
+		boolean older = transaction.timestamp < holder.timestamp;
+
+		switch (policy) {
+		case WAIT_DIE:
+			return older;
+		case WOUND_WAIT:
+			if (older) {
+				holder.wounded = true;
+			}
+
+			return true;
+		default:
+			throw new IllegalStateException("Unknown policy " + policy);
+		}
+	}
+}
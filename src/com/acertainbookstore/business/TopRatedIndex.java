@@ -0,0 +1,120 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * {@link TopRatedIndex} keeps the books of a store ordered by descending
+ * average rating, ties broken by ascending ISBN, so the top rated books are
+ * read off its head instead of sorting the catalog on every request.
+ * <p>
+ * Books are indexed by their average rating when they were last updated, so
+ * the store updates a book after every change to its ratings. Updates of
+ * different books, and of the same book, may run concurrently; the last
+ * update of a book indexes its latest average. Adding, removing and clearing
+ * must be excluded from updates and reads by the store.
+ *
+ * @see BookStoreBook
+ */
+public class TopRatedIndex {
+
+	/**
+	 * {@link Key} is the position of a book in the index.
+	 */
+	private static final class Key implements Comparable<Key> {
+
+		/** The average rating the book is indexed by. */
+		private final float averageRating;
+
+		/** The ISBN of the book. */
+		private final int isbn;
+
+		Key(float averageRating, int isbn) {
+			this.averageRating = averageRating;
+			this.isbn = isbn;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Key other) {
+			int order = Float.compare(other.averageRating, averageRating);
+			return order != 0 ? order : Integer.compare(isbn, other.isbn);
+		}
+	}
+
+	/** The books ordered by their keys. */
+	private final ConcurrentSkipListMap<Key, BookStoreBook> index = new ConcurrentSkipListMap<>();
+
+	/** The current key of each book, by ISBN. */
+	private final ConcurrentHashMap<Integer, Key> keys = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds a book to the index, or moves it to the position of its current
+	 * average rating if it is indexed already.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	public void update(BookStoreBook book) {
+		int isbn = book.getISBN();
+
+		// Computing under the key lock serializes the updates of one book, and
+		// the last of them reads the average after all ratings were added.
+		keys.compute(isbn, (key, oldKey) -> {
+			if (oldKey != null) {
+				index.remove(oldKey);
+			}
+
+			Key newKey = new Key(book.getAverageRating(), isbn);
+			index.put(newKey, book);
+			return newKey;
+		});
+	}
+
+	/**
+	 * Removes a book from the index.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	public void remove(int isbn) {
+		Key oldKey = keys.remove(isbn);
+
+		if (oldKey != null) {
+			index.remove(oldKey);
+		}
+	}
+
+	/**
+	 * Removes all books from the index.
+	 */
+	public void clear() {
+		keys.clear();
+		index.clear();
+	}
+
+	/**
+	 * Gets the top rated books.
+	 *
+	 * @param numBooks
+	 *            the maximum number of books to return
+	 * @return the books, best rated first
+	 */
+	public List<Book> getTopRatedBooks(int numBooks) {
+		List<Book> listTopRatedBooks = new ArrayList<>(Math.min(numBooks, keys.size()));
+		Iterator<BookStoreBook> it = index.values().iterator();
+
+		while (listTopRatedBooks.size() < numBooks && it.hasNext()) {
+			listTopRatedBooks.add(it.next().immutableBook());
+		}
+
+		return listTopRatedBooks;
+	}
+}
@@ -1,140 +1,308 @@
 package com.acertainbookstore.business;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.acertainbookstore.interfaces.AsyncBookStore;
+import com.acertainbookstore.interfaces.AsyncStockManager;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.IntHashMap;
 
 /**
  * {@link TwoLevelLockingConcurrentCertainBookStore} implements the
  * {@link BookStore} and {@link StockManager} functionalities.
+ * <p>
+ * Ratings are accumulated in striped adders, so batches of ratings only take
+ * the local read locks and run concurrently with each other. Readers returning
+ * ratings validate against a {@link RatingEpoch} that no batch ran while they
+ * read, and exclude the raters if batches keep overlapping.
+ * <p>
+ * Locks are taken through a pluggable {@link LockManager}, which bounds how
+ * long an operation waits for them: an operation which cannot get its locks in
+ * time fails with a {@link BookStoreException} instead of pinning its thread.
  * 
  * @see BookStore
  * @see StockManager
+ * @see AsyncBookStore
+ * @see AsyncStockManager
  */
-public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, StockManager {
+public class TwoLevelLockingConcurrentCertainBookStore
+		implements ReservingBookStore, StockManager, AsyncBookStore, AsyncStockManager {
+
+	/** The default number of lock stripes. */
+	private static final int DEFAULT_NUM_LOCK_STRIPES = 1024;
+
+	/** The default time an operation may wait for its locks in milliseconds. */
+	private static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * The default number of ISBNs above which an update takes the global lock
+	 * instead of local locks.
+	 */
+	private static final int DEFAULT_ESCALATION_THRESHOLD = 256;
 
 	/** The mapping of books from ISBN to {@link BookStoreBook}. */
-	private Map<Integer, BookStoreBook> bookMap = null;
+	private IntHashMap<BookStoreBook> bookMap = null;
+
+	/**
+	 * The global lock and the local locks. A book is protected by the stripe
+	 * its ISBN hashes to, so the number of locks does not grow with the
+	 * catalog.
+	 */
+	private LockManager lockManager = null;
+
+	/** No stripes, to take the global lock alone in shared mode. */
+	private static final int[] NO_STRIPES = new int[0];
+
+	/** All stripes, in ascending order. */
+	private int[] allStripes = null;
+
+	/** The number of ISBNs above which an update takes the global lock. */
+	private int escalationThreshold = 0;
 
-	private ReadWriteLock globalLock = null;
-	private ConcurrentHashMap<Integer, ReadWriteLock> lockMap = null;
+	/** The batches of ratings running under the local read locks. */
+	private RatingEpoch ratingEpoch = null;
+
+	/** The books ordered by average rating. */
+	private TopRatedIndex topRatedIndex = null;
+
+	/** The editor picks. */
+	private EditorPickIndex editorPickIndex = null;
+
+	/** The books which missed sales. */
+	private SaleMissIndex saleMissIndex = null;
+
+	/** The cached list of all books. */
+	private final CatalogListing catalogListing = new CatalogListing();
+
+	/** The reservations of copies held in escrow. */
+	private final StockEscrow stockEscrow = new StockEscrow(this, this::returnCopies);
+
+	/** The calls which do not block the caller. */
+	private final AsyncStore asyncStore = new AsyncStore(this, this);
 
 	/**
-	 * Instantiates a new {@link CertainBookStore}.
+	 * Instantiates a new {@link TwoLevelLockingConcurrentCertainBookStore} with
+	 * the default number of lock stripes.
 	 */
 	public TwoLevelLockingConcurrentCertainBookStore() {
-		// Constructors are not synchronized
-		bookMap = new HashMap<>();
-		globalLock = new ReentrantReadWriteLock();
-		lockMap = new ConcurrentHashMap<Integer, ReadWriteLock>();
+		this(DEFAULT_NUM_LOCK_STRIPES);
+	}
+
+	/**
+	 * Instantiates a new {@link TwoLevelLockingConcurrentCertainBookStore}
+	 * using an {@link OrderedLockManager} with the default lock timeout.
+	 *
+	 * @param numLockStripes
+	 *            the number of lock stripes, rounded up to a power of two
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(int numLockStripes) {
+		this(new OrderedLockManager(numLockStripes, DEFAULT_LOCK_TIMEOUT_MILLIS));
+	}
+
+	/**
+	 * Instantiates a new {@link TwoLevelLockingConcurrentCertainBookStore}.
+	 *
+	 * @param lockManager
+	 *            the lock manager
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(LockManager lockManager) {
+		this(lockManager, DEFAULT_ESCALATION_THRESHOLD);
 	}
 
-	private void takeLocalReadLock(int isbn) throws BookStoreException {
-		if (!lockMap.containsKey(isbn)) {
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.NOT_AVAILABLE);
+	/**
+	 * Instantiates a new {@link TwoLevelLockingConcurrentCertainBookStore}.
+	 *
+	 * @param lockManager
+	 *            the lock manager
+	 * @param escalationThreshold
+	 *            the number of ISBNs above which an update takes the global
+	 *            lock instead of local locks
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(LockManager lockManager, int escalationThreshold) {
+		// Constructors are not synchronized
+		if (lockManager == null) {
+			throw new IllegalArgumentException("lockManager must not be null");
 		}
 
-		ReadWriteLock localLock = lockMap.get(isbn);
+		if (escalationThreshold < 1) {
+			throw new IllegalArgumentException(
+					"escalationThreshold = " + escalationThreshold + ", but it must be positive");
+		}
+
+		this.escalationThreshold = escalationThreshold;
+
+		bookMap = new IntHashMap<>();
+		this.lockManager = lockManager;
+		ratingEpoch = new RatingEpoch();
+		topRatedIndex = new TopRatedIndex();
+		editorPickIndex = new EditorPickIndex();
+		saleMissIndex = new SaleMissIndex();
+		allStripes = new int[lockManager.getNumStripes()];
 
-		if (localLock == null) {
-			throw new BookStoreException("Lock " + isbn + " does not exist");
+		for (int i = 0; i < allStripes.length; i++) {
+			allStripes[i] = i;
 		}
+	}
 
-		globalLock.readLock().lock();
-		localLock.readLock().lock();
+	/**
+	 * Gets the index of the lock stripe protecting the book with the given
+	 * ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the stripe index
+	 */
+	private int stripeFor(int isbn) {
+		// Spread the bits since consecutive ISBNs are common.
+		int hash = isbn * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (allStripes.length - 1);
 	}
 
-	private void releaseLocalReadLock(int isbn) {
-		if (!bookMap.containsKey(isbn)) {
-			/*
-			 * In case of locking errors we should always try to release any potential lock.
-			 * So, if we try to release a nonexistent lock, we just return instead of
-			 * throwing an error
-			 */
-			return;
-		}
+	/**
+	 * Gets the distinct stripes protecting the given ISBNs, in ascending order.
+	 * Taking the stripes in this canonical order is what keeps overlapping
+	 * operations from deadlocking.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the sorted stripe indices
+	 */
+	private int[] stripesFor(Collection<Integer> isbns) {
+		return isbns.stream().mapToInt(isbn -> stripeFor(isbn)).sorted().distinct().toArray();
+	}
 
-		ReadWriteLock localLock = lockMap.get(isbn);
-		if (localLock == null) {
-			return;
-		}
-		try {
-			localLock.readLock().unlock();
-			globalLock.readLock().unlock();
-		} catch (IllegalMonitorStateException ex) {
-			;
-		}
+	private void takeLocalReadLocks(int[] stripes) throws BookStoreException {
+		lockManager.lockLocal(stripes, false);
 	}
 
-	private void takeLocalWriteLock(int isbn) throws BookStoreException {
-		if (!lockMap.containsKey(isbn)) {
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.NOT_AVAILABLE);
-		}
+	private void releaseLocalReadLocks(int[] stripes) {
+		lockManager.unlockLocal(stripes, false);
+	}
 
-		ReadWriteLock localLock = lockMap.get(isbn);
-		if (localLock == null) {
-			throw new BookStoreException("Lock " + isbn + " does not exist");
-		}
+	private void takeLocalWriteLocks(int[] stripes) throws BookStoreException {
+		lockManager.lockLocal(stripes, true);
+	}
 
-		globalLock.readLock().lock();
-		localLock.writeLock().lock();
+	private void releaseLocalWriteLocks(int[] stripes) {
+		lockManager.unlockLocal(stripes, true);
 	}
 
-	private void releaseLocalWriteLock(int isbn) {
-		if (BookStoreUtility.isInvalidISBN(isbn)) {
-			return;
+	/**
+	 * Takes the locks for an update of the given ISBNs: the local locks of
+	 * their stripes or, if there are more ISBNs than the escalation threshold,
+	 * the global lock, which is cheaper than thousands of local locks and does
+	 * not leave a long convoy behind partially locked stripes.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @param exclusive
+	 *            whether to take the local locks in exclusive mode
+	 * @return the stripes locked, or null if the global lock was taken
+	 * @throws BookStoreException
+	 *             if the locks could not be taken in time
+	 */
+	private int[] takeUpdateLocks(Collection<Integer> isbns, boolean exclusive) throws BookStoreException {
+		if (isbns.size() > escalationThreshold) {
+			takeGlobalLock();
+			return null;
 		}
 
-		ReadWriteLock localLock = lockMap.get(isbn);
-		if (localLock == null) {
-			return;
-		}
+		int[] stripes = stripesFor(isbns);
+		lockManager.lockLocal(stripes, exclusive);
+		return stripes;
+	}
 
-		try {
-			localLock.writeLock().unlock();
-			globalLock.readLock().unlock();
-		} catch (IllegalMonitorStateException ex) {
-			;
+	private void releaseUpdateLocks(int[] stripes, boolean exclusive) {
+		if (stripes == null) {
+			releaseGlobalLock();
+		} else {
+			lockManager.unlockLocal(stripes, exclusive);
 		}
 	}
 
-	private void takeGlobalLock() {
-		globalLock.writeLock().lock();
+	private void takeGlobalLock() throws BookStoreException {
+		lockManager.lockGlobal();
 	}
 
 	private void releaseGlobalLock() {
-		globalLock.writeLock().unlock();
+		lockManager.unlockGlobal();
+	}
+
+	/**
+	 * Runs <code>ratedRead</code> under the local read locks of
+	 * <code>stripes</code>, retrying it while batches of ratings overlap it,
+	 * and under the local write locks if they keep doing so.
+	 *
+	 * @param stripes
+	 *            the stripes to read, none to read only what the global lock
+	 *            protects, or null to read the whole catalog; in the last two
+	 *            cases the raters are excluded with the global lock
+	 * @param ratedRead
+	 *            the read to perform
+	 * @return the result of the read
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private <T> T readRatings(int[] stripes, RatingEpoch.RatedRead<T> ratedRead) throws BookStoreException {
+		int[] readStripes = stripes == null ? allStripes : stripes;
+		T result;
+
+		takeLocalReadLocks(readStripes);
+
+		try {
+			result = ratingEpoch.readOptimistically(ratedRead);
+		} finally {
+			releaseLocalReadLocks(readStripes);
+		}
+
+		if (result != null) {
+			return result;
+		}
+
+		if (readStripes.length == 0 || readStripes == allStripes) {
+			takeGlobalLock();
+		} else {
+			takeLocalWriteLocks(readStripes);
+		}
+
+		try {
+			return ratedRead.read();
+		} finally {
+			if (readStripes.length == 0 || readStripes == allStripes) {
+				releaseGlobalLock();
+			} else {
+				releaseLocalWriteLocks(readStripes);
+			}
+		}
 	}
 
-	private void validate(StockBook book) throws BookStoreException {
+	/**
+	 * Checks the fields of a book to add, which needs no lock.
+	 *
+	 * @param book
+	 *            the book
+	 * @throws BookStoreException
+	 *             if a field is invalid
+	 */
+	private static void validateFormat(StockBook book) throws BookStoreException {
 		int isbn = book.getISBN();
 		String bookTitle = book.getTitle();
 		String bookAuthor = book.getAuthor();
 		int noCopies = book.getNumCopies();
 		float bookPrice = book.getPrice();
 
-		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
-		}
+		validateISBN(isbn); // Check if the book has valid ISBN
 
 		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
 			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
@@ -151,9 +319,35 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		if (bookPrice < 0.0) { // Check if the price of the book is valid
 			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
+	}
+
+	/**
+	 * Checks the fields of copies to add, which needs no lock.
+	 *
+	 * @param bookCopy
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if a field is invalid
+	 */
+	private static void validateFormat(BookCopy bookCopy) throws BookStoreException {
+		int numCopies = bookCopy.getNumCopies();
 
-		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		validateISBN(bookCopy.getISBN()); // Check if the book has valid ISBN
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private static void validateISBN(int ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validateISBNNotInStock(int ISBN) throws BookStoreException {
+		if (bookMap.containsKey(ISBN)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.DUPLICATED);
 		}
 	}
 
@@ -168,15 +362,9 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		}
 	}
 
-	private void validate(BookEditorPick editorPickArg) throws BookStoreException {
-		int isbn = editorPickArg.getISBN();
-		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
-	}
+	private void validateISBNInStock(int ISBN) throws BookStoreException {
+		validateISBN(ISBN); // Check if the book has valid ISBN
 
-	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
-		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
-		}
 		if (!bookMap.containsKey(ISBN)) {// Check if the book is in stock
 			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 		}
@@ -188,23 +376,28 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
 	 */
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BatchValidator.checkAll(bookSet, book -> validateFormat(book));
+
 		takeGlobalLock();
 
 		try {
-			if (bookSet == null) {
-				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
-			}
-
-			// Check if all are there
-			for (StockBook book : bookSet) {
-				validate(book);
-			}
+			// Check if all are new
+			BatchValidator.checkAll(bookSet, book -> validateISBNNotInStock(book.getISBN()));
 
 			for (StockBook book : bookSet) {
 				int isbn = book.getISBN();
-				bookMap.put(isbn, new BookStoreBook(book));
-				lockMap.put(isbn, new ReentrantReadWriteLock());
+				BookStoreBook bookStoreBook = new BookStoreBook(book);
+				bookMap.put(isbn, bookStoreBook);
+				topRatedIndex.update(bookStoreBook);
+				editorPickIndex.update(bookStoreBook);
+				saleMissIndex.update(bookStoreBook);
 			}
+
+			catalogListing.modified();
 		} finally {
 			releaseGlobalLock();
 		}
@@ -216,6 +409,36 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
 	 */
 	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, true);
+	}
+
+	/**
+	 * Returns copies bought earlier to stock, leaving the sale misses alone.
+	 * This is how the {@link StockEscrow} hands back the copies of released
+	 * and expired reservations.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @throws BookStoreException
+	 *             if some book is not in the store, in which case no copies
+	 *             are returned
+	 */
+	void returnCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, false);
+	}
+
+	/**
+	 * Adds copies to the stock.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @param restock
+	 *            true if the copies are new stock, which clears the sale
+	 *            misses, false if they were bought earlier
+	 * @throws BookStoreException
+	 *             if the copies are invalid or some book is not in the store
+	 */
+	private void addCopies(Set<BookCopy> bookCopiesSet, boolean restock) throws BookStoreException {
 		int isbn;
 		int numCopies;
 
@@ -223,12 +446,14 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		BatchValidator.checkAll(bookCopiesSet, bookCopy -> validateFormat(bookCopy));
+
+		/* take locks */
+		int[] stripes = takeUpdateLocks(
+				bookCopiesSet.stream().map(BookCopy::getISBN).collect(Collectors.toList()), true);
+
 		try {
-			for (BookCopy bookCopy : bookCopiesSet) {
-				/* take locks */
-				takeLocalWriteLock(bookCopy.getISBN());
-				validate(bookCopy);
-			}
+			BatchValidator.checkAll(bookCopiesSet, bookCopy -> validateISBNInStock(bookCopy.getISBN()));
 
 			BookStoreBook book;
 
@@ -237,12 +462,17 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				isbn = bookCopy.getISBN();
 				numCopies = bookCopy.getNumCopies();
 				book = bookMap.get(isbn);
-				book.addCopies(numCopies);
+				if (restock) {
+					book.addCopies(numCopies);
+				} else {
+					book.returnCopies(numCopies);
+				}
+				saleMissIndex.update(book);
 			}
+
+			catalogListing.modified();
 		} finally {
-			for (BookCopy bc : bookCopiesSet) {
-				releaseLocalWriteLock(bc.getISBN());
-			}
+			releaseUpdateLocks(stripes, true);
 		}
 	}
 
@@ -251,16 +481,12 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
-	public List<StockBook> getBooks() {
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
+	public List<StockBook> getBooks() throws BookStoreException {
+		return catalogListing.getBooks(() -> readRatings(null, () -> {
+			Collection<BookStoreBook> bookMapValues = bookMap.values();
 
-		try {
 			return bookMapValues.stream().map(book -> book.immutableStockBook()).collect(Collectors.toList());
-		} finally {
-			for (BookStoreBook book : bookMapValues) {
-				releaseLocalReadLock(book.getISBN());
-			}
-		}
+		}));
 	}
 
 	/*
@@ -276,22 +502,24 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		int isbnValue;
+		BatchValidator.checkAll(editorPicks, editorPickArg -> validateISBN(editorPickArg.getISBN()));
+
+		/* take locks */
+		int[] stripes = takeUpdateLocks(
+				editorPicks.stream().map(BookEditorPick::getISBN).collect(Collectors.toList()), true);
 
 		try {
-			for (BookEditorPick editorPickArg : editorPicks) {
-				/* take locks */
-				takeLocalWriteLock(editorPickArg.getISBN());
-				validate(editorPickArg);
-			}
+			BatchValidator.checkAll(editorPicks, editorPickArg -> validateISBNInStock(editorPickArg.getISBN()));
 
 			for (BookEditorPick editorPickArg : editorPicks) {
-				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+				BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				editorPickIndex.update(book);
 			}
+
+			catalogListing.modified();
 		} finally {
-			for (BookEditorPick bp : editorPicks) {
-				releaseLocalWriteLock(bp.getISBN());
-			}
+			releaseUpdateLocks(stripes, true);
 		}
 	}
 
@@ -312,12 +540,14 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
 		Map<Integer, Integer> salesMisses = new HashMap<>();
 
+		/* take locks */
+		int[] stripes = takeUpdateLocks(
+				bookCopiesToBuy.stream().map(BookCopy::getISBN).collect(Collectors.toList()), true);
+
 		try {
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 				isbn = bookCopyToBuy.getISBN();
 
-				/* take locks */
-				takeLocalWriteLock(isbn);
 				validate(bookCopyToBuy);
 
 				book = bookMap.get(isbn);
@@ -335,7 +565,9 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
 					book = bookMap.get(saleMissEntry.getKey());
 					book.addSaleMiss(saleMissEntry.getValue());
+					saleMissIndex.update(book);
 				}
+				catalogListing.modified();
 				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
 			}
 
@@ -344,13 +576,44 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				book = bookMap.get(bookCopyToBuy.getISBN());
 				book.buyCopies(bookCopyToBuy.getNumCopies());
 			}
+
+			catalogListing.modified();
 		} finally {
-			for (BookCopy bc : bookCopiesToBuy) {
-				releaseLocalWriteLock(bc.getISBN());
-			}
+			releaseUpdateLocks(stripes, true);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		return stockEscrow.reserveCopies(bookCopiesToReserve, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		stockEscrow.confirmReservation(reservationId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		stockEscrow.releaseReservation(reservationId);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -362,19 +625,16 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		try {
-			for (Integer ISBN : isbnSet) {
-				/* take locks */
-				takeLocalReadLock(ISBN);
-				validateISBNInStock(ISBN);
-			}
+		BatchValidator.checkAll(isbnSet, ISBN -> validateISBN(ISBN));
+
+		/* take locks */
+		int[] stripes = stripesFor(isbnSet);
+
+		return readRatings(stripes, () -> {
+			BatchValidator.checkAll(isbnSet, ISBN -> validateISBNInStock(ISBN));
 
 			return isbnSet.stream().map(isbn -> bookMap.get(isbn).immutableStockBook()).collect(Collectors.toList());
-		} finally {
-			for (Integer isbn : isbnSet) {
-				releaseLocalReadLock(isbn);
-			}
-		}
+		});
 	}
 
 	/*
@@ -387,19 +647,19 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		/* take locks */
+		int[] stripes = stripesFor(isbnSet);
+		takeLocalReadLocks(stripes);
+
 		try {
 			// Check that all ISBNs that we rate are there to start with.
 			for (Integer ISBN : isbnSet) {
-				/* take locks */
-				takeLocalReadLock(ISBN);
 				validateISBNInStock(ISBN);
 			}
 
 			return isbnSet.stream().map(isbn -> bookMap.get(isbn).immutableBook()).collect(Collectors.toList());
 		} finally {
-			for (Integer isbn : isbnSet) {
-				releaseLocalReadLock(isbn);
-			}
+			releaseLocalReadLocks(stripes);
 		}
 	}
 
@@ -412,42 +672,10 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		if (numBooks < 0) {
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		try {
-			List<BookStoreBook> listAllEditorPicks = bookMap.entrySet().stream().map(pair -> pair.getValue())
-					.filter(book -> book.isEditorPick()).collect(Collectors.toList());
 
-			// Find numBooks random indices of books that will be picked.
-			Random rand = new Random();
-			Set<Integer> tobePicked = new HashSet<>();
-			int rangePicks = listAllEditorPicks.size();
-
-			if (rangePicks <= numBooks) {
-
-				// We need to add all books.
-				for (int i = 0; i < listAllEditorPicks.size(); i++) {
-					tobePicked.add(i);
-				}
-			} else {
-
-				// We need to pick randomly the books that need to be returned.
-				int randNum;
-
-				while (tobePicked.size() < numBooks) {
-					randNum = rand.nextInt(rangePicks);
-					tobePicked.add(randNum);
-				}
-			}
-
-			// Return all the books by the randomly chosen indices.
-			return tobePicked.stream().map(index -> listAllEditorPicks.get(index).immutableBook())
-					.collect(Collectors.toList());
-
-		} finally {
-			for (BookStoreBook bs : bookMapValues) {
-				releaseLocalReadLock(bs.getISBN());
-			}
-		}
+		// The index serializes its readers with the updates of the picks, and
+		// the descriptions of the books only change under the global lock.
+		return editorPickIndex.getEditorPicks(numBooks);
 	}
 
 	/*
@@ -461,79 +689,9 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
 
-		List<BookStoreBook> listSortedRatedBooks = new ArrayList<BookStoreBook>();
-		List<Book> listTopRatedBooks = new ArrayList<>();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet().iterator();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		BookStoreBook book;
-
-		try {
-
-			// Get all books
-			while (it.hasNext()) {
-				Entry<Integer, BookStoreBook> pair = it.next();
-				book = pair.getValue();
-
-				/* take locks */
-				takeLocalReadLock(pair.getKey());
-				listSortedRatedBooks.add(book);
-			}
-
-			// Sort all books that are rated
-
-			Collections.sort(listSortedRatedBooks, new Comparator<BookStoreBook>() {
-
-				public int compare(BookStoreBook b1, BookStoreBook b2) {
-
-					float averageRate1 = b1.getAverageRating();
-					float averageRate2 = b2.getAverageRating();
-					if (averageRate1 < averageRate2)
-						return 1;
-					else {
-						if (averageRate1 == averageRate2)
-							return 0;
-						else
-							return -1;
-					}
-				}
-
-			});
-
-			// Find numBooks descending indices of books that will be picked.
-
-			Set<Integer> tobePicked = new HashSet<>();
-			int rangePicks = listSortedRatedBooks.size();
-			if (rangePicks <= numBooks) {
-
-				// We need to add all books.
-
-				for (int i = 0; i < rangePicks; i++) {
-					tobePicked.add(i);
-				}
-
-			} else {
-
-				// We need to pick top k rated books that need to be returned.
-
-				int indexNum = 0;
-				while (tobePicked.size() < numBooks) {
-					tobePicked.add(indexNum);
-					indexNum++;
-				}
-			}
-
-			// Get the numBooks books.
-
-			for (Integer index : tobePicked) {
-				book = listSortedRatedBooks.get(index);
-				listTopRatedBooks.add(book.immutableBook());
-			}
-			return listTopRatedBooks;
-		} finally {
-			for (BookStoreBook bs : bookMapValues) {
-				releaseLocalReadLock(bs.getISBN());
-			}
-		}
+		// The index and the descriptions of the books only change under the
+		// global lock, except for the ratings, so no local locks are needed.
+		return readRatings(NO_STRIPES, () -> topRatedIndex.getTopRatedBooks(numBooks));
 	}
 
 	/*
@@ -543,7 +701,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException();
+		return readRatings(null, () -> saleMissIndex.getBooksInDemand());
 	}
 
 	/*
@@ -564,9 +722,8 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		BookStoreBook book;
 
 		/* take locks */
-		for (BookRating br : bookRating) {
-			takeLocalWriteLock(br.getISBN());
-		}
+		int[] stripes = takeUpdateLocks(
+				bookRating.stream().map(BookRating::getISBN).collect(Collectors.toList()), false);
 
 		try {
 			for (BookRating bookToRate : bookRating) {
@@ -595,18 +752,23 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				}
 			}
 			// update the sum of ratings and the number of ratings
+			ratingEpoch.beginBatch();
+			try {
+				for (BookRating bookToRate : bookRating) {
 
-			for (BookRating bookToRate : bookRating) {
+					book = bookMap.get(bookToRate.getISBN());
 
-				book = bookMap.get(bookToRate.getISBN());
+					book.addRating(bookToRate.getRating());
+					topRatedIndex.update(book);
+				}
 
-				book.addRating(bookToRate.getRating());
+				catalogListing.modified();
+			} finally {
+				ratingEpoch.endBatch();
 			}
 
 		} finally {
-			for (BookRating br : bookRating) {
-				releaseLocalWriteLock(br.getISBN());
-			}
+			releaseUpdateLocks(stripes, false);
 		}
 	}
 
@@ -616,7 +778,53 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
-		bookMap.clear();
+		stockEscrow.removeAllBooks(() -> {
+			takeGlobalLock();
+
+			try {
+				bookMap.clear();
+				topRatedIndex.clear();
+				editorPickIndex.clear();
+				saleMissIndex.clear();
+
+				catalogListing.modified();
+			} finally {
+				releaseGlobalLock();
+			}
+		});
+	}
+
+	/**
+	 * Replaces all books with copies of <code>books</code>, including their
+	 * sale misses, ratings and editor picks, to take over the state of another
+	 * store. The books are not validated, as they come from a store which did.
+	 *
+	 * @param books
+	 *            the books
+	 * @throws BookStoreException
+	 *             if the locks cannot be taken
+	 */
+	void replaceAllBooks(Collection<StockBook> books) throws BookStoreException {
+		takeGlobalLock();
+
+		try {
+			bookMap.clear();
+			topRatedIndex.clear();
+			editorPickIndex.clear();
+			saleMissIndex.clear();
+
+			for (StockBook book : books) {
+				BookStoreBook bookStoreBook = new BookStoreBook(book);
+				bookMap.put(book.getISBN(), bookStoreBook);
+				topRatedIndex.update(bookStoreBook);
+				editorPickIndex.update(bookStoreBook);
+				saleMissIndex.update(bookStoreBook);
+			}
+
+			catalogListing.modified();
+		} finally {
+			releaseGlobalLock();
+		}
 	}
 
 	/*
@@ -625,29 +833,159 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
-		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
-		}
+		stockEscrow.removeBooks(isbnSet, () -> {
+			if (isbnSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
 
-		takeGlobalLock();
+			BatchValidator.checkAll(isbnSet, ISBN -> validateISBN(ISBN));
 
-		try {
-			for (Integer ISBN : isbnSet) {
-				if (BookStoreUtility.isInvalidISBN(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
-				}
+			takeGlobalLock();
+
+			try {
+				BatchValidator.checkAll(isbnSet, ISBN -> validateISBNInStock(ISBN));
 
-				if (!bookMap.containsKey(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+				for (int isbn : isbnSet) {
+					bookMap.remove(isbn);
+					topRatedIndex.remove(isbn);
+					editorPickIndex.remove(isbn);
+					saleMissIndex.remove(isbn);
 				}
-			}
 
-			for (int isbn : isbnSet) {
-				bookMap.remove(isbn);
-				lockMap.remove(isbn);
+				catalogListing.modified();
+			} finally {
+				releaseGlobalLock();
 			}
-		} finally {
-			releaseGlobalLock();
-		}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#buyBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> bookCopiesToBuy) {
+		return asyncStore.buyBooksAsync(bookCopiesToBuy);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#rateBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating) {
+		return asyncStore.rateBooksAsync(bookRating);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> isbnSet) {
+		return asyncStore.getBooksAsync(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getTopRatedBooksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks) {
+		return asyncStore.getTopRatedBooksAsync(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getEditorPicksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks) {
+		return asyncStore.getEditorPicksAsync(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet) {
+		return asyncStore.addBooksAsync(bookSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addCopiesAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet) {
+		return asyncStore.addCopiesAsync(bookCopiesSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksAsync() {
+		return asyncStore.getBooksAsync();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksByISBNAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(Set<Integer> isbnSet) {
+		return asyncStore.getBooksByISBNAsync(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemandAsync()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync() {
+		return asyncStore.getBooksInDemandAsync();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#updateEditorPicksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> updateEditorPicksAsync(Set<BookEditorPick> editorPicks) {
+		return asyncStore.updateEditorPicksAsync(editorPicks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeAllBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> removeAllBooksAsync() {
+		return asyncStore.removeAllBooksAsync();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet) {
+		return asyncStore.removeBooksAsync(isbnSet);
 	}
 }
@@ -5,15 +5,18 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.interfaces.AsyncBookStore;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.interfaces.ReservingBookStore;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
@@ -24,12 +27,14 @@ import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link BookStoreHTTPProxy} implements the client level synchronous
- * {@link CertainBookStore} API declared in the {@link BookStore} class.
+ * {@link CertainBookStore} API declared in the {@link BookStore} class, and its
+ * asynchronous counterpart declared in {@link AsyncBookStore}.
  * 
  * @see BookStore
+ * @see AsyncBookStore
  * @see CertainBookStore
  */
-public class BookStoreHTTPProxy implements BookStore {
+public class BookStoreHTTPProxy implements ReservingBookStore, AsyncBookStore {
 
 	/** The client. */
 	protected HttpClient client;
@@ -102,6 +107,48 @@ public class BookStoreHTTPProxy implements BookStore {
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#reserveCopies(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveCopies(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RESERVECOPIES + "?"
+				+ BookStoreConstants.TTL_MILLIS_PARAM + "=" + ttlMillis;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesToReserve);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (Long) bookStoreResponse.getList().get(0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#confirmReservation(long)
+	 */
+	@Override
+	public void confirmReservation(long reservationId) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.CONFIRMRESERVATION + "?"
+				+ BookStoreConstants.RESERVATION_ID_PARAM + "=" + reservationId;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.ReservingBookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RELEASERESERVATION + "?"
+				+ BookStoreConstants.RESERVATION_ID_PARAM + "=" + reservationId;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -166,4 +213,70 @@ public class BookStoreHTTPProxy implements BookStore {
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
 		throw new BookStoreException();
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#buyBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getBooksAsync(java.util.Set)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getEditorPicksAsync(int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETEDITORPICKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + numBooks;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#rateBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		future.completeExceptionally(new BookStoreException());
+		return future;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getTopRatedBooksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks) {
+		CompletableFuture<List<Book>> future = new CompletableFuture<>();
+		future.completeExceptionally(new BookStoreException());
+		return future;
+	}
 }
@@ -2,6 +2,7 @@ package com.acertainbookstore.client;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -13,6 +14,7 @@ import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.AsyncStockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
@@ -22,13 +24,15 @@ import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link StockManagerHTTPProxy} implements the client level synchronous
- * {@link CertainBookStore} API declared in the {@link StockManager} class. Uses
- * the HTTP protocol for communication with the server.
+ * {@link CertainBookStore} API declared in the {@link StockManager} class, and
+ * its asynchronous counterpart declared in {@link AsyncStockManager}. Uses the
+ * HTTP protocol for communication with the server.
  * 
  * @see CertainBookStore
  * @see StockManager
+ * @see AsyncStockManager
  */
-public class StockManagerHTTPProxy implements StockManager {
+public class StockManagerHTTPProxy implements StockManager, AsyncStockManager {
 
 	/** The client. */
 	protected HttpClient client;
@@ -146,9 +150,14 @@ public class StockManagerHTTPProxy implements StockManager {
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSINDEMAND;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
 	/*
@@ -194,6 +203,113 @@ public class StockManagerHTTPProxy implements StockManager {
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#addCopiesAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksAsync()
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksAsync() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksByISBNAsync(java.util.Set)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(Set<Integer> isbns) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemandAsync()
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSINDEMAND;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#updateEditorPicksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> updateEditorPicksAsync(Set<BookEditorPick> editorPicksValues) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKS + "?";
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeAllBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> removeAllBooksAsync() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEALLBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeBooksAsync(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer::get)
+				.thenApply(bookStoreResponse -> null);
+	}
+
 	/**
 	 * Stops the proxy.
 	 */
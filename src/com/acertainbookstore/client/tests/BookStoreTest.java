@@ -7,6 +7,11 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -14,17 +19,29 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.acertainbookstore.business.AdaptiveConcurrentCertainBookStore;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.PrioritySchedulingCertainBookStore;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
+import com.acertainbookstore.business.ShardedConcurrentCertainBookStore;
+import com.acertainbookstore.business.SingleWriterConcurrentCertainBookStore;
+import com.acertainbookstore.business.StampedLockConcurrentCertainBookStore;
+import com.acertainbookstore.business.ColumnarConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.LockFreeConcurrentCertainBookStore;
+import com.acertainbookstore.business.MultiVersionConcurrentCertainBookStore;
+import com.acertainbookstore.business.OffHeapConcurrentCertainBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.TimestampLockManager;
 import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.interfaces.AsyncBookStore;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.ReservingBookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
@@ -42,12 +59,21 @@ public class BookStoreTest {
 	/** The Constant NUM_COPIES. */
 	private static final int NUM_COPIES = 5;
 
+	/** The Constant NUM_LOCK_STRIPES for the lock managers under test. */
+	private static final int NUM_LOCK_STRIPES = 64;
+
+	/** The Constant LOCK_TIMEOUT_MILLIS for the lock managers under test. */
+	private static final long LOCK_TIMEOUT_MILLIS = 5000;
+
 	/** The local test. */
 	private static boolean localTest = true;
 
 	/** Single lock test */
 	private static boolean singleLock = false;
 
+	/** The store engine to test, overrides the single lock test if set */
+	private static String engine = null;
+
 	
 	/** The store manager. */
 	private static StockManager storeManager;
@@ -67,8 +93,52 @@ public class BookStoreTest {
 			String singleLockProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SINGLE_LOCK);
 			singleLock = (singleLockProperty != null) ? Boolean.parseBoolean(singleLockProperty) : singleLock;
 
+			engine = System.getProperty(BookStoreConstants.PROPERTY_KEY_ENGINE);
+
 			if (localTest) {
-				if (singleLock) {
+				if (BookStoreConstants.ENGINE_LOCK_FREE.equals(engine)) {
+					LockFreeConcurrentCertainBookStore store = new LockFreeConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_STAMPED_LOCK.equals(engine)) {
+					StampedLockConcurrentCertainBookStore store = new StampedLockConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_MULTI_VERSION.equals(engine)) {
+					MultiVersionConcurrentCertainBookStore store = new MultiVersionConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_SINGLE_WRITER.equals(engine)) {
+					SingleWriterConcurrentCertainBookStore store = new SingleWriterConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_SHARDED.equals(engine)) {
+					ShardedConcurrentCertainBookStore store = new ShardedConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_COLUMNAR.equals(engine)) {
+					ColumnarConcurrentCertainBookStore store = new ColumnarConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_OFF_HEAP.equals(engine)) {
+					OffHeapConcurrentCertainBookStore store = new OffHeapConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_WAIT_DIE.equals(engine)) {
+					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(
+							new TimestampLockManager(NUM_LOCK_STRIPES, TimestampLockManager.Policy.WAIT_DIE, LOCK_TIMEOUT_MILLIS));
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_ADAPTIVE.equals(engine)) {
+					AdaptiveConcurrentCertainBookStore store = new AdaptiveConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_WOUND_WAIT.equals(engine)) {
+					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(
+							new TimestampLockManager(NUM_LOCK_STRIPES, TimestampLockManager.Policy.WOUND_WAIT, LOCK_TIMEOUT_MILLIS));
+					storeManager = store;
+					client = store;
+				} else if (singleLock) {
 					SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
 					storeManager = store;
 					client = store;
@@ -882,7 +952,726 @@ public class BookStoreTest {
 			e.printStackTrace();
 		}
     }
-	
+
+	/**
+	 * Tests that many buyers of the same book each get their own outcome: no
+	 * more copies are sold than there are, and every failed order is recorded
+	 * as a sale miss.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testConcurrentBuysOfHotBook() throws BookStoreException {
+		int NUM_BUYERS = 8;
+		int ORDERS_PER_BUYER = 1000;
+		int INITIAL_COPIES = NUM_BUYERS * ORDERS_PER_BUYER / 2;
+
+		addBooks(TEST_ISBN + 1, INITIAL_COPIES);
+		HashSet<BookCopy> oneBook = new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, 1)));
+		int[] successfulOrders = new int[NUM_BUYERS];
+
+		List<Thread> buyers = new ArrayList<>();
+		for (int i = 0; i < NUM_BUYERS; i++) {
+			int buyer = i;
+			buyers.add(new Thread(() -> {
+				for (int j = 0; j < ORDERS_PER_BUYER; j++) {
+					try {
+						client.buyBooks(oneBook);
+						successfulOrders[buyer]++;
+					} catch (BookStoreException ex) {
+						;
+					}
+				}
+			}));
+		}
+
+		for (Thread buyer : buyers) {
+			buyer.start();
+		}
+
+		for (Thread buyer : buyers) {
+			try {
+				buyer.join();
+			} catch (InterruptedException ex) {
+				fail();
+			}
+		}
+
+		int totalSuccessfulOrders = Arrays.stream(successfulOrders).sum();
+		StockBook hotBook = storeManager.getBooksByISBN(new HashSet<>(Arrays.asList(TEST_ISBN + 1))).get(0);
+
+		assertEquals(INITIAL_COPIES, totalSuccessfulOrders);
+		assertEquals(0, hotBook.getNumCopies());
+		assertEquals(NUM_BUYERS * ORDERS_PER_BUYER - INITIAL_COPIES, hotBook.getNumSaleMisses());
+	}
+
+	/**
+	 * Tests that no copy of a hot book is lost or made up while buyers of
+	 * different order sizes compete for it and copies are added meanwhile.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testConcurrentBuysAndRestocksOfHotBook() throws BookStoreException {
+		int NUM_BUYERS = 8;
+		int ORDERS_PER_BUYER = 2000;
+		int INITIAL_COPIES = 20000;
+		int NUM_RESTOCKS = 50;
+		int COPIES_PER_RESTOCK = 100;
+
+		addBooks(TEST_ISBN + 1, INITIAL_COPIES);
+		long[] copiesBought = new long[NUM_BUYERS];
+
+		// The buyers start together, so that they compete for the book.
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < NUM_BUYERS; i++) {
+			int buyer = i;
+			int orderSize = 1 + buyer % 3;
+			HashSet<BookCopy> order = new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, orderSize)));
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException ex) {
+					return;
+				}
+
+				for (int j = 0; j < ORDERS_PER_BUYER; j++) {
+					try {
+						client.buyBooks(order);
+						copiesBought[buyer] += orderSize;
+					} catch (BookStoreException ex) {
+						;
+					}
+				}
+			}));
+		}
+
+		HashSet<BookCopy> restock = new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, COPIES_PER_RESTOCK)));
+		threads.add(new Thread(() -> {
+			for (int j = 0; j < NUM_RESTOCKS; j++) {
+				try {
+					storeManager.addCopies(restock);
+				} catch (BookStoreException ex) {
+					;
+				}
+			}
+		}));
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		start.countDown();
+
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException ex) {
+				fail();
+			}
+		}
+
+		long totalCopiesBought = Arrays.stream(copiesBought).sum();
+		StockBook hotBook = storeManager.getBooksByISBN(new HashSet<>(Arrays.asList(TEST_ISBN + 1))).get(0);
+
+		assertEquals(INITIAL_COPIES + NUM_RESTOCKS * COPIES_PER_RESTOCK, totalCopiesBought + hotBook.getNumCopies());
+
+		// The lock-free store spreads the buyers of the book over shards,
+		// provided there is more than one processor to spread them over.
+		if (client instanceof LockFreeConcurrentCertainBookStore && Runtime.getRuntime().availableProcessors() > 1) {
+			assertTrue(((LockFreeConcurrentCertainBookStore) client).getNumSplits(TEST_ISBN + 1) > 0);
+		}
+	}
+
+	/**
+	 * Tests that an order which can never succeed does not make others fail,
+	 * although it briefly takes copies they need before giving them back.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testFailingOrderDoesNotFailOthers() throws BookStoreException {
+		int NUM_ORDERS = 20000;
+
+		addBooks(TEST_ISBN + 1, 1);
+		addBooks(TEST_ISBN + 2, 1);
+
+		// Claims the copy of the first book, then runs short of the second.
+		HashSet<BookCopy> failingOrder = new HashSet<>(
+				Arrays.asList(new BookCopy(TEST_ISBN + 1, 1), new BookCopy(TEST_ISBN + 2, 2)));
+		HashSet<BookCopy> order = new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, 1)));
+		AtomicInteger failedOrders = new AtomicInteger();
+
+		// Buys the copy of the first book and puts it back, over and over.
+		Thread buyer = new Thread(() -> {
+			for (int i = 0; i < NUM_ORDERS; i++) {
+				try {
+					client.buyBooks(order);
+					storeManager.addCopies(order);
+				} catch (BookStoreException ex) {
+					failedOrders.incrementAndGet();
+				}
+			}
+		});
+
+		buyer.start();
+
+		while (buyer.isAlive()) {
+			try {
+				client.buyBooks(failingOrder);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+
+		assertEquals(0, failedOrders.get());
+		assertEquals(1, storeManager.getBooksByISBN(new HashSet<>(Arrays.asList(TEST_ISBN + 1))).get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that an operation asking for the global lock of a timestamp lock
+	 * manager gets it although readers keep coming, under both policies.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testGlobalLockNotStarvedByReaders() throws BookStoreException, InterruptedException {
+		int NUM_READERS = 4;
+
+		for (TimestampLockManager.Policy policy : TimestampLockManager.Policy.values()) {
+			TimestampLockManager lockManager = new TimestampLockManager(NUM_LOCK_STRIPES, policy, LOCK_TIMEOUT_MILLIS);
+			AtomicInteger readsDone = new AtomicInteger();
+			List<Thread> readers = new ArrayList<>();
+
+			// Each reader holds its lock for a while, so that the global lock
+			// is always held in shared mode by some reader.
+			for (int i = 0; i < NUM_READERS; i++) {
+				int[] stripes = { i };
+				readers.add(new Thread(() -> {
+					while (!Thread.currentThread().isInterrupted()) {
+						try {
+							lockManager.lockLocal(stripes, false);
+						} catch (BookStoreException ex) {
+							continue;
+						}
+
+						try {
+							Thread.sleep(2);
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						} finally {
+							lockManager.unlockLocal(stripes, false);
+							readsDone.incrementAndGet();
+						}
+					}
+				}));
+			}
+
+			for (Thread reader : readers) {
+				reader.start();
+			}
+
+			// Let the readers overlap before the writer comes.
+			while (readsDone.get() < NUM_READERS * 4) {
+				Thread.sleep(1);
+			}
+
+			try {
+				lockManager.lockGlobal();
+				lockManager.unlockGlobal();
+			} finally {
+				for (Thread reader : readers) {
+					reader.interrupt();
+				}
+
+				for (Thread reader : readers) {
+					reader.join();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that the list of all books reflects every kind of change made
+	 * since it was last listed, however often it is listed in between.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testListingFollowsChanges() throws BookStoreException {
+		assertEquals(NUM_COPIES, storeManager.getBooks().get(0).getNumCopies());
+		assertEquals(NUM_COPIES, storeManager.getBooks().get(0).getNumCopies());
+
+		client.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 1))));
+		assertEquals(NUM_COPIES - 1, storeManager.getBooks().get(0).getNumCopies());
+
+		// Ratings are not served over HTTP.
+		if (localTest) {
+			client.rateBooks(new HashSet<>(Arrays.asList(new BookRating(TEST_ISBN, 4))));
+			assertEquals(1, storeManager.getBooks().get(0).getNumTimesRated());
+		}
+
+		storeManager.updateEditorPicks(new HashSet<>(Arrays.asList(new BookEditorPick(TEST_ISBN, true))));
+		assertTrue(storeManager.getBooks().get(0).isEditorPick());
+
+		try {
+			client.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, NUM_COPIES))));
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(1, storeManager.getBooks().get(0).getNumSaleMisses());
+
+		storeManager.addCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 1))));
+		assertEquals(NUM_COPIES, storeManager.getBooks().get(0).getNumCopies());
+
+		addBooks(TEST_ISBN + 1, 1);
+		assertEquals(2, storeManager.getBooks().size());
+
+		storeManager.removeBooks(new HashSet<>(Arrays.asList(TEST_ISBN + 1)));
+		assertEquals(1, storeManager.getBooks().size());
+
+		storeManager.removeAllBooks();
+		assertTrue(storeManager.getBooks().isEmpty());
+	}
+
+	/**
+	 * Tests that a page fanning out to several reads of the asynchronous
+	 * interface gets the same books as from the blocking one, and that failures
+	 * complete the futures instead of being thrown.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testAsyncFanOut() throws BookStoreException, InterruptedException {
+		// Only some stores offer the asynchronous interface.
+		if (!(client instanceof AsyncBookStore)) {
+			return;
+		}
+
+		AsyncBookStore asyncClient = (AsyncBookStore) client;
+		storeManager.updateEditorPicks(new HashSet<>(Arrays.asList(new BookEditorPick(TEST_ISBN, true))));
+
+		CompletableFuture<List<Book>> books = asyncClient.getBooksAsync(new HashSet<>(Arrays.asList(TEST_ISBN)));
+		CompletableFuture<List<Book>> editorPicks = asyncClient.getEditorPicksAsync(1);
+		CompletableFuture.allOf(books, editorPicks).join();
+
+		assertEquals(TEST_ISBN, books.join().get(0).getISBN());
+		assertEquals(TEST_ISBN, editorPicks.join().get(0).getISBN());
+
+		// Ratings are not served over HTTP.
+		if (localTest) {
+			client.rateBooks(new HashSet<>(Arrays.asList(new BookRating(TEST_ISBN, 5))));
+			assertEquals(TEST_ISBN, asyncClient.getTopRatedBooksAsync(1).join().get(0).getISBN());
+		}
+
+		try {
+			asyncClient.getBooksAsync(new HashSet<>(Arrays.asList(-1))).get();
+			fail();
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof BookStoreException);
+		}
+	}
+
+	/**
+	 * Tests that customer calls keep being served while bulk jobs go through
+	 * the scheduler, and that the bulk jobs are not starved by them.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testPrioritySchedulingOfBulkCalls() throws BookStoreException {
+		int NUM_BULK_WORKERS = 3;
+		int JOBS_PER_WORKER = 10;
+		int BOOKS_PER_JOB = 200;
+		int NUM_CUSTOMER_CALLS = 2000;
+
+		PrioritySchedulingCertainBookStore scheduler = new PrioritySchedulingCertainBookStore(client, storeManager, 1,
+				5, 0);
+		AtomicInteger completedJobs = new AtomicInteger();
+
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < NUM_BULK_WORKERS; i++) {
+			int firstIsbn = TEST_ISBN + 1 + i * BOOKS_PER_JOB;
+			workers.add(new Thread(() -> {
+				Set<StockBook> books = new HashSet<>();
+				Set<Integer> isbns = new HashSet<>();
+				for (int isbn = firstIsbn; isbn < firstIsbn + BOOKS_PER_JOB; isbn++) {
+					books.add(new ImmutableStockBook(isbn, "T", "A", (float) 10, 1, 0, 0, 0, false));
+					isbns.add(isbn);
+				}
+
+				for (int j = 0; j < JOBS_PER_WORKER; j++) {
+					try {
+						scheduler.addBooks(books);
+						scheduler.removeBooks(isbns);
+						completedJobs.incrementAndGet();
+					} catch (BookStoreException ex) {
+						;
+					}
+				}
+			}));
+		}
+
+		for (Thread worker : workers) {
+			worker.start();
+		}
+
+		HashSet<Integer> isbns = new HashSet<>(Arrays.asList(TEST_ISBN));
+		for (int i = 0; i < NUM_CUSTOMER_CALLS; i++) {
+			assertEquals(TEST_ISBN, scheduler.getBooks(isbns).get(0).getISBN());
+		}
+
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException ex) {
+				fail();
+			}
+		}
+
+		assertEquals(NUM_BULK_WORKERS * JOBS_PER_WORKER, completedJobs.get());
+		assertEquals(1, scheduler.getBooks().size());
+	}
+
+	/**
+	 * Tests that customer reads arriving after a large addBooks do not wait for
+	 * it while other customers are in flight, and that the addBooks runs as
+	 * soon as they are done.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testCustomerReadsPassQueuedBulkCalls() throws BookStoreException {
+		int NUM_BOOKS = 20000;
+		int NUM_CUSTOMER_CALLS = 1000;
+		long MAX_BULK_DEFERRAL_MILLIS = 60000;
+		long MAX_READ_LATENCY_MILLIS = 1000;
+
+		CountDownLatch customerEntered = new CountDownLatch(1);
+		CountDownLatch customerReleased = new CountDownLatch(1);
+		BookStore slowCustomer = new BookStore() {
+			@Override
+			public void buyBooks(Set<BookCopy> booksToBuy) throws BookStoreException {
+				client.buyBooks(booksToBuy);
+			}
+
+			@Override
+			public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+				client.rateBooks(bookRating);
+			}
+
+			@Override
+			public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+				return client.getBooks(isbnSet);
+			}
+
+			@Override
+			public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+				return client.getTopRatedBooks(numBooks);
+			}
+
+			@Override
+			public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+				customerEntered.countDown();
+				try {
+					customerReleased.await();
+				} catch (InterruptedException ex) {
+					throw new BookStoreException(ex);
+				}
+				return client.getEditorPicks(numBooks);
+			}
+		};
+
+		PrioritySchedulingCertainBookStore scheduler = new PrioritySchedulingCertainBookStore(slowCustomer,
+				storeManager, 1, MAX_BULK_DEFERRAL_MILLIS, 0);
+
+		Thread customer = new Thread(() -> {
+			try {
+				scheduler.getEditorPicks(1);
+			} catch (BookStoreException ex) {
+				;
+			}
+		});
+
+		Set<StockBook> books = new HashSet<>();
+		for (int isbn = TEST_ISBN + 1; isbn <= TEST_ISBN + NUM_BOOKS; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "T", "A", (float) 10, 1, 0, 0, 0, false));
+		}
+
+		AtomicInteger addedBooks = new AtomicInteger();
+		Thread manager = new Thread(() -> {
+			try {
+				scheduler.addBooks(books);
+				addedBooks.set(books.size());
+			} catch (BookStoreException ex) {
+				;
+			}
+		});
+
+		try {
+			customer.start();
+			customerEntered.await();
+			manager.start();
+			while (manager.getState() != Thread.State.TIMED_WAITING) {
+				Thread.sleep(1);
+			}
+
+			HashSet<Integer> isbns = new HashSet<>(Arrays.asList(TEST_ISBN));
+			long maxLatencyNanos = 0;
+			for (int i = 0; i < NUM_CUSTOMER_CALLS; i++) {
+				long start = System.nanoTime();
+				assertEquals(TEST_ISBN, scheduler.getBooks(isbns).get(0).getISBN());
+				maxLatencyNanos = Math.max(maxLatencyNanos, System.nanoTime() - start);
+			}
+
+			assertTrue(maxLatencyNanos < TimeUnit.MILLISECONDS.toNanos(MAX_READ_LATENCY_MILLIS));
+			assertEquals(0, addedBooks.get());
+
+			long released = System.nanoTime();
+			customerReleased.countDown();
+			customer.join();
+			manager.join();
+
+			assertTrue(System.nanoTime() - released < TimeUnit.MILLISECONDS.toNanos(MAX_BULK_DEFERRAL_MILLIS));
+		} catch (InterruptedException ex) {
+			fail();
+		}
+
+		assertEquals(NUM_BOOKS, addedBooks.get());
+		assertEquals(NUM_BOOKS + 1, scheduler.getBooks().size());
+	}
+
+	/**
+	 * Tests that migrating between locking granularities keeps every book with
+	 * its copies, sale misses, ratings, editor pick and reservations, also
+	 * while buyers keep buying.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testMigrationKeepsState() throws BookStoreException {
+		int NUM_BUYERS = 4;
+		int ORDERS_PER_BUYER = 2000;
+		int NUM_MIGRATIONS = 20;
+
+		AdaptiveConcurrentCertainBookStore store = new AdaptiveConcurrentCertainBookStore(false);
+		store.addBooks(new HashSet<>(Arrays.asList(
+				new ImmutableStockBook(TEST_ISBN, "T", "A", (float) 10, NUM_COPIES, 0, 0, 0, false),
+				new ImmutableStockBook(TEST_ISBN + 1, "T", "A", (float) 10, ORDERS_PER_BUYER * NUM_BUYERS, 0, 0, 0,
+						false))));
+		store.rateBooks(new HashSet<>(Arrays.asList(new BookRating(TEST_ISBN, 4))));
+		store.updateEditorPicks(new HashSet<>(Arrays.asList(new BookEditorPick(TEST_ISBN, true))));
+		store.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, NUM_COPIES))));
+
+		try {
+			store.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 1))));
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		long reservationId = store.reserveCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, 1))), 60000);
+
+		List<Thread> buyers = new ArrayList<>();
+		HashSet<BookCopy> order = new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, 1)));
+		int[] copiesBought = new int[NUM_BUYERS];
+		for (int i = 0; i < NUM_BUYERS; i++) {
+			int buyer = i;
+			buyers.add(new Thread(() -> {
+				for (int j = 0; j < ORDERS_PER_BUYER; j++) {
+					try {
+						store.buyBooks(order);
+						copiesBought[buyer]++;
+					} catch (BookStoreException ex) {
+						;
+					}
+				}
+			}));
+		}
+
+		for (Thread buyer : buyers) {
+			buyer.start();
+		}
+
+		for (int i = 0; i < NUM_MIGRATIONS; i++) {
+			store.migrate(i % 2 == 0 ? AdaptiveConcurrentCertainBookStore.Mode.FINE
+					: AdaptiveConcurrentCertainBookStore.Mode.COARSE);
+		}
+
+		store.migrate(AdaptiveConcurrentCertainBookStore.Mode.FINE);
+
+		for (Thread buyer : buyers) {
+			try {
+				buyer.join();
+			} catch (InterruptedException ex) {
+				fail();
+			}
+		}
+
+		assertEquals(AdaptiveConcurrentCertainBookStore.Mode.FINE, store.getMode());
+		store.releaseReservation(reservationId);
+
+		StockBook soldOutBook = store.getBooksByISBN(new HashSet<>(Arrays.asList(TEST_ISBN))).get(0);
+		assertEquals(0, soldOutBook.getNumCopies());
+		assertEquals(1, soldOutBook.getNumSaleMisses());
+		assertEquals(1, soldOutBook.getNumTimesRated());
+		assertEquals(4, soldOutBook.getTotalRating());
+		assertTrue(soldOutBook.isEditorPick());
+		assertEquals(TEST_ISBN, store.getEditorPicks(1).get(0).getISBN());
+
+		StockBook hotBook = store.getBooksByISBN(new HashSet<>(Arrays.asList(TEST_ISBN + 1))).get(0);
+		assertEquals(ORDERS_PER_BUYER * NUM_BUYERS, Arrays.stream(copiesBought).sum() + hotBook.getNumCopies());
+	}
+
+	/**
+	 * Tests that reserved copies are out of stock until the reservation is
+	 * released, and stay sold once it is confirmed.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testReserveCopies() throws BookStoreException {
+		ReservingBookStore reservingClient = (ReservingBookStore) client;
+		HashSet<Integer> isbns = new HashSet<>(Arrays.asList(TEST_ISBN));
+		HashSet<BookCopy> booksToReserve = new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 2)));
+
+		long reservationId = reservingClient.reserveCopies(booksToReserve, 60000);
+		assertEquals(NUM_COPIES - 2, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+
+		reservingClient.releaseReservation(reservationId);
+		assertEquals(NUM_COPIES, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+
+		reservationId = reservingClient.reserveCopies(booksToReserve, 60000);
+		reservingClient.confirmReservation(reservationId);
+		assertEquals(NUM_COPIES - 2, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+
+		// A settled reservation cannot be settled again.
+		try {
+			reservingClient.releaseReservation(reservationId);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		// Copies which are not in stock cannot be reserved.
+		try {
+			reservingClient.reserveCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, NUM_COPIES))), 60000);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(NUM_COPIES - 2, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that removing a book voids its reserved copies, so releasing the
+	 * reservation does not hand them to a book added later with the same ISBN.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testReservationOfRemovedBookIsVoided() throws BookStoreException {
+		ReservingBookStore reservingClient = (ReservingBookStore) client;
+		HashSet<Integer> isbns = new HashSet<>(Arrays.asList(TEST_ISBN));
+		long reservationId = reservingClient.reserveCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 2))),
+				60000);
+
+		storeManager.removeBooks(isbns);
+		storeManager.addBooks(new HashSet<>(Arrays.asList(getDefaultBook())));
+		reservingClient.releaseReservation(reservationId);
+		assertEquals(NUM_COPIES, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that the copies of a reservation which is neither confirmed nor
+	 * released return to stock when it expires.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testReservationExpires() throws BookStoreException, InterruptedException {
+		ReservingBookStore reservingClient = (ReservingBookStore) client;
+		HashSet<Integer> isbns = new HashSet<>(Arrays.asList(TEST_ISBN));
+		long reservationId = reservingClient.reserveCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, NUM_COPIES))),
+				50);
+
+		// Wait for the reaper, but not forever.
+		for (int i = 0; i < 100 && storeManager.getBooksByISBN(isbns).get(0).getNumCopies() == 0; i++) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(NUM_COPIES, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+
+		try {
+			reservingClient.confirmReservation(reservationId);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the copies of an expired reservation return to stock without
+	 * clearing the sale misses, so the book stays in demand.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testExpiredReservationKeepsDemand() throws BookStoreException, InterruptedException {
+		ReservingBookStore reservingClient = (ReservingBookStore) client;
+		HashSet<Integer> isbns = new HashSet<>(Arrays.asList(TEST_ISBN));
+		reservingClient.reserveCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, NUM_COPIES - 1))), 50);
+
+		// Only one copy is left, so buying two misses a sale.
+		try {
+			client.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 2))));
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInDemand = storeManager.getBooksInDemand();
+		assertEquals(1, booksInDemand.size());
+		assertEquals(TEST_ISBN, booksInDemand.get(0).getISBN());
+
+		// Wait for the reaper, but not forever.
+		for (int i = 0; i < 100 && storeManager.getBooksByISBN(isbns).get(0).getNumCopies() == 1; i++) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(NUM_COPIES, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+
+		booksInDemand = storeManager.getBooksInDemand();
+		assertEquals(1, booksInDemand.size());
+		assertEquals(TEST_ISBN, booksInDemand.get(0).getISBN());
+	}
+
 	/**
 	 * Tear down after class.
 	 *
@@ -2,7 +2,12 @@ package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -13,12 +18,23 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.acertainbookstore.business.AdaptiveConcurrentCertainBookStore;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.CatalogLoader;
+import com.acertainbookstore.business.ColumnarConcurrentCertainBookStore;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
+import com.acertainbookstore.business.ShardedConcurrentCertainBookStore;
+import com.acertainbookstore.business.SingleWriterConcurrentCertainBookStore;
+import com.acertainbookstore.business.StampedLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.LockFreeConcurrentCertainBookStore;
+import com.acertainbookstore.business.MultiVersionConcurrentCertainBookStore;
+import com.acertainbookstore.business.OffHeapConcurrentCertainBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.TimestampLockManager;
+import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
@@ -39,9 +55,21 @@ public class StockManagerTest {
 	/** The Constant NUM_COPIES. */
 	private static final Integer NUM_COPIES = 5;
 
+	/** The Constant NUM_LOCK_STRIPES for the lock managers under test. */
+	private static final int NUM_LOCK_STRIPES = 64;
+
+	/** The Constant LOCK_TIMEOUT_MILLIS for the lock managers under test. */
+	private static final long LOCK_TIMEOUT_MILLIS = 5000;
+
 	/** The local test. */
 	private static boolean localTest = true;
 
+	/** Single lock test */
+	private static boolean singleLock = false;
+
+	/** The store engine to test, overrides the single lock test if set */
+	private static String engine = null;
+
 	/** The store manager. */
 	private static StockManager storeManager;
 
@@ -57,10 +85,63 @@ public class StockManagerTest {
 			String localTestProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_LOCAL_TEST);
 			localTest = (localTestProperty != null) ? Boolean.parseBoolean(localTestProperty) : localTest;
 			
+			String singleLockProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SINGLE_LOCK);
+			singleLock = (singleLockProperty != null) ? Boolean.parseBoolean(singleLockProperty) : singleLock;
+
+			engine = System.getProperty(BookStoreConstants.PROPERTY_KEY_ENGINE);
+
 			if (localTest) {
-				SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
-				storeManager = store;
-				client = store;
+				if (BookStoreConstants.ENGINE_LOCK_FREE.equals(engine)) {
+					LockFreeConcurrentCertainBookStore store = new LockFreeConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_STAMPED_LOCK.equals(engine)) {
+					StampedLockConcurrentCertainBookStore store = new StampedLockConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_MULTI_VERSION.equals(engine)) {
+					MultiVersionConcurrentCertainBookStore store = new MultiVersionConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_SINGLE_WRITER.equals(engine)) {
+					SingleWriterConcurrentCertainBookStore store = new SingleWriterConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_SHARDED.equals(engine)) {
+					ShardedConcurrentCertainBookStore store = new ShardedConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_COLUMNAR.equals(engine)) {
+					ColumnarConcurrentCertainBookStore store = new ColumnarConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_OFF_HEAP.equals(engine)) {
+					OffHeapConcurrentCertainBookStore store = new OffHeapConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_WAIT_DIE.equals(engine)) {
+					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(
+							new TimestampLockManager(NUM_LOCK_STRIPES, TimestampLockManager.Policy.WAIT_DIE, LOCK_TIMEOUT_MILLIS));
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_ADAPTIVE.equals(engine)) {
+					AdaptiveConcurrentCertainBookStore store = new AdaptiveConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (BookStoreConstants.ENGINE_WOUND_WAIT.equals(engine)) {
+					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(
+							new TimestampLockManager(NUM_LOCK_STRIPES, TimestampLockManager.Policy.WOUND_WAIT, LOCK_TIMEOUT_MILLIS));
+					storeManager = store;
+					client = store;
+				} else if (singleLock) {
+					SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else {
+					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				}
 			} else {
 				storeManager = new StockManagerHTTPProxy("http://localhost:8081/stock");
 				client = new BookStoreHTTPProxy("http://localhost:8081");
@@ -475,6 +556,159 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.size() == 0);
 	}
 
+	/**
+	 * Tests that getBooksInDemand lists the books which missed sales until
+	 * copies are added.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksInDemand() throws BookStoreException {
+		assertTrue(storeManager.getBooksInDemand().isEmpty());
+
+		// Try to buy more copies than there are in stock.
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 2));
+
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInDemand = storeManager.getBooksInDemand();
+		assertTrue(booksInDemand.size() == 1);
+		assertTrue(booksInDemand.get(0).getISBN() == TEST_ISBN);
+		assertTrue(booksInDemand.get(0).getNumSaleMisses() == 2);
+
+		// Adding copies resets the misses.
+		Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+		booksToAdd.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+		storeManager.addCopies(booksToAdd);
+
+		assertTrue(storeManager.getBooksInDemand().isEmpty());
+	}
+
+	/**
+	 * Tests that books are loaded from CSV and binary files in chunks, and that
+	 * loading stops at the first invalid chunk after adding the ones before it.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws IOException
+	 *             if the files cannot be written
+	 */
+	@Test
+	public void testLoadCatalog() throws BookStoreException, IOException {
+		CatalogLoader loader = new CatalogLoader(storeManager, 2, 2);
+		Path file = Files.createTempFile("catalog", ".csv");
+
+		try {
+			Files.write(file, Arrays.asList("3044560,\"Harry Potter, and JUnit\",JK Unit,10,5", "",
+					"3044561,\"The \"\"Test\"\"\",Kent Beck,20.5,1", "3044562,Third,Author,0,3"),
+					StandardCharsets.UTF_8);
+			assertEquals(3, loader.loadCsv(file));
+
+			List<StockBook> loadedBooks = storeManager
+					.getBooksByISBN(new HashSet<Integer>(Arrays.asList(3044560, 3044561, 3044562)));
+			assertEquals(3, loadedBooks.size());
+			assertTrue(loadedBooks.contains(new ImmutableStockBook(3044560, "Harry Potter, and JUnit", "JK Unit",
+					(float) 10, 5, 0, 0, 0, false)));
+			assertTrue(loadedBooks.contains(
+					new ImmutableStockBook(3044561, "The \"Test\"", "Kent Beck", 20.5f, 1, 0, 0, 0, false)));
+
+			List<StockBook> booksToWrite = new ArrayList<StockBook>();
+
+			for (int isbn = 3044570; isbn < 3044575; isbn++) {
+				booksToWrite.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author", 1.5f, 2, 0, 0, 0, false));
+			}
+
+			CatalogLoader.writeBinary(booksToWrite, file);
+			assertEquals(5, loader.loadBinary(file));
+			assertEquals(9, storeManager.getBooks().size());
+
+			// The first chunk is added, the second has an invalid number of
+			// copies and the third is not read.
+			Files.write(file, Arrays.asList("3044580,A,B,1,1", "3044581,A,B,1,1", "3044582,A,B,1,0",
+					"3044583,A,B,1,1", "3044584,A,B,1,1"), StandardCharsets.UTF_8);
+
+			try {
+				loader.loadCsv(file);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+
+			assertEquals(2, storeManager
+					.getBooksByISBN(new HashSet<Integer>(Arrays.asList(3044580, 3044581))).size());
+			assertEquals(11, storeManager.getBooks().size());
+
+			// A malformed line is rejected.
+			Files.write(file, Arrays.asList("3044590,A,B,1"), StandardCharsets.UTF_8);
+
+			try {
+				loader.loadCsv(file);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+
+			assertEquals(11, storeManager.getBooks().size());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Tests that batches large enough to be validated in parallel are applied
+	 * entirely when valid and not at all when one element is invalid.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testLargeBatches() throws BookStoreException {
+		int numBooks = 5000;
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		Set<BookCopy> copiesToAdd = new HashSet<BookCopy>();
+		Set<Integer> isbnsToRemove = new HashSet<Integer>();
+
+		for (int isbn = 1000000; isbn < 1000000 + numBooks; isbn++) {
+			booksToAdd.add(new ImmutableStockBook(isbn, "Title", "Author", 1.0f, 1, 0, 0, 0, false));
+			copiesToAdd.add(new BookCopy(isbn, 1));
+			isbnsToRemove.add(isbn);
+		}
+
+		storeManager.addBooks(booksToAdd);
+		assertEquals(numBooks + 1, storeManager.getBooks().size());
+
+		// An invalid number of copies rejects the whole batch.
+		copiesToAdd.add(new BookCopy(TEST_ISBN, 0));
+
+		try {
+			storeManager.addCopies(copiesToAdd);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(1, storeManager.getBooksByISBN(isbnsToRemove).get(0).getNumCopies());
+
+		// A book not in stock rejects the whole batch.
+		isbnsToRemove.add(999999);
+
+		try {
+			storeManager.removeBooks(isbnsToRemove);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(numBooks + 1, storeManager.getBooks().size());
+	}
+
 	/**
 	 * Tear down after class.
 	 *
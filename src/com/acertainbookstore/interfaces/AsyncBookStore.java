@@ -0,0 +1,72 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+
+/**
+ * {@link AsyncBookStore} declares the methods of {@link BookStore} without
+ * blocking the caller. Every method returns at once with a future completed
+ * with the outcome of the call, or completed exceptionally with the
+ * {@link com.acertainbookstore.utils.BookStoreException} the call failed with,
+ * so a client can have many calls in flight on few threads. The sets passed in
+ * must not change until the future is completed.
+ *
+ * @see BookStore
+ */
+public interface AsyncBookStore {
+
+	/**
+	 * Buys the sets of books specified.
+	 *
+	 * @param booksToBuy
+	 *            the books to buy
+	 * @return the future completed when the books are bought
+	 * @see BookStore#buyBooks(Set)
+	 */
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> booksToBuy);
+
+	/**
+	 * Applies the BookRatings in the set.
+	 *
+	 * @param bookRating
+	 *            the book rating
+	 * @return the future completed when the books are rated
+	 * @see BookStore#rateBooks(Set)
+	 */
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating);
+
+	/**
+	 * Gets the list of books corresponding to the set of ISBNs.
+	 *
+	 * @param ISBNList
+	 *            the ISBN list
+	 * @return the future of the books
+	 * @see BookStore#getBooks(Set)
+	 */
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> ISBNList);
+
+	/**
+	 * Gets a list of top rated numBooks books.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the future of the top rated books
+	 * @see BookStore#getTopRatedBooks(int)
+	 */
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks);
+
+	/**
+	 * Gets the list of books containing numBooks editor picks.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the future of the editor picks
+	 * @see BookStore#getEditorPicks(int)
+	 */
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks);
+}
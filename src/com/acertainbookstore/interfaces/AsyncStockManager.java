@@ -0,0 +1,95 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * {@link AsyncStockManager} declares the methods of {@link StockManager}
+ * without blocking the caller. Every method returns at once with a future
+ * completed with the outcome of the call, or completed exceptionally with the
+ * {@link com.acertainbookstore.utils.BookStoreException} the call failed with.
+ * The sets passed in must not change until the future is completed.
+ *
+ * @see StockManager
+ */
+public interface AsyncStockManager {
+
+	/**
+	 * Adds the books in bookSet to the stock.
+	 *
+	 * @param bookSet
+	 *            the book set
+	 * @return the future completed when the books are added
+	 * @see StockManager#addBooks(Set)
+	 */
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet);
+
+	/**
+	 * Adds copies of the existing books to the bookstore.
+	 *
+	 * @param bookCopiesSet
+	 *            the book copies set
+	 * @return the future completed when the copies are added
+	 * @see StockManager#addCopies(Set)
+	 */
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet);
+
+	/**
+	 * Gets the list of books in the bookstore.
+	 *
+	 * @return the future of the books
+	 * @see StockManager#getBooks()
+	 */
+	public CompletableFuture<List<StockBook>> getBooksAsync();
+
+	/**
+	 * Gets the books matching the set of ISBNs given.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the future of the books
+	 * @see StockManager#getBooksByISBN(Set)
+	 */
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(Set<Integer> isbns);
+
+	/**
+	 * Gets the list of books which has sale miss.
+	 *
+	 * @return the future of the books in demand
+	 * @see StockManager#getBooksInDemand()
+	 */
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync();
+
+	/**
+	 * Updates the books by mark/unmark them as editor pick.
+	 *
+	 * @param editorPicks
+	 *            the editor picks
+	 * @return the future completed when the books are updated
+	 * @see StockManager#updateEditorPicks(Set)
+	 */
+	public CompletableFuture<Void> updateEditorPicksAsync(Set<BookEditorPick> editorPicks);
+
+	/**
+	 * Cleans up the bookstore - remove all the books and the associated data.
+	 *
+	 * @return the future completed when the books are removed
+	 * @see StockManager#removeAllBooks()
+	 */
+	public CompletableFuture<Void> removeAllBooksAsync();
+
+	/**
+	 * Cleans up the bookstore selectively for the list of provided ISBNs.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the future completed when the books are removed
+	 * @see StockManager#removeBooks(Set)
+	 */
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet);
+}
@@ -0,0 +1,48 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link ReservingBookStore} declares the methods exposed by bookstores which
+ * also hold copies for the clients while they check out.
+ */
+public interface ReservingBookStore extends BookStore {
+
+	/**
+	 * Reserves the sets of books specified for a limited time. The copies are
+	 * taken out of stock as if bought, and return to stock unless the
+	 * reservation is confirmed before it expires.
+	 *
+	 * @param booksToReserve
+	 *            the books to reserve
+	 * @param ttlMillis
+	 *            the time to live of the reservation in milliseconds
+	 * @return the reservation id
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public long reserveCopies(Set<BookCopy> booksToReserve, long ttlMillis) throws BookStoreException;
+
+	/**
+	 * Confirms a reservation, so its copies stay bought.
+	 *
+	 * @param reservationId
+	 *            the reservation id
+	 * @throws BookStoreException
+	 *             if the reservation is not held anymore
+	 */
+	public void confirmReservation(long reservationId) throws BookStoreException;
+
+	/**
+	 * Releases a reservation, returning its copies to stock.
+	 *
+	 * @param reservationId
+	 *            the reservation id
+	 * @throws BookStoreException
+	 *             if the reservation is not held anymore
+	 */
+	public void releaseReservation(long reservationId) throws BookStoreException;
+}
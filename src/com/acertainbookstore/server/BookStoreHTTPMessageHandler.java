@@ -3,6 +3,9 @@ package com.acertainbookstore.server;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.ServletException;
@@ -18,6 +21,7 @@ import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.interfaces.ReservingBookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.utils.BookStoreConstants;
@@ -38,6 +42,25 @@ import com.esotericsoftware.kryo.io.Input;
  * @see CertainBookStore
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
+
+	/**
+	 * {@link SerializedListing} is a list of all books with its serialized
+	 * response.
+	 */
+	private static final class SerializedListing {
+
+		/** The books as handed out by the stock manager. */
+		private final List<StockBook> books;
+
+		/** The serialized response listing the books. */
+		private final byte[] serializedResponseContent;
+
+		SerializedListing(List<StockBook> books, byte[] serializedResponseContent) {
+			this.books = books;
+			this.serializedResponseContent = serializedResponseContent;
+		}
+	}
+
 	/** The book store. */
 	private BookStore bookStore = null;
 	
@@ -47,6 +70,9 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	/** The serializer. */
 	private static ThreadLocal<BookStoreSerializer> serializer;
 
+	/** The latest list of all books served, null if none was. */
+	private volatile SerializedListing listing = null;
+
 	/**
 	 * Instantiates a new {@link BookStoreHTTPMessageHandler}.
 	 *
@@ -65,6 +91,21 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		}
 	}
 
+	/**
+	 * Gets the store serving the clients as a store holding reservations.
+	 *
+	 * @return the store
+	 * @throws BookStoreException
+	 *             if the store does not hold reservations
+	 */
+	private ReservingBookStore reservingBookStore() throws BookStoreException {
+		if (!(bookStore instanceof ReservingBookStore)) {
+			throw new BookStoreException(BookStoreConstants.RESERVATIONS_NOT_SUPPORTED);
+		}
+
+		return (ReservingBookStore) bookStore;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -122,6 +163,18 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				buyBooks(request, response);
 				break;
 
+			case RESERVECOPIES:
+				reserveCopies(request, response);
+				break;
+
+			case CONFIRMRESERVATION:
+				confirmReservation(request, response);
+				break;
+
+			case RELEASERESERVATION:
+				releaseReservation(request, response);
+				break;
+
 			case GETBOOKS:
 				getBooks(request, response);
 				break;
@@ -134,6 +187,10 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				getStockBooksByISBN(request, response);
 				break;
 
+			case GETBOOKSINDEMAND:
+				getBooksInDemand(response);
+				break;
+
 			default:
 				System.err.println("Unsupported message tag.");
 				break;
@@ -223,6 +280,87 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		response.getOutputStream().write(serializedResponseContent);
 	}
 
+	/**
+	 * Reserves copies.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void reserveCopies(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String ttlMillisString = URLDecoder.decode(request.getParameter(BookStoreConstants.TTL_MILLIS_PARAM),
+				StandardCharsets.UTF_8);
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookCopy> bookCopiesToReserve = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			long ttlMillis = BookStoreUtility.convertStringToLong(ttlMillisString);
+			long reservationId = reservingBookStore().reserveCopies(bookCopiesToReserve, ttlMillis);
+			bookStoreResponse.setList(Collections.singletonList(reservationId));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Confirms a reservation.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void confirmReservation(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String reservationIdString = URLDecoder.decode(request.getParameter(BookStoreConstants.RESERVATION_ID_PARAM),
+				StandardCharsets.UTF_8);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			reservingBookStore().confirmReservation(BookStoreUtility.convertStringToLong(reservationIdString));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Releases a reservation.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void releaseReservation(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String reservationIdString = URLDecoder.decode(request.getParameter(BookStoreConstants.RESERVATION_ID_PARAM),
+				StandardCharsets.UTF_8);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			reservingBookStore().releaseReservation(BookStoreUtility.convertStringToLong(reservationIdString));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
 	/**
 	 * Buys books.
 	 *
@@ -287,9 +425,43 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	private void listBooks(HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		List<StockBook> books;
+
+		try {
+			books = stockManager.getBooks();
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+			response.getOutputStream().write(serializer.get().serialize(bookStoreResponse));
+			return;
+		}
+
+		// Stores hand out the same list while the catalog is unchanged, so its
+		// response is serialized once per change rather than once per request.
+		SerializedListing currentListing = listing;
+
+		if (currentListing == null || currentListing.books != books) {
+			// Copy the list, unmodifiable views cannot be deserialized.
+			bookStoreResponse.setList(new ArrayList<>(books));
+			currentListing = new SerializedListing(books, serializer.get().serialize(bookStoreResponse));
+			listing = currentListing;
+		}
+
+		response.getOutputStream().write(currentListing.serializedResponseContent);
+	}
+
+	/**
+	 * Gets the books in demand.
+	 *
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getBooksInDemand(HttpServletResponse response) throws IOException {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 		try {
-			bookStoreResponse.setList(stockManager.getBooks());
+			bookStoreResponse.setList(stockManager.getBooksInDemand());
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
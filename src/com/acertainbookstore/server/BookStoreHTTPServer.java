@@ -1,7 +1,7 @@
 package com.acertainbookstore.server;
 
-import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
-import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.business.AdaptiveConcurrentCertainBookStore;
+import com.acertainbookstore.business.PrioritySchedulingCertainBookStore;
 
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import com.acertainbookstore.utils.BookStoreConstants;
@@ -16,11 +16,6 @@ public class BookStoreHTTPServer {
 	private static final int DEFAULT_PORT = 8081;
 	private static final int MIN_THREADPOOL_SIZE = 10;
 	private static final int MAX_THREADPOOL_SIZE = 100;
-	
-	/** The constant, defining which locking scheme implementation to use
-	 *  true - single lock 
-	 *  false - two-level locking */
-	private static final boolean SINGLE_LOCK = true;
 
 	/**
 	 * Prevents the instantiation of a new {@link BookStoreHTTPServer}.
@@ -40,15 +35,13 @@ public class BookStoreHTTPServer {
 		
 		BookStoreHTTPMessageHandler handler = null;
 		
-		if (SINGLE_LOCK) {
-			SingleLockConcurrentCertainBookStore bookStore = new SingleLockConcurrentCertainBookStore();
-			/* we pass bookStore to BookStoreHTTPMessageHandler constructor twice, 
-			 * since it implements both interfaces: BookStore and StockManager */
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
-		} else {
-			TwoLevelLockingConcurrentCertainBookStore bookStore = new TwoLevelLockingConcurrentCertainBookStore();
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
-		}		
+		/* the store switches between single lock and two-level locking
+		 * by itself, whichever suits the current mix of calls */
+		AdaptiveConcurrentCertainBookStore bookStore = new AdaptiveConcurrentCertainBookStore();
+		/* we pass bookStore to the scheduler constructor twice, 
+		 * since it implements both interfaces: BookStore and StockManager */
+		PrioritySchedulingCertainBookStore scheduler = new PrioritySchedulingCertainBookStore(bookStore, bookStore);
+		handler = new BookStoreHTTPMessageHandler(scheduler, scheduler);
 		
 		String serverPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
 
@@ -19,6 +19,12 @@ public final class BookStoreConstants {
 	/** The Constant BOOK_NUM_PARAM. */
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 
+	/** The Constant RESERVATION_ID_PARAM. */
+	public static final String RESERVATION_ID_PARAM = "reservation_id";
+
+	/** The Constant TTL_MILLIS_PARAM. */
+	public static final String TTL_MILLIS_PARAM = "ttl_millis";
+
 	/** The Constant XMLSTRINGLEN_PARAM. */
 	public static final String XMLSTRINGLEN_PARAM = "len";
 
@@ -51,15 +57,63 @@ public final class BookStoreConstants {
 	/** The Constant RATING. */
 	public static final String RATING = "The rating: ";
 
+	/** The Constant RESERVATION. */
+	public static final String RESERVATION = "The reservation: ";
+
+	/** The Constant RECORD. */
+	public static final String RECORD = "The record: ";
+
 	/** The Constant NULL_INPUT. */
 	public static final String NULL_INPUT = "null input parameters";
 
+	/** The Constant LOCK_TIMEOUT when an operation waited too long for locks. */
+	public static final String LOCK_TIMEOUT = "timed out waiting for locks";
+
+	/** The Constant ADMISSION_TIMEOUT when a bulk operation waited too long to be admitted. */
+	public static final String ADMISSION_TIMEOUT = "timed out waiting for admission";
+
+	/** The Constant RESERVATIONS_NOT_SUPPORTED when the store does not hold reservations. */
+	public static final String RESERVATIONS_NOT_SUPPORTED = "reservations are not supported";
+
 	/** The Constant PROPERTY_KEY_LOCAL_TEST. */
 	public static final String PROPERTY_KEY_LOCAL_TEST = "localtest";
 	
 	/** The Constant PROPERTY_KEY_SINGLE_LOCK. */
 	public static final String PROPERTY_KEY_SINGLE_LOCK = "singlelock";
 
+	/** The Constant PROPERTY_KEY_ENGINE. */
+	public static final String PROPERTY_KEY_ENGINE = "engine";
+
+	/** The Constant ENGINE_LOCK_FREE selecting the lock-free store. */
+	public static final String ENGINE_LOCK_FREE = "lockfree";
+
+	/** The Constant ENGINE_STAMPED_LOCK selecting the stamped lock store. */
+	public static final String ENGINE_STAMPED_LOCK = "stampedlock";
+
+	/** The Constant ENGINE_MULTI_VERSION selecting the multi-version store. */
+	public static final String ENGINE_MULTI_VERSION = "multiversion";
+
+	/** The Constant ENGINE_SINGLE_WRITER selecting the single writer store. */
+	public static final String ENGINE_SINGLE_WRITER = "singlewriter";
+
+	/** The Constant ENGINE_SHARDED selecting the sharded store. */
+	public static final String ENGINE_SHARDED = "sharded";
+
+	/** The Constant ENGINE_COLUMNAR selecting the columnar store. */
+	public static final String ENGINE_COLUMNAR = "columnar";
+
+	/** The Constant ENGINE_OFF_HEAP selecting the off-heap store. */
+	public static final String ENGINE_OFF_HEAP = "offheap";
+
+	/** The Constant ENGINE_WAIT_DIE selecting the two-level store with wait-die. */
+	public static final String ENGINE_WAIT_DIE = "waitdie";
+
+	/** The Constant ENGINE_WOUND_WAIT selecting the two-level store with wound-wait. */
+	public static final String ENGINE_WOUND_WAIT = "woundwait";
+
+	/** The Constant ENGINE_ADAPTIVE selecting the store adapting its locking granularity. */
+	public static final String ENGINE_ADAPTIVE = "adaptive";
+
 	/** The Constant PROPERTY_KEY_SERVER_PORT. */
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
 
@@ -34,5 +34,17 @@ public enum BookStoreMessageTag {
 	REMOVEBOOKS,
 
 	/** The tag for the get stock books by ISBN message. */
-	GETSTOCKBOOKSBYISBN;
+	GETSTOCKBOOKSBYISBN,
+
+	/** The tag for the get books in demand message. */
+	GETBOOKSINDEMAND,
+
+	/** The tag for the reserve copies message. */
+	RESERVECOPIES,
+
+	/** The tag for the confirm reservation message. */
+	CONFIRMRESERVATION,
+
+	/** The tag for the release reservation message. */
+	RELEASERESERVATION;
 }
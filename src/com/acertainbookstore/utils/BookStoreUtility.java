@@ -1,13 +1,17 @@
 package com.acertainbookstore.utils;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
 import org.eclipse.jetty.client.util.BytesContentProvider;
 import org.eclipse.jetty.http.HttpMethod;
 
@@ -128,6 +132,27 @@ public final class BookStoreUtility {
 		return returnValue;
 	}
 
+	/**
+	 * Converts a string to a long if possible else it throws.
+	 *
+	 * @param str
+	 *            the string
+	 * @return the long
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public static long convertStringToLong(String str) throws BookStoreException {
+		long returnValue = 0;
+
+		try {
+			returnValue = Long.parseLong(str);
+		} catch (Exception ex) {
+			throw new BookStoreException(ex);
+		}
+
+		return returnValue;
+	}
+
 	/**
 	 * Convert a request URI to the message tags supported in CertainBookStore.
 	 *
@@ -163,44 +188,122 @@ public final class BookStoreUtility {
 	 */
 	public static BookStoreResponse performHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
 			BookStoreSerializer serializer) throws BookStoreException {
+		Request request = newHttpRequest(client, bookStoreRequest, serializer);
+		ContentResponse response;
+
+		try {
+			response = request.send();
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		}
+
+		return readHttpResponse(response.getContent(), serializer);
+	}
+
+	/**
+	 * Perform HTTP exchange without blocking. The response is read on a thread
+	 * of the client, so the serializer is supplied per thread rather than
+	 * shared with the caller.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer of the calling thread
+	 * @return the future of the book store response, completed exceptionally
+	 *         with a {@link BookStoreException} if the exchange failed
+	 */
+	public static CompletableFuture<BookStoreResponse> performHttpExchangeAsync(HttpClient client,
+			BookStoreRequest bookStoreRequest, Supplier<BookStoreSerializer> serializer) {
+		CompletableFuture<BookStoreResponse> future = new CompletableFuture<>();
 		Request request;
 
+		try {
+			request = newHttpRequest(client, bookStoreRequest, serializer.get());
+		} catch (BookStoreException ex) {
+			future.completeExceptionally(ex);
+			return future;
+		}
+
+		request.send(new BufferingResponseListener() {
+
+			@Override
+			public void onComplete(Result result) {
+				if (result.isFailed()) {
+					Throwable failure = result.getFailure();
+					future.completeExceptionally(new BookStoreException(failure instanceof TimeoutException
+							? BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT
+							: BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, failure));
+					return;
+				}
+
+				try {
+					future.complete(readHttpResponse(getContent(), serializer.get()));
+				} catch (BookStoreException ex) {
+					future.completeExceptionally(ex);
+				}
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Creates the HTTP request of a book store request.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer
+	 * @return the HTTP request
+	 * @throws BookStoreException
+	 *             if the input value cannot be serialized
+	 */
+	private static Request newHttpRequest(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializer serializer) throws BookStoreException {
 		switch (bookStoreRequest.getMethod()) {
 		case GET:
-			request = client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET);
-			break;
+			return client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET);
 
 		case POST:
 			try {
 				byte[] serializedValue = serializer.serialize(bookStoreRequest.getInputValue());
 				ContentProvider contentProvider = new BytesContentProvider(serializedValue);
-				request = client.POST(bookStoreRequest.getURLString()).content(contentProvider);
+				return client.POST(bookStoreRequest.getURLString()).content(contentProvider);
 			} catch (IOException ex) {
 				throw new BookStoreException("Serialization error", ex);
 			}
 
-			break;
-
 		default:
 			throw new IllegalArgumentException("HTTP Method not supported.");
 		}
+	}
 
-		ContentResponse response;
-
-		try {
-			response = request.send();
-		} catch (InterruptedException ex) {
-			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
-		} catch (TimeoutException ex) {
-			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
-		} catch (ExecutionException ex) {
-			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
-		}
-
+	/**
+	 * Reads the book store response from the content of an HTTP response.
+	 *
+	 * @param content
+	 *            the content
+	 * @param serializer
+	 *            the serializer
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the exception of the response, or if it cannot be
+	 *             deserialized
+	 */
+	private static BookStoreResponse readHttpResponse(byte[] content, BookStoreSerializer serializer)
+			throws BookStoreException {
 		BookStoreResponse bookStoreResponse;
 
 		try {
-			bookStoreResponse = (BookStoreResponse) serializer.deserialize(response.getContent());
+			bookStoreResponse = (BookStoreResponse) serializer.deserialize(content);
 		} catch (IOException ex) {
 			throw new BookStoreException("Deserialization error", ex);
 		}
@@ -0,0 +1,313 @@
+package com.acertainbookstore.utils;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link IntHashMap} is a hash map from primitive <code>int</code> keys to
+ * non-null values. Keys and values live in two parallel arrays probed
+ * linearly, so a lookup neither boxes its key nor follows a pointer per entry,
+ * and removal shifts the following entries back instead of leaving tombstones.
+ * <p>
+ * Like {@link java.util.HashMap}, the map is not synchronized: concurrent
+ * lookups are safe only as long as nobody modifies the map.
+ *
+ * @param <V>
+ *            the type of the values
+ */
+public class IntHashMap<V> {
+
+	/** The default number of slots. */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/** The maximum ratio of entries to slots before the table grows. */
+	private static final float LOAD_FACTOR = 0.5f;
+
+	/** The keys, a slot is empty when its value is null. */
+	private int[] keys;
+
+	/** The values. */
+	private Object[] values;
+
+	/** The number of entries. */
+	private int size = 0;
+
+	/** The number of entries above which the table grows. */
+	private int threshold;
+
+	/** The number of structural modifications, for the iterators. */
+	private int modCount = 0;
+
+	/**
+	 * Instantiates a new empty {@link IntHashMap}.
+	 */
+	public IntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new empty {@link IntHashMap} holding
+	 * <code>expectedSize</code> entries without growing.
+	 *
+	 * @param expectedSize
+	 *            the expected number of entries
+	 */
+	public IntHashMap(int expectedSize) {
+		if (expectedSize < 0) {
+			throw new IllegalArgumentException("expectedSize = " + expectedSize + ", but it must not be negative");
+		}
+
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int minSlots = Math.max(2, (int) Math.ceil(expectedSize / LOAD_FACTOR));
+		return Integer.highestOneBit(minSlots - 1) << 1;
+	}
+
+	private void allocate(int numSlots) {
+		keys = new int[numSlots];
+		values = new Object[numSlots];
+		threshold = (int) (numSlots * LOAD_FACTOR);
+	}
+
+	/**
+	 * Gets the home slot of a key.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the slot index
+	 */
+	private int slotFor(int key) {
+		// Spread the bits since consecutive keys are common.
+		int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+
+	/**
+	 * Gets the slot holding a key.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the slot index, or -1 if the key is not in the map
+	 */
+	private int indexOf(int key) {
+		int mask = keys.length - 1;
+
+		for (int slot = slotFor(key); values[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Gets the value of a key.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the value, or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int slot = indexOf(key);
+		return slot < 0 ? null : (V) values[slot];
+	}
+
+	/**
+	 * Checks whether a key is in the map.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true, if the key is in the map
+	 */
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Maps a key to a value.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value, must not be null
+	 * @return the previous value, or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("value");
+		}
+
+		int mask = keys.length - 1;
+		int slot = slotFor(key);
+
+		for (; values[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				V previous = (V) values[slot];
+				values[slot] = value;
+				return previous;
+			}
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		modCount++;
+
+		if (++size > threshold) {
+			resize(keys.length << 1);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes a key from the map.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the removed value, or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int slot = indexOf(key);
+
+		if (slot < 0) {
+			return null;
+		}
+
+		V previous = (V) values[slot];
+		int mask = keys.length - 1;
+
+		// Shift back the entries of the probe sequence which would no longer be
+		// reachable across the hole.
+		int hole = slot;
+
+		for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+			int home = slotFor(keys[next]);
+
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+
+		values[hole] = null;
+		size--;
+		modCount++;
+		return previous;
+	}
+
+	/**
+	 * Removes all the entries.
+	 */
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(values, null);
+			size = 0;
+			modCount++;
+		}
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks whether the map is empty.
+	 *
+	 * @return true, if the map is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets a read-only view of the values, in no particular order.
+	 *
+	 * @return the values
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private void resize(int numSlots) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(numSlots);
+
+		int mask = numSlots - 1;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = slotFor(oldKeys[i]);
+
+				while (values[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * {@link ValueIterator} walks the slots of the table.
+	 */
+	private final class ValueIterator implements Iterator<V> {
+
+		/** The modification count the iterator was created at. */
+		private final int expectedModCount = modCount;
+
+		/** The next slot to look at. */
+		private int slot = 0;
+
+		@Override
+		public boolean hasNext() {
+			while (slot < values.length && values[slot] == null) {
+				slot++;
+			}
+
+			return slot < values.length;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return (V) values[slot++];
+		}
+	}
+}